@@ -0,0 +1,85 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saves a 1024 x 768 image with each writer, against the former unbuffered TGA writer.
+ * The size of every file is printed at the end of the trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageWriterBenchmark {
+    static final int W = 1024, H = 768;
+
+    /** a shaded scene, or the flat-shaded image of JavaTgaSansLumiere */
+    @Param({"damierReflection", "flat"})
+    public String image;
+
+    @Param({"unbufferedTga", "tga", "rleTga", "png"})
+    public String writer;
+
+    private byte[] buffer;
+    private ImageWriter imageWriter;
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        buffer = image.equals("flat") ? JavaTgaSansLumiere.render(W, H)
+                : JavaTga.render(Scenes.build(image), W, H, 32);
+        imageWriter = switch (writer) {
+            case "unbufferedTga" -> ImageWriterBenchmark::writeUnbuffered;
+            case "tga" -> new TgaWriter();
+            case "rleTga" -> new RleTgaWriter();
+            case "png" -> new PngWriter();
+            default -> throw new IllegalArgumentException(writer);
+        };
+        file = Files.createTempFile("bench", writer.equals("png") ? ".png" : ".tga");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.out.printf("%n%s %s : %d bytes%n", image, writer, Files.size(file));
+        Files.delete(file);
+    }
+
+    @Benchmark
+    public void write() throws IOException {
+        imageWriter.write(file.toString(), buffer, W, H);
+    }
+
+    /**
+     * The TGA writer as it was : one write call per header byte, no buffering.
+     */
+    private static void writeUnbuffered(String filename, byte[] buffer, int width, int height) throws IOException {
+        try (FileOutputStream fout = new FileOutputStream(new File(filename))) {
+            int[] header = {0, 0, 2, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+                    width & 255, width >> 8, height & 255, height >> 8, 24, 0};
+            for (int b : header) {
+                fout.write(b);
+            }
+            fout.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intersection kernel of each primitive, for a ray that hits it and a ray that misses it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IntersectionBenchmark {
+
+    private Sphere sphere;
+    private Plane plane;
+    private Triangle triangle;
+    private TriangleMesh mesh;
+
+    private Vec3f origin;
+    private Vec3f hitDir;
+    private Vec3f missDir;
+    private Vec3f planeHitDir;
+
+    @Setup
+    public void setup() {
+        Material mat = JavaTga.red;
+        sphere = new Sphere(new Vec3f(0f, 0f, -5f), 1f, mat);
+        plane = new Plane(new Vec3f(0f, -1f, 0f), new Vec3f(0f, 1f, 0f), mat);
+        Vec3f a = new Vec3f(-1f, -1f, -5f), b = new Vec3f(1f, -1f, -5f), c = new Vec3f(0f, 1f, -5f);
+        triangle = new Triangle(a, b, c, mat);
+        mesh = new TriangleMesh();
+        mesh.addTriangle(a, b, c, mat);
+
+        origin = new Vec3f(0f, 0f, 0f);
+        hitDir = Vec3f.normalize(new Vec3f(0.05f, 0.02f, -1f));
+        missDir = Vec3f.normalize(new Vec3f(0f, 1f, 0.2f));
+        planeHitDir = Vec3f.normalize(new Vec3f(0.1f, -1f, -1f));
+    }
+
+    @Benchmark
+    public float sphereHit() {
+        return sphere.getIntersection(origin, hitDir);
+    }
+
+    @Benchmark
+    public float sphereMiss() {
+        return sphere.getIntersection(origin, missDir);
+    }
+
+    @Benchmark
+    public float planeHit() {
+        return plane.getIntersection(origin, planeHitDir);
+    }
+
+    @Benchmark
+    public float planeMiss() {
+        return plane.getIntersection(origin, missDir);
+    }
+
+    @Benchmark
+    public float triangleHit() {
+        return triangle.getIntersection(origin, hitDir);
+    }
+
+    @Benchmark
+    public float triangleMiss() {
+        return triangle.getIntersection(origin, missDir);
+    }
+
+    @Benchmark
+    public float meshFaceHit() {
+        return mesh.getIntersection(0, origin, hitDir);
+    }
+
+    @Benchmark
+    public float meshFaceMiss() {
+        return mesh.getIntersection(0, origin, missDir);
+    }
+}
@@ -0,0 +1,94 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scalar and SIMD intersection kernels : one ray against 1024 primitives, and a packet of
+ * 1024 rays against one primitive. Scores are per ray-primitive test. KernelsTest checks
+ * that the kernels agree with {@link Triangle#getIntersection} and {@link Sphere#getIntersection}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-modules=jdk.incubator.vector")
+@State(Scope.Thread)
+public class KernelBenchmark {
+    private static final int N = 1024;
+
+    @Param({"scalar", "vector"})
+    public String kernels;
+
+    private IntersectionKernels k;
+    private TrianglePack trianglePack;
+    private SpherePack spherePack;
+    private RayPacket packet;
+    private Vec3f origin;
+    private Vec3f dir;
+    private final float[] t = new float[N];
+
+    @Setup
+    public void setup() {
+        k = kernels.equals("scalar") ? IntersectionKernels.scalar() : IntersectionKernels.best();
+        if (kernels.equals("vector") && k instanceof ScalarKernels) {
+            throw new IllegalStateException("Vector API not available, run with --add-modules jdk.incubator.vector");
+        }
+
+        // primitives en vrac devant la camera, une sur quatre environ touchee
+        Random random = new Random(1);
+        trianglePack = new TrianglePack();
+        spherePack = new SpherePack();
+        for (int i = 0; i < N; i++) {
+            Vec3f c = new Vec3f(random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, -3 - random.nextFloat() * 4);
+            trianglePack.add(new Triangle(c,
+                    new Vec3f(c.x + random.nextFloat(), c.y + random.nextFloat() * 0.3f, c.z),
+                    new Vec3f(c.x, c.y + random.nextFloat(), c.z + random.nextFloat() * 0.5f), JavaTga.red));
+            spherePack.add(new Sphere(c, random.nextFloat() * 0.5f + 0.05f, JavaTga.red));
+        }
+        origin = new Vec3f(0, 0, 0);
+        dir = Vec3f.normalize(new Vec3f(0.1f, 0.1f, -1));
+        packet = RayPacket.camera(new Camera(), 32, 32, 0, 0, 32, 32);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public float[] rayTriangles() {
+        k.intersect(trianglePack, 0, N, origin, dir, t);
+        return t;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public float[] raySpheres() {
+        k.intersect(spherePack, 0, N, origin, dir, t);
+        return t;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public float[] packetTriangle() {
+        k.intersect(packet, 0, N, trianglePack, 7, t);
+        return t;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(N)
+    public float[] packetSphere() {
+        k.intersect(packet, 0, N, spherePack, 7, t);
+        return t;
+    }
+}
@@ -0,0 +1,123 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads a generated OBJ grid of a few million faces with {@link ObjLoader}, against a
+ * line by line reader building one {@link Triangle} per face. The peak heap of every
+ * iteration is printed.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class ObjLoaderBenchmark {
+
+    /** the grid has side x side quads, that is 2 side^2 faces */
+    @Param({"1000"})
+    public int side;
+
+    private Path file;
+
+    @Setup
+    public void setup() throws IOException {
+        file = Files.createTempFile("grid", ".obj");
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.US_ASCII)) {
+            for (int j = 0; j <= side; j++) {
+                for (int i = 0; i <= side; i++) {
+                    float x = (float) i / side, z = (float) j / side;
+                    float y = (float) (0.05 * Math.sin(20 * x) * Math.cos(20 * z));
+                    out.write(String.format(Locale.ROOT, "v %.6f %.6f %.6f%n", x, y, -z));
+                }
+            }
+            for (int j = 0; j < side; j++) {
+                for (int i = 0; i < side; i++) {
+                    int a = j * (side + 1) + i + 1;
+                    out.write("f " + a + " " + (a + 1) + " " + (a + side + 2) + " " + (a + side + 1) + "\n");
+                }
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(file);
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPeak() {
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void printPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        System.out.printf(" (peak heap %d MB)", peak >> 20);
+    }
+
+    @Benchmark
+    public TriangleMesh objLoader() throws IOException {
+        return new ObjLoader().load(file);
+    }
+
+    /**
+     * Reading a line at a time with String.split, one Triangle per face.
+     */
+    @Benchmark
+    public List<Geometry> splitTriangles() throws IOException {
+        List<Vec3f> vertices = new ArrayList<>();
+        List<Geometry> triangles = new ArrayList<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.US_ASCII)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] t = line.split("\\s+");
+                if (t[0].equals("v")) {
+                    vertices.add(new Vec3f(Float.parseFloat(t[1]), Float.parseFloat(t[2]), Float.parseFloat(t[3])));
+                } else if (t[0].equals("f")) {
+                    for (int k = 2; k + 1 < t.length; k++) {
+                        triangles.add(new Triangle(vertices.get(Integer.parseInt(t[1].split("/")[0]) - 1),
+                                vertices.get(Integer.parseInt(t[k].split("/")[0]) - 1),
+                                vertices.get(Integer.parseInt(t[k + 1].split("/")[0]) - 1), JavaTga.grey));
+                    }
+                }
+            }
+        }
+        return triangles;
+    }
+}
@@ -0,0 +1,61 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders each scene of {@link JavaTga} at a reduced resolution. One operation is one
+ * camera ray, so the scores read as camera rays per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SceneBenchmark {
+    static final int W = 256, H = 192;
+
+    @Param({"simple", "mirrorPalace", "refraction", "reflexion", "damierReflection", "damierRefraction", "forest"})
+    public String scene;
+
+    private Scene compiled;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        compiled = Scenes.build(scene);
+        buffer = new byte[3 * W * H];
+    }
+
+    /**
+     * Whole renderer : scene traced by blocks on every core.
+     */
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public byte[] render() throws InterruptedException {
+        return JavaTga.render(compiled, W, H, 32);
+    }
+
+    /**
+     * findColor alone, on the calling thread.
+     */
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public byte[] findColorSingleThread() {
+        JavaTga.renderBlock(compiled, buffer, W, H, 0, 0, W, H);
+        return buffer;
+    }
+}
@@ -0,0 +1,34 @@
+package fr.florian;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Scene builders of {@link JavaTga}, by benchmark parameter name.
+ */
+final class Scenes {
+
+    private Scenes() {
+    }
+
+    static BiConsumer<List<Geometry>, List<Light>> builder(String name) {
+        return switch (name) {
+            case "simple" -> JavaTga::drawSimpleScene;
+            case "mirrorPalace" -> JavaTga::drawMirrorPalaceScene;
+            case "refraction" -> JavaTga::drawRefractionScene;
+            case "reflexion" -> JavaTga::drawReflexionScene;
+            case "damierReflection" -> JavaTga::drawDamierReflectionScene;
+            case "damierRefraction" -> JavaTga::drawDamierRefractionScene;
+            case "forest" -> JavaTga::drawForestScene;
+            default -> throw new IllegalArgumentException("unknown scene " + name);
+        };
+    }
+
+    static Scene build(String name) {
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        builder(name).accept(objects, lights);
+        return new Scene(objects, lights);
+    }
+}
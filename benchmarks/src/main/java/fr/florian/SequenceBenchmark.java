@@ -0,0 +1,77 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done between two frames of the forest animation of {@link SequenceRenderer},
+ * before any ray is traced : moving the objects, then rebuilding the whole scene or
+ * refitting the hierarchy of the moving objects only.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SequenceBenchmark {
+
+    @Param({"rebuild", "refit"})
+    public String update;
+
+    private SequenceRenderer.ForestAnimation animation;
+    private List<Geometry> objects, moving, all;
+    private List<Light> lights;
+    private Scene scene;
+    private int frame;
+
+    @Setup
+    public void setup() {
+        animation = new SequenceRenderer.ForestAnimation();
+        objects = new ArrayList<>();
+        moving = new ArrayList<>();
+        lights = new ArrayList<>();
+        animation.build(objects, moving, lights);
+        Camera camera = animation.update(0, 0);
+        scene = new Scene(objects, moving, lights, camera);
+        all = new ArrayList<>(objects);
+        all.addAll(moving);
+
+        // les deux chemins voient les memes objets aux memes distances
+        animation.update(10, 0.5f);
+        scene.refit();
+        Scene rebuilt = new Scene(all, lights, camera);
+        Hit a = new Hit(), b = new Hit();
+        for (int i = 0; i < 1000; i++) {
+            Vec3f dir = new Vec3f((i % 40 - 20) / 20f, (i / 40 - 20) / 50f, -1).normalizeLocal();
+            boolean ha = scene.intersect(camera.position, dir, a), hb = rebuilt.intersect(camera.position, dir, b);
+            if (ha != hb || ha && (a.t != b.t || a.object != b.object)) {
+                throw new IllegalStateException("refitted scene differs from the rebuilt one on ray " + i);
+            }
+        }
+    }
+
+    @Benchmark
+    public Scene nextFrame() {
+        frame++;
+        Camera camera = animation.update(frame, frame / 24f);
+        if (update.equals("rebuild")) {
+            return new Scene(all, lights, camera);
+        }
+        scene.refit();
+        return scene.withCamera(camera);
+    }
+}
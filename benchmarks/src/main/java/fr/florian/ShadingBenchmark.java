@@ -0,0 +1,64 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the Phong loop of {@link JavaTga#findColor} : relighting a {@link GBuffer} under
+ * the lights it was captured with, so that neither camera rays nor shadow rays of the
+ * camera hits are traced, against a full render of the same scene.
+ * <p>
+ * Setup checks that the relit image is the rendered one.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShadingBenchmark {
+    static final int W = 512, H = 384;
+
+    @Param({"simple", "damierReflection", "forest"})
+    public String scene;
+
+    private Scene compiled;
+    private GBuffer gbuffer;
+
+    @Setup
+    public void setup() {
+        compiled = Scenes.build(scene);
+        gbuffer = GBuffer.capture(compiled, W, H, 32);
+        if (!Arrays.equals(gbuffer.relight(compiled.lights), JavaTga.render(compiled, W, H, 32))) {
+            throw new IllegalStateException("relit image differs from the rendered one");
+        }
+    }
+
+    @Benchmark
+    public byte[] relight() {
+        return gbuffer.relight(compiled.lights);
+    }
+
+    @Benchmark
+    public byte[] render() {
+        return JavaTga.render(compiled, W, H, 32);
+    }
+
+    @TearDown
+    public void close() {
+        gbuffer.close();
+    }
+}
@@ -0,0 +1,52 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ray tree termination : renders the scenes with reflective or transparent materials,
+ * tracing every secondary ray up to MAX_DEPTH (minWeight = 0) or stopping once a ray
+ * weighs less than minWeight, with or without Russian roulette. TerminationTest checks
+ * that these images do not differ visibly from the full render.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TerminationBenchmark {
+    static final int W = 512, H = 384;
+
+    @Param({"mirrorPalace", "refraction", "damierRefraction"})
+    public String scene;
+
+    @Param({"0", "0.001953125"})
+    public float minWeight;
+
+    @Param({"false", "true"})
+    public boolean russianRoulette;
+
+    private Scene compiled;
+
+    @Setup
+    public void setup() {
+        compiled = Scenes.build(scene).withTermination(minWeight, russianRoulette);
+    }
+
+    @Benchmark
+    public byte[] render() {
+        return JavaTga.render(compiled, W, H, 32);
+    }
+}
@@ -0,0 +1,69 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vector math, allocating operations against their in-place counterparts.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Vec3fBenchmark {
+
+    private final Vec3f a = new Vec3f(0.3f, -1.2f, 2.5f);
+    private final Vec3f b = new Vec3f(-0.7f, 0.4f, 1.1f);
+    private final Vec3f out = new Vec3f(0f, 0f, 0f);
+
+    @Benchmark
+    public Vec3f add() {
+        return a.add(b);
+    }
+
+    @Benchmark
+    public Vec3f addLocal() {
+        return out.set(a).addLocal(b);
+    }
+
+    @Benchmark
+    public float dot() {
+        return a.dot(b);
+    }
+
+    @Benchmark
+    public Vec3f cross() {
+        return a.cross(b);
+    }
+
+    @Benchmark
+    public Vec3f crossLocal() {
+        return out.crossLocal(a, b);
+    }
+
+    @Benchmark
+    public Vec3f normalize() {
+        return Vec3f.normalize(a);
+    }
+
+    @Benchmark
+    public Vec3f normalizeLocal() {
+        return out.set(a).normalizeLocal();
+    }
+
+    @Benchmark
+    public Vec3f reflect() {
+        return Vec3f.reflect(a, b);
+    }
+}
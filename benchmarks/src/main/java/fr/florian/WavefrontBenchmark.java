@@ -0,0 +1,85 @@
+package fr.florian;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recursive findColor against the {@link WavefrontRenderer}, on every scene of {@link JavaTga}.
+ * One operation is one camera ray, so the scores read as camera rays per second.
+ * WavefrontRendererTest checks that both engines give the same images.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WavefrontBenchmark {
+    static final int W = 256, H = 192;
+
+    @Param({"simple", "mirrorPalace", "refraction", "reflexion", "damierReflection", "damierRefraction",
+            "forest"})
+    public String scene;
+
+    /** side of the tiles, one wavefront each */
+    @Param({"64"})
+    public int tileSize;
+
+    private Scene compiled;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() {
+        compiled = Scenes.build(scene);
+        buffer = new byte[3 * W * H];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public byte[] recursive() {
+        return JavaTga.render(compiled, W, H, tileSize);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public byte[] wavefront() {
+        return WavefrontRenderer.render(compiled, W, H, tileSize);
+    }
+
+    /**
+     * Both engines on the calling thread, tile by tile.
+     */
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public byte[] recursiveSingleThread() {
+        for (int y = 0; y < H; y += tileSize) {
+            for (int x = 0; x < W; x += tileSize) {
+                JavaTga.renderBlock(compiled, buffer, W, H, x, y, Math.min(x + tileSize, W), Math.min(y + tileSize, H));
+            }
+        }
+        return buffer;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(W * H)
+    public byte[] wavefrontSingleThread() {
+        for (int y = 0; y < H; y += tileSize) {
+            for (int x = 0; x < W; x += tileSize) {
+                WavefrontRenderer.renderTile(compiled, buffer, W, H, x, y, Math.min(x + tileSize, W), Math.min(y + tileSize, H));
+            }
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,60 @@
+package fr.florian;
+
+/**
+ * Axis-aligned bounding box.
+ */
+public class AABB {
+    public final Vec3f min, max;
+
+    public AABB(Vec3f min, Vec3f max) {
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * @return an empty box, neutral element for {@link #grow}
+     */
+    public static AABB empty() {
+        return new AABB(
+                new Vec3f(Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY),
+                new Vec3f(Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY));
+    }
+
+    /**
+     * Grows this box so that it contains the point p.
+     */
+    public AABB grow(Vec3f p) {
+        min.x = Math.min(min.x, p.x); max.x = Math.max(max.x, p.x);
+        min.y = Math.min(min.y, p.y); max.y = Math.max(max.y, p.y);
+        min.z = Math.min(min.z, p.z); max.z = Math.max(max.z, p.z);
+        return this;
+    }
+
+    /**
+     * Grows this box so that it contains the box b.
+     */
+    public AABB grow(AABB b) {
+        min.x = Math.min(min.x, b.min.x); max.x = Math.max(max.x, b.max.x);
+        min.y = Math.min(min.y, b.min.y); max.y = Math.max(max.y, b.max.y);
+        min.z = Math.min(min.z, b.min.z); max.z = Math.max(max.z, b.max.z);
+        return this;
+    }
+
+    public Vec3f centroid() {
+        return new Vec3f((min.x + max.x) * 0.5f, (min.y + max.y) * 0.5f, (min.z + max.z) * 0.5f);
+    }
+
+    /**
+     * @return surface area of the box, 0 if empty
+     */
+    public float surfaceArea() {
+        float dx = max.x - min.x, dy = max.y - min.y, dz = max.z - min.z;
+        if (dx < 0 || dy < 0 || dz < 0) return 0;
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    @Override
+    public String toString() {
+        return "AABB(" + min + ", " + max + ")";
+    }
+}
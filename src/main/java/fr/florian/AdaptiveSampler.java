@@ -0,0 +1,195 @@
+package fr.florian;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive supersampling anti-aliasing.
+ * <p>
+ * Every pixel first receives a small base number of samples. A pixel is refined, up to the
+ * maximum number of samples, only if its samples disagree (a channel varies by more than
+ * the threshold) or if one of its four neighbours sees another object or material with its
+ * camera ray. Sample positions follow an R2 low-discrepancy sequence whose first point is
+ * the pixel position used without anti-aliasing, so refinement reuses the base samples.
+ * <p>
+ * One instance renders one image and keeps the statistics of the samples it spent.
+ */
+public class AdaptiveSampler {
+    // suite R2 (nombre plastique)
+    private static final double R2_X = 0.7548776662466927;
+    private static final double R2_Y = 0.5698402909980532;
+
+    public final int baseSamples;
+    public final int maxSamples;
+    public final float threshold;
+
+    private final LongAdder pixels = new LongAdder();
+    private final LongAdder refinedPixels = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+
+    /**
+     * @param baseSamples samples shot in every pixel (at least 1)
+     * @param maxSamples samples of a refined pixel, at least baseSamples
+     * @param threshold per-channel difference, in [0, 1], above which samples disagree
+     */
+    public AdaptiveSampler(int baseSamples, int maxSamples, float threshold) {
+        if (baseSamples < 1 || maxSamples < baseSamples) {
+            throw new IllegalArgumentException("need 1 <= baseSamples <= maxSamples");
+        }
+        this.baseSamples = baseSamples;
+        this.maxSamples = maxSamples;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Ray traces the pixels [x0, x1) x [y0, y1) of the image into buffer. Safe to call
+     * concurrently on disjoint tiles.
+     *
+     * @param buffer image buffer of w x h pixels, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public void renderTile(Scene scene, byte[] buffer, int w, int h, int x0, int y0, int x1, int y1) {
+        TraceContext ctx = TraceContext.get();
+        Hit primary = ctx.frame(0).hit;
+        int tw = x1 - x0, th = y1 - y0;
+
+        // objet et materiau vus par chaque pixel de la tuile et de sa bordure d'un pixel
+        int aw = tw + 2, ah = th + 2;
+        Geometry[] object = new Geometry[aw * ah];
+        Material[] material = new Material[aw * ah];
+        boolean[] valid = new boolean[aw * ah];
+        float[] sum = new float[3 * tw * th];
+        boolean[] disagree = new boolean[tw * th];
+        long spent = 0;
+
+        for (int ay = 0; ay < ah; ay++) {
+            for (int ax = 0; ax < aw; ax++) {
+                int col = x0 + ax - 1, row = y0 + ay - 1;
+                if (col < 0 || row < 0 || col >= w || row >= h) continue;
+                int a = ay * aw + ax;
+                valid[a] = true;
+                boolean inside = ax > 0 && ay > 0 && ax <= tw && ay <= th;
+                if (!inside) {
+                    // bordure : rayon primaire seul, sans ombrage
+                    Vec3f dir = scene.camera.direction(ctx.rayDir, w, h, col, row);
+                    if (RenderStats.ENABLED) ctx.counters[RenderStats.PRIMARY]++;
+                    if (scene.intersect(ctx.rayOrigin.set(scene.camera.position), dir, primary,
+                            ctx.stack(scene.getStackSize()), ctx.counters)) {
+                        object[a] = primary.object;
+                        material[a] = primary.material;
+                    }
+                    continue;
+                }
+
+                int p = (ay - 1) * tw + (ax - 1);
+                float minR = Float.MAX_VALUE, minG = Float.MAX_VALUE, minB = Float.MAX_VALUE;
+                float maxR = -1, maxG = -1, maxB = -1;
+                for (int s = 0; s < baseSamples; s++) {
+                    Vec3f c = sample(ctx, scene, w, h, col, row, s);
+                    if (s == 0) {
+                        object[a] = primary.object;
+                        material[a] = primary.material;
+                    }
+                    sum[3 * p] += c.x;
+                    sum[3 * p + 1] += c.y;
+                    sum[3 * p + 2] += c.z;
+                    minR = Math.min(minR, c.x); maxR = Math.max(maxR, c.x);
+                    minG = Math.min(minG, c.y); maxG = Math.max(maxG, c.y);
+                    minB = Math.min(minB, c.z); maxB = Math.max(maxB, c.z);
+                }
+                spent += baseSamples;
+                disagree[p] = maxR - minR > threshold || maxG - minG > threshold || maxB - minB > threshold;
+            }
+        }
+
+        long refined = 0;
+        for (int ty = 0; ty < th; ty++) {
+            for (int tx = 0; tx < tw; tx++) {
+                int p = ty * tw + tx;
+                int col = x0 + tx, row = y0 + ty;
+                int samplesHere = baseSamples;
+                if (maxSamples > baseSamples && (disagree[p] || edge(object, material, valid, aw, tx + 1, ty + 1))) {
+                    for (int s = baseSamples; s < maxSamples; s++) {
+                        Vec3f c = sample(ctx, scene, w, h, col, row, s);
+                        sum[3 * p] += c.x;
+                        sum[3 * p + 1] += c.y;
+                        sum[3 * p + 2] += c.z;
+                    }
+                    spent += maxSamples - baseSamples;
+                    samplesHere = maxSamples;
+                    refined++;
+                }
+
+                int index = 3 * ((row * w) + col);
+                buffer[index] = (byte) (sum[3 * p + 2] / samplesHere * 255);
+                buffer[index + 1] = (byte) (sum[3 * p + 1] / samplesHere * 255);
+                buffer[index + 2] = (byte) (sum[3 * p] / samplesHere * 255);
+            }
+        }
+
+        pixels.add((long) tw * th);
+        refinedPixels.add(refined);
+        samples.add(spent);
+    }
+
+    /**
+     * Traces sample number s of pixel (col, row).
+     *
+     * @return the color clamped to [0, 1], held by ctx until its next use
+     */
+    private static Vec3f sample(TraceContext ctx, Scene scene, int w, int h, int col, int row, int s) {
+        float dx = 0, dy = 0;
+        if (s > 0) {
+            dx = (float) (frac(0.5 + s * R2_X) - 0.5);
+            dy = (float) (frac(0.5 + s * R2_Y) - 0.5);
+        }
+        Vec3f c = JavaTga.tracePixel(ctx, scene, w, h, col + dx, row + dy);
+        c.x = Math.min(1, c.x);
+        c.y = Math.min(1, c.y);
+        c.z = Math.min(1, c.z);
+        return c;
+    }
+
+    private static double frac(double x) {
+        return x - Math.floor(x);
+    }
+
+    /**
+     * @return true if a 4-neighbour of (ax, ay) in the apron arrays sees another object or material
+     */
+    private static boolean edge(Geometry[] object, Material[] material, boolean[] valid, int aw, int ax, int ay) {
+        int a = ay * aw + ax;
+        return differs(object, material, valid, a, a - 1) || differs(object, material, valid, a, a + 1)
+                || differs(object, material, valid, a, a - aw) || differs(object, material, valid, a, a + aw);
+    }
+
+    private static boolean differs(Geometry[] object, Material[] material, boolean[] valid, int a, int b) {
+        return valid[b] && (object[a] != object[b] || material[a] != material[b]);
+    }
+
+    public long getPixelCount() {
+        return pixels.sum();
+    }
+
+    public long getRefinedPixelCount() {
+        return refinedPixels.sum();
+    }
+
+    public long getSampleCount() {
+        return samples.sum();
+    }
+
+    /**
+     * @return mean number of camera rays per pixel actually spent
+     */
+    public double getSamplesPerPixel() {
+        long n = pixels.sum();
+        return n == 0 ? 0 : (double) samples.sum() / n;
+    }
+
+    @Override
+    public String toString() {
+        long n = pixels.sum();
+        return String.format("%d pixels, %d refined (%.1f%%), %d samples, %.2f samples/pixel (max %d)",
+                n, refinedPixels.sum(), n == 0 ? 0.0 : 100.0 * refinedPixels.sum() / n,
+                samples.sum(), getSamplesPerPixel(), maxSamples);
+    }
+}
@@ -0,0 +1,434 @@
+package fr.florian;
+
+/**
+ * Bounding volume hierarchy built with the surface area heuristic (binned).
+ * <p>
+ * Nodes are stored in flat arrays, the two children of an inner node are adjacent.
+ * The hierarchy only knows primitive indices, intersection of the leaves is delegated
+ * to {@link Primitives}.
+ */
+public class BVH {
+
+    /**
+     * Set of bounded primitives indexed by a BVH.
+     */
+    public interface Primitives {
+        int size();
+
+        AABB getBoundingBox(int i);
+
+        /**
+         * Intersects primitive i and records it in hit if it is closer.
+         */
+        void intersect(int i, Vec3f P, Vec3f v, Hit hit);
+
+        /**
+         * @return true if primitive i is hit at EPS &lt; t &lt; maxT
+         */
+        boolean occludes(int i, Vec3f P, Vec3f v, float maxT);
+
+        /**
+         * Same as {@link #intersect(int, Vec3f, Vec3f, Hit)}, counting the test into the
+         * {@link RenderStats} counters of the calling thread when they are given.
+         */
+        default void intersect(int i, Vec3f P, Vec3f v, Hit hit, long[] counters) {
+            intersect(i, P, v, hit);
+        }
+
+        /**
+         * Same as {@link #occludes(int, Vec3f, Vec3f, float)}, counting the test.
+         */
+        default boolean occludes(int i, Vec3f P, Vec3f v, float maxT, long[] counters) {
+            return occludes(i, P, v, maxT);
+        }
+    }
+
+    private static final int BINS = 16;
+    private static final int MAX_LEAF_SIZE = 8;
+    private static final float TRAVERSAL_COST = 1f;
+    private static final float INTERSECTION_COST = 1f;
+    /** slab exit is widened by this factor to absorb rounding errors (robust ray/box test) */
+    private static final float PAD = 1 + 2 * 3 * Math.ulp(1f);
+
+    private final Primitives prims;
+    /** 6 floats per node : min x,y,z then max x,y,z */
+    private float[] bounds;
+    /** inner node : index of the left child (right is left + 1), leaf : first index in order */
+    private int[] child;
+    /** number of primitives in a leaf, 0 for inner nodes */
+    private int[] count;
+    /** primitive indices, each leaf references a slice */
+    private final int[] order;
+    private int nodeCount;
+    private int depth;
+
+    // donnees temporaires de construction
+    private float[] primBounds;
+    private float[] centroids;
+
+    public BVH(Primitives prims) {
+        this.prims = prims;
+        int n = prims.size();
+        order = new int[n];
+        if (n == 0) {
+            return;
+        }
+        primBounds = new float[6 * n];
+        centroids = new float[3 * n];
+        for (int i = 0; i < n; i++) {
+            AABB b = prims.getBoundingBox(i);
+            primBounds[6 * i]     = b.min.x;
+            primBounds[6 * i + 1] = b.min.y;
+            primBounds[6 * i + 2] = b.min.z;
+            primBounds[6 * i + 3] = b.max.x;
+            primBounds[6 * i + 4] = b.max.y;
+            primBounds[6 * i + 5] = b.max.z;
+            centroids[3 * i]     = (b.min.x + b.max.x) * 0.5f;
+            centroids[3 * i + 1] = (b.min.y + b.max.y) * 0.5f;
+            centroids[3 * i + 2] = (b.min.z + b.max.z) * 0.5f;
+            order[i] = i;
+        }
+        int maxNodes = 2 * n - 1;
+        bounds = new float[6 * maxNodes];
+        child = new int[maxNodes];
+        count = new int[maxNodes];
+        nodeCount = 1;
+        build(0, 0, n, 1);
+        primBounds = null;
+        centroids = null;
+    }
+
+    /**
+     * Restores a hierarchy saved by {@link SceneCache}, over the same primitives in the same
+     * order. The arrays are used as they are.
+     */
+    BVH(Primitives prims, int nodeCount, int depth, float[] bounds, int[] child, int[] count, int[] order) {
+        if (order.length != prims.size()) {
+            throw new IllegalArgumentException("hierarchy built for " + order.length + " primitives, not " + prims.size());
+        }
+        this.prims = prims;
+        this.nodeCount = nodeCount;
+        this.depth = depth;
+        this.bounds = bounds;
+        this.child = child;
+        this.count = count;
+        this.order = order;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Recomputes the boxes of every node from the current boxes of the primitives, keeping
+     * the tree as it is. Much cheaper than a rebuild when the primitives moved a little ;
+     * after large motions the tree is still correct but slower to traverse.
+     */
+    public void refit() {
+        // les fils sont toujours crees apres leur parent : on remonte depuis le dernier noeud
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            int b = 6 * node;
+            if (count[node] > 0) {
+                bounds[b] = bounds[b + 1] = bounds[b + 2] = Float.POSITIVE_INFINITY;
+                bounds[b + 3] = bounds[b + 4] = bounds[b + 5] = Float.NEGATIVE_INFINITY;
+                for (int i = child[node], end = i + count[node]; i < end; i++) {
+                    AABB box = prims.getBoundingBox(order[i]);
+                    bounds[b] = Math.min(bounds[b], box.min.x);
+                    bounds[b + 1] = Math.min(bounds[b + 1], box.min.y);
+                    bounds[b + 2] = Math.min(bounds[b + 2], box.min.z);
+                    bounds[b + 3] = Math.max(bounds[b + 3], box.max.x);
+                    bounds[b + 4] = Math.max(bounds[b + 4], box.max.y);
+                    bounds[b + 5] = Math.max(bounds[b + 5], box.max.z);
+                }
+            } else {
+                int l = 6 * child[node], r = l + 6;
+                for (int a = 0; a < 3; a++) {
+                    bounds[b + a] = Math.min(bounds[l + a], bounds[r + a]);
+                    bounds[b + a + 3] = Math.max(bounds[l + a + 3], bounds[r + a + 3]);
+                }
+            }
+        }
+    }
+
+    // acces aux tableaux pour la sauvegarde (seuls les getNodeCount() premiers noeuds sont valides)
+    float[] bounds() {
+        return bounds;
+    }
+
+    int[] children() {
+        return child;
+    }
+
+    int[] counts() {
+        return count;
+    }
+
+    int[] order() {
+        return order;
+    }
+
+    private void build(int node, int start, int end, int level) {
+        depth = Math.max(depth, level);
+
+        // boites englobantes du noeud et des centres
+        float[] nb = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        float[] cb = nb.clone();
+        for (int i = start; i < end; i++) {
+            int p = order[i];
+            for (int a = 0; a < 3; a++) {
+                nb[a] = Math.min(nb[a], primBounds[6 * p + a]);
+                nb[a + 3] = Math.max(nb[a + 3], primBounds[6 * p + a + 3]);
+                cb[a] = Math.min(cb[a], centroids[3 * p + a]);
+                cb[a + 3] = Math.max(cb[a + 3], centroids[3 * p + a]);
+            }
+        }
+        System.arraycopy(nb, 0, bounds, 6 * node, 6);
+
+        int n = end - start;
+        if (n == 1) {
+            makeLeaf(node, start, n);
+            return;
+        }
+
+        // recherche du meilleur plan de coupe par intervalles (SAH)
+        float nodeArea = area(nb, 0);
+        float bestCost = Float.POSITIVE_INFINITY;
+        int bestAxis = -1, bestBin = -1;
+        int[] binCount = new int[BINS];
+        float[] binBounds = new float[6 * BINS];
+        float[] rightArea = new float[BINS];
+        for (int axis = 0; axis < 3; axis++) {
+            float cmin = cb[axis], extent = cb[axis + 3] - cmin;
+            if (extent <= 0) continue;
+
+            java.util.Arrays.fill(binCount, 0);
+            for (int b = 0; b < BINS; b++) resetBounds(binBounds, b);
+            for (int i = start; i < end; i++) {
+                int p = order[i];
+                int b = bin(centroids[3 * p + axis], cmin, extent);
+                binCount[b]++;
+                growBounds(binBounds, b, primBounds, p);
+            }
+
+            // balayage de droite a gauche puis de gauche a droite
+            float[] acc = new float[6];
+            resetBounds(acc, 0);
+            for (int b = BINS - 1; b > 0; b--) {
+                growBounds(acc, 0, binBounds, b);
+                rightArea[b] = area(acc, 0);
+            }
+            resetBounds(acc, 0);
+            int leftCount = 0;
+            for (int b = 0; b < BINS - 1; b++) {
+                growBounds(acc, 0, binBounds, b);
+                leftCount += binCount[b];
+                int rightCount = n - leftCount;
+                if (leftCount == 0 || rightCount == 0) continue;
+                float cost = TRAVERSAL_COST + INTERSECTION_COST
+                        * (area(acc, 0) * leftCount + rightArea[b + 1] * rightCount) / nodeArea;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b;
+                }
+            }
+        }
+
+        int mid;
+        if (bestAxis >= 0 && (bestCost < INTERSECTION_COST * n || n > MAX_LEAF_SIZE)) {
+            float cmin = cb[bestAxis], extent = cb[bestAxis + 3] - cmin;
+            int i = start, j = end - 1;
+            while (i <= j) {
+                if (bin(centroids[3 * order[i] + bestAxis], cmin, extent) <= bestBin) {
+                    i++;
+                } else {
+                    int tmp = order[i]; order[i] = order[j]; order[j] = tmp;
+                    j--;
+                }
+            }
+            mid = i;
+        } else if (n > MAX_LEAF_SIZE) {
+            // centres confondus : coupe au milieu pour borner la taille des feuilles
+            mid = start + n / 2;
+        } else {
+            makeLeaf(node, start, n);
+            return;
+        }
+
+        int left = nodeCount;
+        nodeCount += 2;
+        child[node] = left;
+        count[node] = 0;
+        build(left, start, mid, level + 1);
+        build(left + 1, mid, end, level + 1);
+    }
+
+    private void makeLeaf(int node, int start, int n) {
+        child[node] = start;
+        count[node] = n;
+    }
+
+    private static int bin(float c, float cmin, float extent) {
+        int b = (int) ((c - cmin) / extent * BINS);
+        return Math.min(b, BINS - 1);
+    }
+
+    private static void resetBounds(float[] dst, int i) {
+        for (int a = 0; a < 3; a++) {
+            dst[6 * i + a] = Float.POSITIVE_INFINITY;
+            dst[6 * i + a + 3] = Float.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void growBounds(float[] dst, int i, float[] src, int j) {
+        for (int a = 0; a < 3; a++) {
+            dst[6 * i + a] = Math.min(dst[6 * i + a], src[6 * j + a]);
+            dst[6 * i + a + 3] = Math.max(dst[6 * i + a + 3], src[6 * j + a + 3]);
+        }
+    }
+
+    private static float area(float[] b, int i) {
+        float dx = b[6 * i + 3] - b[6 * i], dy = b[6 * i + 4] - b[6 * i + 1], dz = b[6 * i + 5] - b[6 * i + 2];
+        if (dx < 0 || dy < 0 || dz < 0) return 0;
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    /**
+     * Slab test against a node.
+     *
+     * @return entry distance of the ray in the node, or +infinity if it misses before maxT
+     */
+    private float enter(int node, Vec3f P, float ix, float iy, float iz, float maxT) {
+        int o = 6 * node;
+        float t0 = 0, t1 = maxT;
+        float a = (bounds[o] - P.x) * ix, b = (bounds[o + 3] - P.x) * ix;
+        if (a > b) { float tmp = a; a = b; b = tmp; }
+        if (a > t0) t0 = a;
+        if (b * PAD < t1) t1 = b * PAD;
+        a = (bounds[o + 1] - P.y) * iy; b = (bounds[o + 4] - P.y) * iy;
+        if (a > b) { float tmp = a; a = b; b = tmp; }
+        if (a > t0) t0 = a;
+        if (b * PAD < t1) t1 = b * PAD;
+        a = (bounds[o + 2] - P.z) * iz; b = (bounds[o + 5] - P.z) * iz;
+        if (a > b) { float tmp = a; a = b; b = tmp; }
+        if (a > t0) t0 = a;
+        if (b * PAD < t1) t1 = b * PAD;
+        return t0 <= t1 ? t0 : Float.POSITIVE_INFINITY;
+    }
+
+    /**
+     * @return size of the stack needed by the traversals
+     */
+    public int getStackSize() {
+        return depth + 1;
+    }
+
+    /**
+     * Finds the closest primitive hit by the ray P + t v, starting from the current content of hit.
+     */
+    public void intersect(Vec3f P, Vec3f v, Hit hit) {
+        intersect(P, v, hit, new int[getStackSize()]);
+    }
+
+    /**
+     * Same as {@link #intersect(Vec3f, Vec3f, Hit)}, with a caller-owned traversal stack
+     * of at least {@link #getStackSize()} entries.
+     */
+    public void intersect(Vec3f P, Vec3f v, Hit hit, int[] stack) {
+        intersect(P, v, hit, stack, null);
+    }
+
+    /**
+     * @param counters {@link RenderStats} counters of the calling thread, or null
+     */
+    void intersect(Vec3f P, Vec3f v, Hit hit, int[] stack, long[] counters) {
+        if (nodeCount == 0) return;
+        float ix = 1 / v.x, iy = 1 / v.y, iz = 1 / v.z;
+        // la distance courante est elargie elle aussi : un noeud a egalite doit etre visite
+        if (enter(0, P, ix, iy, iz, hit.t * PAD) == Float.POSITIVE_INFINITY) return;
+
+        int sp = 0;
+        int node = 0;
+        while (true) {
+            if (count[node] > 0) {
+                for (int i = child[node], end = i + count[node]; i < end; i++) {
+                    prims.intersect(order[i], P, v, hit, counters);
+                }
+            } else {
+                int left = child[node], right = left + 1;
+                float tl = enter(left, P, ix, iy, iz, hit.t * PAD);
+                float tr = enter(right, P, ix, iy, iz, hit.t * PAD);
+                if (tl != Float.POSITIVE_INFINITY && tr != Float.POSITIVE_INFINITY) {
+                    // fils le plus proche d'abord
+                    if (tr < tl) { node = right; stack[sp++] = left; }
+                    else { node = left; stack[sp++] = right; }
+                    continue;
+                } else if (tl != Float.POSITIVE_INFINITY) {
+                    node = left;
+                    continue;
+                } else if (tr != Float.POSITIVE_INFINITY) {
+                    node = right;
+                    continue;
+                }
+            }
+            // depilement, en ignorant les noeuds devenus trop lointains
+            do {
+                if (sp == 0) return;
+                node = stack[--sp];
+            } while (enter(node, P, ix, iy, iz, hit.t * PAD) == Float.POSITIVE_INFINITY);
+        }
+    }
+
+    /**
+     * @return true as soon as any primitive is hit at EPS &lt; t &lt; maxT
+     */
+    public boolean occluded(Vec3f P, Vec3f v, float maxT) {
+        return occluded(P, v, maxT, new int[getStackSize()]);
+    }
+
+    /**
+     * Same as {@link #occluded(Vec3f, Vec3f, float)}, with a caller-owned traversal stack
+     * of at least {@link #getStackSize()} entries.
+     */
+    public boolean occluded(Vec3f P, Vec3f v, float maxT, int[] stack) {
+        return findOccluder(P, v, maxT, stack) >= 0;
+    }
+
+    /**
+     * Any-hit query : stops at the first primitive hit at EPS &lt; t &lt; maxT.
+     *
+     * @param stack traversal stack of at least {@link #getStackSize()} entries
+     * @return index of that primitive, -1 if the segment is free
+     */
+    public int findOccluder(Vec3f P, Vec3f v, float maxT, int[] stack) {
+        return findOccluder(P, v, maxT, stack, null);
+    }
+
+    /**
+     * @param counters {@link RenderStats} counters of the calling thread, or null
+     */
+    int findOccluder(Vec3f P, Vec3f v, float maxT, int[] stack, long[] counters) {
+        if (nodeCount == 0) return -1;
+        float ix = 1 / v.x, iy = 1 / v.y, iz = 1 / v.z;
+        int sp = 0;
+        stack[sp++] = 0;
+        while (sp > 0) {
+            int node = stack[--sp];
+            if (enter(node, P, ix, iy, iz, maxT * PAD) == Float.POSITIVE_INFINITY) continue;
+            if (count[node] > 0) {
+                for (int i = child[node], end = i + count[node]; i < end; i++) {
+                    if (prims.occludes(order[i], P, v, maxT, counters)) return order[i];
+                }
+            } else {
+                stack[sp++] = child[node] + 1;
+                stack[sp++] = child[node];
+            }
+        }
+        return -1;
+    }
+}
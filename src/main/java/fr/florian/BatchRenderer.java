@@ -0,0 +1,284 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Renders many images at once on one long-lived pool.
+ * <p>
+ * At most {@code maxJobs} jobs are started at once : a started job has its scene built and
+ * its image allocated, the others wait unbuilt, highest priority first, and the next one
+ * starts as soon as a job completes. The scenes of the started jobs are built in parallel,
+ * then the tiles of every job go to a single priority queue : higher priority jobs first, then jobs in submission order, and
+ * within a job the most expensive tiles first. Each pool task takes the best tile waiting,
+ * so the tiles of the next jobs fill the cores while the last tiles of a job finish, and the
+ * batch takes about its total work divided by the number of cores.
+ */
+public class BatchRenderer {
+    /** jobs started at once by default : the tiles of the second fill the cores while the first ends */
+    public static final int DEFAULT_MAX_JOBS = 2;
+
+    private final TileScheduler scheduler;
+    private final ForkJoinPool pool;
+    private final int maxJobs;
+    private final PriorityBlockingQueue<Tile> queue = new PriorityBlockingQueue<>(256,
+            Comparator.comparingInt((Tile t) -> -t.job.priority)
+                    .thenComparingLong(t -> t.job.sequence)
+                    .thenComparingInt(t -> t.rank));
+    private final AtomicLong sequence = new AtomicLong();
+    /** jobs submitted but not started yet, guarded by this */
+    private final PriorityQueue<Job> waiting = new PriorityQueue<>(
+            Comparator.comparingInt((Job j) -> -j.priority).thenComparingLong(j -> j.sequence));
+    /** jobs started and not completed, guarded by this */
+    private int started;
+
+    public BatchRenderer() {
+        this(TileScheduler.shared(), DEFAULT_MAX_JOBS);
+    }
+
+    public BatchRenderer(TileScheduler scheduler) {
+        this(scheduler, DEFAULT_MAX_JOBS);
+    }
+
+    /**
+     * @param maxJobs number of jobs started at once, each holding its scene and its image
+     */
+    public BatchRenderer(TileScheduler scheduler, int maxJobs) {
+        if (maxJobs < 1) {
+            throw new IllegalArgumentException("maxJobs " + maxJobs);
+        }
+        this.scheduler = scheduler;
+        this.pool = scheduler.getPool();
+        this.maxJobs = maxJobs;
+    }
+
+    /**
+     * Submits a job of priority 0.
+     *
+     * @see #submit(String, int, int, int, int, BiConsumer)
+     */
+    public CompletableFuture<String> submit(String filename, int w, int h, int blockSize,
+                                            BiConsumer<List<Geometry>, List<Light>> sceneBuilder) {
+        return submit(filename, w, h, blockSize, 0, sceneBuilder);
+    }
+
+    /**
+     * Submits a job and returns at once. The job waits if maxJobs jobs are already started.
+     *
+     * @param filename name of output image, PNG if it ends with ".png", TGA otherwise
+     * @param priority jobs of higher priority get their tiles rendered first
+     * @param sceneBuilder function to build the scene (geometries + lights)
+     * @return completed with filename once the file is written, or exceptionally if the
+     * scene, a tile or the writing failed
+     */
+    public CompletableFuture<String> submit(String filename, int w, int h, int blockSize, int priority,
+                                            BiConsumer<List<Geometry>, List<Light>> sceneBuilder) {
+        return submit(filename, w, h, blockSize, priority, null, sceneBuilder);
+    }
+
+    /**
+     * Same as {@link #submit(String, int, int, int, int, BiConsumer)}, adding the rays traced
+     * for the image and the time of its tiles to stats. They are complete once the returned
+     * future is.
+     *
+     * @param stats statistics of the image, may be null
+     */
+    public CompletableFuture<String> submit(String filename, int w, int h, int blockSize, int priority,
+                                            RenderStats stats, BiConsumer<List<Geometry>, List<Light>> sceneBuilder) {
+        Job job = new Job(filename, w, h, blockSize, priority, sequence.getAndIncrement(), stats, sceneBuilder);
+        synchronized (this) {
+            waiting.add(job);
+        }
+        admit();
+        return job.result;
+    }
+
+    /**
+     * @return number of jobs submitted and not started yet
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Starts waiting jobs while fewer than maxJobs are started.
+     */
+    private void admit() {
+        List<Job> ready = new ArrayList<>();
+        synchronized (this) {
+            while (started < maxJobs && !waiting.isEmpty()) {
+                started++;
+                ready.add(waiting.poll());
+            }
+        }
+        for (Job job : ready) {
+            launch(job);
+        }
+    }
+
+    /**
+     * Builds the scene of the job on the pool, then queues its tiles. Its place goes to the
+     * next waiting job once it completes, normally or not.
+     */
+    private void launch(Job job) {
+        job.result.whenComplete((f, e) -> {
+            synchronized (this) {
+                started--;
+            }
+            admit();
+        });
+        if (job.result.isDone()) {
+            return; // annule en attente
+        }
+        CompletableFuture.runAsync(() -> {
+            List<Geometry> objects = new ArrayList<>();
+            List<Light> lights = new ArrayList<>();
+            job.sceneBuilder.accept(objects, lights);
+            job.start(new Scene(objects, lights));
+        }, pool).whenComplete((v, e) -> {
+            if (e != null) {
+                job.result.completeExceptionally(e);
+            }
+        });
+    }
+
+    /**
+     * Builds the tiles of the job, ordered by the cost pre-pass, and queues them.
+     */
+    private void enqueue(Job job) {
+        TileCosts costs = new TileCosts(job.w, job.h, job.blockSize);
+        scheduler.estimate(costs, (x, y) -> JavaTga.tracePixel(TraceContext.get(), job.scene, job.w, job.h, x, y));
+        int n = costs.getTileCount();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong((Integer i) -> costs.get(i)).reversed());
+
+        // les estimations font place aux temps mesures de chaque tuile
+        costs.clear();
+        job.costs = costs;
+        job.frame = RenderStats.ENABLED ? RenderStats.beginFrame() : null;
+        job.startTime = System.nanoTime();
+        job.remaining.set(n);
+        for (int rank = 0; rank < n; rank++) {
+            int i = order[rank];
+            int x0 = (i % costs.tilesX) * costs.blockSize, y0 = (i / costs.tilesX) * costs.blockSize;
+            queue.add(new Tile(job, rank, i, x0, y0,
+                    Math.min(x0 + costs.blockSize, job.w), Math.min(y0 + costs.blockSize, job.h)));
+        }
+        // une tache par tuile : chacune prend la meilleure tuile en attente a ce moment
+        for (int k = 0; k < n; k++) {
+            pool.execute(this::runNext);
+        }
+    }
+
+    private void runNext() {
+        Tile tile = queue.poll();
+        if (tile != null) {
+            tile.run();
+        }
+    }
+
+    /**
+     * One image of the batch.
+     */
+    private final class Job {
+        final String filename;
+        final int w, h, blockSize, priority;
+        final long sequence;
+        final CompletableFuture<String> result = new CompletableFuture<>();
+        final AtomicInteger remaining = new AtomicInteger();
+        /** statistics of the image, may be null */
+        final RenderStats stats;
+        BiConsumer<List<Geometry>, List<Light>> sceneBuilder;
+        Scene scene;
+        byte[] buffer;
+        /** time of each tile, set with frame and startTime before the tiles are queued */
+        TileCosts costs;
+        RenderStats.FrameEvent frame;
+        long startTime;
+
+        Job(String filename, int w, int h, int blockSize, int priority, long sequence, RenderStats stats,
+            BiConsumer<List<Geometry>, List<Light>> sceneBuilder) {
+            this.filename = filename;
+            this.w = w;
+            this.h = h;
+            this.blockSize = blockSize;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.stats = stats;
+            this.sceneBuilder = sceneBuilder;
+        }
+
+        void start(Scene scene) {
+            this.sceneBuilder = null;
+            this.scene = scene;
+            this.buffer = new byte[3 * w * h];
+            enqueue(this);
+        }
+
+        void tileDone() {
+            if (remaining.decrementAndGet() == 0 && !result.isDone()) {
+                if (RenderStats.ENABLED) {
+                    RenderStats.endFrame(frame, stats, costs, System.nanoTime() - startTime);
+                }
+                try {
+                    ImageWriter.forFile(filename).write(filename, buffer, w, h);
+                    result.complete(filename);
+                } catch (IOException e) {
+                    result.completeExceptionally(new UncheckedIOException(e));
+                }
+                buffer = null;
+                scene = null;
+            }
+        }
+    }
+
+    private static final class Tile {
+        final Job job;
+        final int rank;
+        final int index;
+        final int x0, y0, x1, y1;
+
+        Tile(Job job, int rank, int index, int x0, int y0, int x1, int y1) {
+            this.job = job;
+            this.rank = rank;
+            this.index = index;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+        }
+
+        void run() {
+            if (job.result.isDone()) {
+                return; // travail abandonne apres une erreur
+            }
+            try {
+                RenderStats.TileEvent event = RenderStats.ENABLED ? RenderStats.beginTile() : null;
+                long start = System.nanoTime();
+                JavaTga.renderBlock(job.scene, job.buffer, job.w, job.h, x0, y0, x1, y1);
+                job.costs.add(index, System.nanoTime() - start);
+                if (RenderStats.ENABLED) {
+                    RenderStats.endTile(event, job.stats, x0, y0, x1, y1);
+                }
+            } catch (RuntimeException | Error e) {
+                job.result.completeExceptionally(e);
+                return;
+            }
+            job.tileDone();
+        }
+    }
+}
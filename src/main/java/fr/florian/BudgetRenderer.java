@@ -0,0 +1,260 @@
+package fr.florian;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Rendering within a wall-clock budget : a complete image is ready early, and made better
+ * tile by tile while time remains.
+ * <p>
+ * A preview is rendered first, whatever the budget : one camera ray per
+ * {@link #PREVIEW_STEP} x PREVIEW_STEP block, colored with the flat ambient color of the
+ * material hit, as {@link JavaTgaSansLumiere} does. Then, tiles nearest the center of the
+ * image first, each tile is upgraded to :
+ * <ol start="0">
+ * <li>{@link #PREVIEW} : the preview ;</li>
+ * <li>{@link #DIRECT} : Phong lighting and shadows at the camera hits, reflections and
+ * refractions left out ;</li>
+ * <li>{@link #FULL} : the image of {@link JavaTga#render(Scene, int, int, int)} ; a tile with
+ * no mirror nor glass at its camera hits is full as soon as it is direct ;</li>
+ * <li>{@link #SAMPLED} : anti-aliased by the {@link AdaptiveSampler}, if one is given.</li>
+ * </ol>
+ * Every tile reaches a level before any goes on to the next one. No tile is started once the
+ * budget is spent, so a render may end late by the time of the slowest tile. The level each
+ * tile reached is kept until the next render.
+ */
+public class BudgetRenderer {
+    public static final int PREVIEW = 0, DIRECT = 1, FULL = 2, SAMPLED = 3;
+    private static final String[] LEVELS = {"preview", "direct", "full", "sampled"};
+    /** the preview traces one camera ray per block of PREVIEW_STEP x PREVIEW_STEP pixels */
+    static final int PREVIEW_STEP = 4;
+
+    public final Duration budget;
+    private final AdaptiveSampler sampler;
+    private TileCosts tiling = new TileCosts(0, 0, 1);
+    private byte[] levels = new byte[0];
+    private long elapsed;
+
+    /**
+     * @param budget wall-clock time of a render, preview included
+     */
+    public BudgetRenderer(Duration budget) {
+        this(budget, null);
+    }
+
+    /**
+     * @param sampler anti-aliasing of the last level, null to stop at {@link #FULL}
+     */
+    public BudgetRenderer(Duration budget, AdaptiveSampler sampler) {
+        if (budget.isNegative()) {
+            throw new IllegalArgumentException("negative budget");
+        }
+        this.budget = budget;
+        this.sampler = sampler;
+    }
+
+    public static void main(String[] args) {
+        final int w = 1024, h = 768, blockSize = 32;
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        JavaTga.drawDamierReflectionScene(objects, lights);
+        Scene scene = new Scene(objects, lights);
+        byte[] full = JavaTga.render(scene, w, h, blockSize);
+
+        for (int round = 0; round < 2; round++) {
+            for (long ms : new long[]{0, 50, 200, 1000, 5000}) {
+                BudgetRenderer renderer = new BudgetRenderer(Duration.ofMillis(ms));
+                byte[] buffer = renderer.render(scene, w, h, blockSize);
+                System.out.println(renderer + (renderer.getTileCount(FULL) == renderer.levels.length
+                        ? Arrays.equals(buffer, full) ? ", same image as a full render" : ", IMAGES DIFFER" : ""));
+            }
+        }
+    }
+
+    /**
+     * Renders the preview of the scene, then upgrades its tiles on the shared tile
+     * scheduler until the budget is spent.
+     *
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public byte[] render(Scene scene, int w, int h, int blockSize) {
+        return render(scene, w, h, blockSize, null);
+    }
+
+    /**
+     * Same as {@link #render(Scene, int, int, int)}, adding the rays traced by every stage
+     * to stats : its tile times are those of all the stages of each tile.
+     *
+     * @param stats statistics of the image, may be null
+     */
+    public byte[] render(Scene scene, int w, int h, int blockSize, RenderStats stats) {
+        long start = System.nanoTime();
+        long deadline = start + budget.toNanos();
+        byte[] buffer = new byte[3 * w * h];
+        TileScheduler scheduler = TileScheduler.shared();
+        TileCosts tiles = new TileCosts(w, h, blockSize);
+        byte[] reached = new byte[tiles.getTileCount()];
+
+        scheduler.render(tiles, stats, (x0, y0, x1, y1) -> renderPreview(scene, buffer, w, h, x0, y0, x1, y1));
+
+        int[] order = centerFirst(tiles);
+        scheduler.render(tiles, order, deadline, stats, (x0, y0, x1, y1) -> {
+            boolean secondary = renderDirect(scene, buffer, w, h, x0, y0, x1, y1);
+            reached[index(tiles, x0, y0)] = secondary ? (byte) DIRECT : (byte) FULL;
+        });
+        scheduler.render(tiles, at(order, reached, DIRECT), deadline, stats, (x0, y0, x1, y1) -> {
+            JavaTga.renderBlock(scene, buffer, w, h, x0, y0, x1, y1);
+            reached[index(tiles, x0, y0)] = FULL;
+        });
+        if (sampler != null) {
+            scheduler.render(tiles, at(order, reached, FULL), deadline, stats, (x0, y0, x1, y1) -> {
+                sampler.renderTile(scene, buffer, w, h, x0, y0, x1, y1);
+                reached[index(tiles, x0, y0)] = SAMPLED;
+            });
+        }
+
+        this.tiling = tiles;
+        this.levels = reached;
+        this.elapsed = System.nanoTime() - start;
+        return buffer;
+    }
+
+    /**
+     * Traces one ray per PREVIEW_STEP x PREVIEW_STEP block of the tile, without lighting,
+     * and fills the block (clipped to the tile) with the ambient color of the material hit.
+     */
+    private static void renderPreview(Scene scene, byte[] buffer, int w, int h, int x0, int y0, int x1, int y1) {
+        TraceContext ctx = TraceContext.get();
+        int[] stack = ctx.stack(scene.getStackSize());
+        Hit hit = ctx.frame(0).hit;
+        for (int by = y0; by < y1; by += PREVIEW_STEP) {
+            for (int bx = x0; bx < x1; bx += PREVIEW_STEP) {
+                Vec3f v = scene.camera.direction(ctx.rayDir, w, h, bx, by);
+                byte b = 0, g = 0, r = 0;
+                if (scene.intersect(scene.camera.position, v, hit, stack)) {
+                    Vec3f c = hit.material.ambient;
+                    b = (byte) (Math.min(1, c.z) * 255);
+                    g = (byte) (Math.min(1, c.y) * 255);
+                    r = (byte) (Math.min(1, c.x) * 255);
+                }
+                for (int row = by; row < Math.min(by + PREVIEW_STEP, y1); row++) {
+                    for (int col = bx; col < Math.min(bx + PREVIEW_STEP, x1); col++) {
+                        int index = 3 * (row * w + col);
+                        buffer[index] = b;
+                        buffer[index + 1] = g;
+                        buffer[index + 2] = r;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Shades the camera hits of the tile with its lights and shadows only.
+     *
+     * @return true if some camera ray hit a mirror or glass, whose reflected or refracted
+     *         rays were left out
+     */
+    private static boolean renderDirect(Scene scene, byte[] buffer, int w, int h, int x0, int y0, int x1, int y1) {
+        TraceContext ctx = TraceContext.get();
+        int[] stack = ctx.stack(scene.getStackSize());
+        // a la profondeur MAX_DEPTH, shade ne lance aucun rayon secondaire
+        Hit hit = ctx.frame(JavaTga.MAX_DEPTH).hit;
+        boolean secondary = false;
+        for (int row = y0; row < y1; row++) {
+            for (int col = x0; col < x1; col++) {
+                int index = 3 * (row * w + col);
+                Vec3f v = scene.camera.direction(ctx.rayDir, w, h, col, row);
+                if (!scene.intersect(scene.camera.position, v, hit, stack)) {
+                    // fond noir
+                    buffer[index] = buffer[index + 1] = buffer[index + 2] = 0;
+                    continue;
+                }
+                secondary |= hit.material.reflectivity > 0 || hit.material.transparency > 0;
+
+                Vec3f pixelColor = JavaTga.shade(ctx, v, scene, JavaTga.MAX_DEPTH, 1, ctx.color);
+
+                // clamp et ecriture dans le buffer, comme renderBlock
+                buffer[index] = (byte) (Math.min(1, pixelColor.z) * 255);
+                buffer[index + 1] = (byte) (Math.min(1, pixelColor.y) * 255);
+                buffer[index + 2] = (byte) (Math.min(1, pixelColor.x) * 255);
+            }
+        }
+        return secondary;
+    }
+
+    /**
+     * @return the tiles sorted by distance from their center to the center of the image
+     */
+    private static int[] centerFirst(TileCosts tiles) {
+        Integer[] order = new Integer[tiles.getTileCount()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble((Integer i) -> {
+            double dx = ((i % tiles.tilesX) + 0.5) * tiles.blockSize - tiles.width / 2.0;
+            double dy = ((i / tiles.tilesX) + 0.5) * tiles.blockSize - tiles.height / 2.0;
+            return dx * dx + dy * dy;
+        }));
+        return Arrays.stream(order).mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * @return the tiles of order that reached level, in the same order
+     */
+    private static int[] at(int[] order, byte[] reached, int level) {
+        return Arrays.stream(order).filter(i -> reached[i] == level).toArray();
+    }
+
+    private static int index(TileCosts tiles, int x0, int y0) {
+        return (y0 / tiles.blockSize) * tiles.tilesX + x0 / tiles.blockSize;
+    }
+
+    /**
+     * @return level reached by tile (tileX, tileY) in the last render
+     */
+    public int getLevel(int tileX, int tileY) {
+        return levels[tileY * tiling.tilesX + tileX];
+    }
+
+    /**
+     * @return levels reached in the last render, one per tile (tileY * tilesX + tileX)
+     */
+    public byte[] getLevels() {
+        return levels.clone();
+    }
+
+    /**
+     * @return number of tiles left at level by the last render
+     */
+    public int getTileCount(int level) {
+        int n = 0;
+        for (byte l : levels) {
+            if (l == level) n++;
+        }
+        return n;
+    }
+
+    /**
+     * @return wall-clock time of the last render, in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(String.format("%.0f ms of %d ms :",
+                elapsed / 1e6, budget.toMillis()));
+        for (int level = SAMPLED; level >= PREVIEW; level--) {
+            int n = getTileCount(level);
+            if (n > 0 || level == FULL) {
+                sb.append(String.format(" %d %s", n, LEVELS[level]));
+            }
+        }
+        return sb.append(" / ").append(levels.length).append(" tiles").toString();
+    }
+}
@@ -0,0 +1,52 @@
+package fr.florian;
+
+/**
+ * Pinhole camera.
+ * <p>
+ * The ray through the point (col, row) of a w x h image leaves position with direction
+ * forward + x right + y up, normalized, where x = (col - w/2) / h and y = (row - h/2) / h.
+ * The length of forward sets the field of view (1 : 53 degrees vertically).
+ */
+public class Camera {
+    public final Vec3f position;
+    public final Vec3f forward, right, up;
+
+    /**
+     * The camera of the built-in scenes : 2 units above the origin, looking along -z and
+     * slightly down.
+     */
+    public Camera() {
+        this(new Vec3f(0, 2, 0), new Vec3f(0, -0.2f, -1));
+    }
+
+    /**
+     * Camera with an horizontal right axis (1, 0, 0) and a vertical up axis (0, 1, 0).
+     */
+    public Camera(Vec3f position, Vec3f forward) {
+        this(position, forward, new Vec3f(1, 0, 0), new Vec3f(0, 1, 0));
+    }
+
+    public Camera(Vec3f position, Vec3f forward, Vec3f right, Vec3f up) {
+        this.position = position;
+        this.forward = forward;
+        this.right = right;
+        this.up = up;
+    }
+
+    /**
+     * Direction of the camera ray through the point (col, row) of the image plane.
+     *
+     * @param out receives the normalized direction
+     * @return out
+     */
+    public Vec3f direction(Vec3f out, int w, int h, float col, float row) {
+        // calcul direction rayon
+        float x = ((col - w / 2f) / (float) h);
+        float y = ((row - h / 2f) / (float) h);
+
+        return out.set(
+                x * right.x + y * up.x + forward.x,
+                x * right.y + y * up.y + forward.y,
+                x * right.z + y * up.z + forward.z).normalizeLocal();
+    }
+}
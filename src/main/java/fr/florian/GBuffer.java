@@ -0,0 +1,264 @@
+package fr.florian;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * Camera hits of an image kept off-heap, to render it again under other lights without
+ * tracing the camera rays.
+ * <p>
+ * {@link #capture} traces the camera ray of every pixel once and stores the hit point,
+ * the normal, the view direction and a material id, 40 bytes per pixel in native memory.
+ * {@link #relight} then only runs the Phong loop of {@link JavaTga#findColor} on those hits.
+ * The shadow test of each light is remembered per pixel for the position of that light,
+ * so changing the colors of a light traces no shadow ray at all and moving a light only
+ * traces the shadow rays of that light. Reflected and refracted rays are still traced,
+ * since what they see depends on the lights. The image is the one a full render would give.
+ * <p>
+ * <pre>java fr.florian.GBuffer</pre>
+ * captures the simple scene, then relights it a few times against full renders.
+ */
+public final class GBuffer implements AutoCloseable {
+    /** 4-byte words per pixel : point, normal, view direction, material id (-1 : nothing hit) */
+    private static final int STRIDE = 10;
+
+    public final int width, height;
+    private final Scene scene;
+    private final int blockSize;
+    private final Arena arena;
+    private final MemorySegment hits;
+    private final Material[] materials;
+    /** shadow tests of the last relight, by light position */
+    private List<Visibility> visibilities = new ArrayList<>();
+
+    /**
+     * Shadow test toward one light position, for each pixel ({@link TraceContext#UNKNOWN},
+     * LIT or SHADOWED), each in its own arena to be freed when the light moves.
+     */
+    private static final class Visibility {
+        final float x, y, z;
+        final Arena arena = Arena.ofShared();
+        final MemorySegment tests;
+
+        Visibility(Vec3f position, long pixels) {
+            this.x = position.x;
+            this.y = position.y;
+            this.z = position.z;
+            this.tests = arena.allocate(pixels);
+        }
+
+        boolean at(Vec3f p) {
+            return p.x == x && p.y == y && p.z == z;
+        }
+    }
+
+    private GBuffer(Scene scene, int width, int height, int blockSize, Arena arena, MemorySegment hits,
+                    Material[] materials) {
+        this.scene = scene;
+        this.width = width;
+        this.height = height;
+        this.blockSize = blockSize;
+        this.arena = arena;
+        this.hits = hits;
+        this.materials = materials;
+    }
+
+    public static void main(String[] args) {
+        final int w = 1024, h = 768, blockSize = 32;
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        JavaTga.drawSimpleScene(objects, lights);
+        Scene scene = new Scene(objects, lights);
+        Light key = lights.get(0);
+        Map<String, List<Light>> edits = new LinkedHashMap<>();
+        edits.put("same lights", lights);
+        edits.put("warmer light", List.of(new Light(key.position, key.ambient, new Vec3f(1f, 0.8f, 0.6f), key.specular)));
+        edits.put("moved light", List.of(new Light(new Vec3f(4f, 8f, 2f), key.ambient, key.diffuse, key.specular)));
+        edits.put("two lights", List.of(key, new Light(new Vec3f(4f, 8f, 2f), new Vec3f(0, 0, 0),
+                new Vec3f(0.3f, 0.3f, 0.5f), new Vec3f(0.3f, 0.3f, 0.5f))));
+
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            try (GBuffer gbuffer = capture(scene, w, h, blockSize)) {
+                System.out.printf("capture %.0f ms, %d MB off-heap%n", (System.nanoTime() - start) / 1e6,
+                        gbuffer.hits.byteSize() >> 20);
+                for (Map.Entry<String, List<Light>> edit : edits.entrySet()) {
+                    long t0 = System.nanoTime();
+                    byte[] relit = gbuffer.relight(edit.getValue());
+                    long t1 = System.nanoTime();
+                    byte[] full = JavaTga.render(scene.withLights(edit.getValue()), w, h, blockSize);
+                    long t2 = System.nanoTime();
+                    System.out.printf("%-12s relight %.0f ms, full render %.0f ms%s%n", edit.getKey(),
+                            (t1 - t0) / 1e6, (t2 - t1) / 1e6, Arrays.equals(relit, full) ? "" : ", IMAGES DIFFER");
+                }
+            }
+        }
+    }
+
+    /**
+     * Traces the camera rays of a w x h image of scene, in parallel by tiles, and keeps their hits.
+     * The buffer must be closed to free its native memory.
+     */
+    public static GBuffer capture(Scene scene, int w, int h, int blockSize) {
+        Arena arena = Arena.ofShared();
+        try {
+            MemorySegment hits = arena.allocate(4L * STRIDE * w * h, 4);
+            Map<Material, Integer> ids = new ConcurrentHashMap<>();
+            TileScheduler.shared().render(new TileCosts(w, h, blockSize), (x0, y0, x1, y1) -> {
+                TraceContext ctx = TraceContext.get();
+                int[] stack = ctx.stack(scene.getStackSize());
+                Hit hit = new Hit();
+                for (int row = y0; row < y1; row++) {
+                    for (int col = x0; col < x1; col++) {
+                        long i = (long) STRIDE * (row * w + col);
+                        Vec3f v = scene.camera.direction(ctx.rayDir, w, h, col, row);
+                        if (!scene.intersect(scene.camera.position, v, hit, stack)) {
+                            hits.setAtIndex(ValueLayout.JAVA_INT, i + 9, -1);
+                            continue;
+                        }
+                        put(hits, i, hit.point);
+                        put(hits, i + 3, hit.normal);
+                        put(hits, i + 6, v);
+                        Integer id = ids.get(hit.material);
+                        if (id == null) {
+                            synchronized (ids) {
+                                id = ids.computeIfAbsent(hit.material, m -> ids.size());
+                            }
+                        }
+                        hits.setAtIndex(ValueLayout.JAVA_INT, i + 9, id);
+                    }
+                }
+            });
+            Material[] materials = new Material[ids.size()];
+            ids.forEach((m, id) -> materials[id] = m);
+            return new GBuffer(scene, w, h, blockSize, arena, hits, materials);
+        } catch (RuntimeException | Error e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Captures the scene built by sceneBuilder.
+     */
+    public static GBuffer capture(int w, int h, int blockSize, BiConsumer<List<Geometry>, List<Light>> sceneBuilder) {
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        sceneBuilder.accept(objects, lights);
+        return capture(new Scene(objects, lights), w, h, blockSize);
+    }
+
+    /**
+     * Shades the captured hits under lights, in parallel by tiles. Shadow tests toward a
+     * light position already seen by the previous relight are reused.
+     *
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public byte[] relight(List<Light> lights) {
+        Scene lit = scene.withLights(lights);
+        Visibility[] tests = new Visibility[lights.size()];
+        List<Visibility> kept = new ArrayList<>();
+        for (int k = 0; k < tests.length; k++) {
+            Vec3f p = lights.get(k).position;
+            for (Visibility vis : kept) {
+                if (vis.at(p)) tests[k] = vis;
+            }
+            for (int j = 0; tests[k] == null && j < visibilities.size(); j++) {
+                if (visibilities.get(j).at(p)) tests[k] = visibilities.get(j);
+            }
+            if (tests[k] == null) {
+                tests[k] = new Visibility(p, (long) width * height);
+            }
+            if (!kept.contains(tests[k])) {
+                kept.add(tests[k]);
+            }
+        }
+        for (Visibility vis : visibilities) {
+            if (!kept.contains(vis)) {
+                vis.arena.close();
+            }
+        }
+        visibilities = kept;
+
+        byte[] buffer = new byte[3 * width * height];
+        TileScheduler.shared().render(new TileCosts(width, height, blockSize),
+                (x0, y0, x1, y1) -> relightBlock(lit, tests, buffer, x0, y0, x1, y1));
+        return buffer;
+    }
+
+    private void relightBlock(Scene lit, Visibility[] tests, byte[] buffer, int x0, int y0, int x1, int y1) {
+        TraceContext ctx = TraceContext.get();
+        byte[] shadows = new byte[tests.length];
+        Hit hit = ctx.frame(0).hit;
+        ctx.shadows = shadows;
+        try {
+            for (int row = y0; row < y1; row++) {
+                for (int col = x0; col < x1; col++) {
+                    int pixel = row * width + col;
+                    long i = (long) STRIDE * pixel;
+                    int index = 3 * pixel;
+                    int id = hits.getAtIndex(ValueLayout.JAVA_INT, i + 9);
+                    if (id < 0) {
+                        // fond noir
+                        buffer[index] = buffer[index + 1] = buffer[index + 2] = 0;
+                        continue;
+                    }
+                    get(hits, i, hit.point);
+                    get(hits, i + 3, hit.normal);
+                    Vec3f v = get(hits, i + 6, ctx.rayDir);
+                    hit.material = materials[id];
+                    for (int k = 0; k < shadows.length; k++) {
+                        shadows[k] = tests[k].tests.get(ValueLayout.JAVA_BYTE, pixel);
+                    }
+
+                    Vec3f pixelColor = JavaTga.shade(ctx, v, lit, 0, 1, ctx.color);
+
+                    for (int k = 0; k < shadows.length; k++) {
+                        tests[k].tests.set(ValueLayout.JAVA_BYTE, pixel, shadows[k]);
+                    }
+                    // clamp et ecriture dans le buffer, comme renderBlock
+                    pixelColor.x = Math.min(1, pixelColor.x);
+                    pixelColor.y = Math.min(1, pixelColor.y);
+                    pixelColor.z = Math.min(1, pixelColor.z);
+
+                    buffer[index] = (byte) (pixelColor.z * 255);
+                    buffer[index + 1] = (byte) (pixelColor.y * 255);
+                    buffer[index + 2] = (byte) (pixelColor.x * 255);
+                }
+            }
+        } finally {
+            ctx.shadows = null;
+        }
+    }
+
+    private static void put(MemorySegment s, long i, Vec3f v) {
+        s.setAtIndex(ValueLayout.JAVA_FLOAT, i, v.x);
+        s.setAtIndex(ValueLayout.JAVA_FLOAT, i + 1, v.y);
+        s.setAtIndex(ValueLayout.JAVA_FLOAT, i + 2, v.z);
+    }
+
+    private static Vec3f get(MemorySegment s, long i, Vec3f out) {
+        return out.set(s.getAtIndex(ValueLayout.JAVA_FLOAT, i), s.getAtIndex(ValueLayout.JAVA_FLOAT, i + 1),
+                s.getAtIndex(ValueLayout.JAVA_FLOAT, i + 2));
+    }
+
+    /**
+     * Frees the native memory of the buffer.
+     */
+    @Override
+    public void close() {
+        for (Visibility vis : visibilities) {
+            vis.arena.close();
+        }
+        visibilities = List.of();
+        arena.close();
+    }
+}
@@ -1,5 +1,7 @@
 package fr.florian;
 
+import static fr.florian.JavaTga.EPS;
+
 public abstract class Geometry {
     protected Material material;
 
@@ -15,5 +17,122 @@ public abstract class Geometry {
      * @return unit-normal at M
      */
     public abstract Vec3f getNormal(Vec3f M);
+
+    /**
+     * @return axis-aligned box enclosing the object, or null if it is unbounded
+     */
+    public abstract AABB getBoundingBox();
+
+    /**
+     * An object may be made of several primitives (faces of a mesh) that the scene
+     * indexes separately in its BVH. Simple objects are a single primitive.
+     *
+     * @return number of primitives
+     */
+    public int getPrimitiveCount() {
+        return 1;
+    }
+
+    /**
+     * @param prim primitive index in [0, getPrimitiveCount())
+     * @return box enclosing the primitive, or null if it is unbounded
+     */
+    public AABB getBoundingBox(int prim) {
+        return getBoundingBox();
+    }
+
+    /**
+     * @param prim primitive index
+     * @param P  ray origin
+     * @param v  ray direction (should be normalized)
+     * @return λ > 0 of first intersection of the primitive, or ≤0 if none.
+     */
+    public float getIntersection(int prim, Vec3f P, Vec3f v) {
+        return getIntersection(P, v);
+    }
+
+    /**
+     * @param M  a point on the primitive
+     * @param prim primitive index
+     * @return unit-normal at M
+     */
+    public Vec3f getNormal(Vec3f M, int prim) {
+        return getNormal(M);
+    }
+
+    /**
+     * @param prim primitive index
+     * @return material of the primitive
+     */
+    public Material getMaterial(int prim) {
+        return material;
+    }
+
+    /**
+     * Any-hit query used by shadow rays : only tells whether primitive prim blocks the
+     * segment, which lets subclasses give up as soon as possible.
+     *
+     * @param prim primitive index
+     * @param P  ray origin
+     * @param v  ray direction (should be normalized)
+     * @param maxT length of the segment
+     * @return true if the primitive is hit at EPS &lt; t &lt; maxT
+     */
+    public boolean occludes(int prim, Vec3f P, Vec3f v, float maxT) {
+        float t = getIntersection(prim, P, v);
+        return t > EPS && t < maxT;
+    }
+
+    /**
+     * Any-hit query on this object alone.
+     *
+     * @return true if any primitive is hit at EPS &lt; t &lt; maxT
+     */
+    public boolean occludes(Vec3f P, Vec3f v, float maxT) {
+        for (int prim = 0, n = getPrimitiveCount(); prim < n; prim++) {
+            if (occludes(prim, P, v, maxT)) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Closest-hit query on this object alone. If it is hit closer than hit.t, the record
+     * is filled in one call with t, primitive, point, normal and material.
+     *
+     * @return true if hit was updated
+     */
+    public boolean intersect(Vec3f P, Vec3f v, Hit hit) {
+        boolean found = false;
+        for (int prim = 0, n = getPrimitiveCount(); prim < n; prim++) {
+            float t = getIntersection(prim, P, v);
+            if (t > EPS && t < hit.t) {
+                hit.t = t;
+                hit.object = this;
+                hit.primitive = prim;
+                found = true;
+            }
+        }
+        if (found) {
+            computeSurface(P, v, hit);
+        }
+        return found;
+    }
+
+    /**
+     * Fills point, normal and material of hit from its t and primitive.
+     */
+    public void computeSurface(Vec3f P, Vec3f v, Hit hit) {
+        hit.point.set(v).scaleLocal(hit.t).addLocal(P);
+        computeNormal(hit);
+        hit.material = getMaterial(hit.primitive);
+    }
+
+    /**
+     * Writes the unit normal at hit.point into hit.normal. Subclasses override it to
+     * avoid the allocation of {@link #getNormal(Vec3f, int)}.
+     */
+    protected void computeNormal(Hit hit) {
+        hit.normal.set(getNormal(hit.point, hit.primitive));
+    }
 }
 
@@ -0,0 +1,236 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unclamped float RGB image held off-heap, where samples and passes are summed before being
+ * turned into bytes.
+ * <p>
+ * Each pixel keeps the sums of the red, green and blue of its samples and their count,
+ * 16 bytes in native memory. {@link #add} updates them with compare-and-set, without any
+ * lock, so tiles, passes or sample sets may add to the same pixels concurrently. The image
+ * is the mean of the samples of each pixel : {@link #resolve} turns it into 8-bit colors in
+ * parallel (exposure, tone mapping, gamma, ordered dithering), {@link #writePfm} saves it
+ * as it is for compositing. With the default settings, resolving one sample per pixel gives
+ * the image of {@link JavaTga#render(Scene, int, int, int)}.
+ * <p>
+ * <pre>java fr.florian.HdrFramebuffer</pre>
+ * accumulates the simple scene over 16 jittered passes and saves it as TGA and PFM.
+ */
+public final class HdrFramebuffer implements AutoCloseable {
+    /** tone mappings of {@link #resolve} */
+    public static final int CLAMP = 0, REINHARD = 1, ACES = 2;
+    /** 4-byte words per pixel : sums of red, green and blue, sample count */
+    private static final int STRIDE = 4;
+    /** side of the tiles resolved in parallel */
+    private static final int RESOLVE_BLOCK = 64;
+    /** 4 x 4 ordered dithering thresholds, in sixteenths */
+    private static final int[] BAYER = {0, 8, 2, 10, 12, 4, 14, 6, 3, 11, 1, 9, 15, 7, 13, 5};
+    private static final VarHandle INT = ValueLayout.JAVA_INT.varHandle();
+
+    public final int width, height;
+    private final Arena arena;
+    private final MemorySegment pixels;
+
+    public HdrFramebuffer(int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("empty image");
+        }
+        this.width = width;
+        this.height = height;
+        this.arena = Arena.ofShared();
+        // memoire native mise a zero : aucun echantillon
+        this.pixels = arena.allocate(4L * STRIDE * width * height, 16);
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int w = 1024, h = 768, blockSize = 32, side = 4;
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        JavaTga.drawSimpleScene(objects, lights);
+        Scene scene = new Scene(objects, lights);
+
+        try (HdrFramebuffer hdr = new HdrFramebuffer(w, h)) {
+            JavaTga.render(scene, hdr, blockSize);
+            System.out.println("one sample per pixel" + (Arrays.equals(hdr.resolve(), JavaTga.render(scene, w, h, blockSize))
+                    ? ", same image as a plain render" : ", IMAGES DIFFER"));
+
+            hdr.clear();
+            long start = System.nanoTime();
+            for (int s = 0; s < side * side; s++) {
+                // echantillons stratifies dans le pixel [-0.5, 0.5)
+                float dx = (s % side + 0.5f) / side - 0.5f, dy = (s / side + 0.5f) / side - 0.5f;
+                JavaTga.render(scene, hdr, blockSize, dx, dy);
+            }
+            long middle = System.nanoTime();
+            byte[] buffer = hdr.resolve(0.5f, REINHARD, 2.2f, true);
+            long end = System.nanoTime();
+            ImageWriter.forFile("scene_simple_hdr.tga").write("scene_simple_hdr.tga", buffer, w, h);
+            hdr.writePfm("scene_simple_hdr.pfm");
+            System.out.printf("%d passes %.0f ms, resolve %.1f ms%n", side * side, (middle - start) / 1e6,
+                    (end - middle) / 1e6);
+        }
+    }
+
+    /**
+     * Adds one sample to pixel (x, y). Safe to call concurrently on the same pixel.
+     */
+    public void add(int x, int y, Vec3f color) {
+        add(x, y, color.x, color.y, color.z);
+    }
+
+    /**
+     * Adds one sample of color (r, g, b) to pixel (x, y). Safe to call concurrently on the same pixel.
+     */
+    public void add(int x, int y, float r, float g, float b) {
+        long offset = offset(x, y);
+        addFloat(offset, r);
+        addFloat(offset + 4, g);
+        addFloat(offset + 8, b);
+        INT.getAndAdd(pixels, offset + 12, 1);
+    }
+
+    private void addFloat(long offset, float value) {
+        int old;
+        do {
+            old = (int) INT.getVolatile(pixels, offset);
+        } while (!INT.weakCompareAndSet(pixels, offset, old, Float.floatToRawIntBits(Float.intBitsToFloat(old) + value)));
+    }
+
+    /**
+     * @return number of samples added to pixel (x, y)
+     */
+    public int getSampleCount(int x, int y) {
+        return pixels.get(ValueLayout.JAVA_INT, offset(x, y) + 12);
+    }
+
+    /**
+     * @return out set to the mean color of the samples of pixel (x, y), black if it has none
+     */
+    public Vec3f get(int x, int y, Vec3f out) {
+        long offset = offset(x, y);
+        int n = pixels.get(ValueLayout.JAVA_INT, offset + 12);
+        if (n == 0) {
+            return out.set(0, 0, 0);
+        }
+        return out.set(pixels.get(ValueLayout.JAVA_FLOAT, offset) / n, pixels.get(ValueLayout.JAVA_FLOAT, offset + 4) / n,
+                pixels.get(ValueLayout.JAVA_FLOAT, offset + 8) / n);
+    }
+
+    /**
+     * Forgets every sample.
+     */
+    public void clear() {
+        pixels.fill((byte) 0);
+    }
+
+    /**
+     * Same as {@link #resolve(float, int, float, boolean)} without exposure, tone mapping,
+     * gamma nor dithering : colors above 1 are clamped, as by {@link JavaTga#renderBlock}.
+     */
+    public byte[] resolve() {
+        return resolve(0, CLAMP, 1, false);
+    }
+
+    /**
+     * Turns the mean colors into 8-bit ones, in parallel by tiles on the shared scheduler.
+     *
+     * @param exposure in stops : colors are scaled by 2^exposure first
+     * @param toneMapping CLAMP, REINHARD (c / (1 + c)) or ACES (filmic curve fit)
+     * @param gamma colors are raised to 1 / gamma after tone mapping, 1 to leave them linear
+     * @param dither true to add a 4 x 4 ordered dithering before quantizing, instead of
+     *               truncating : hides the banding of smooth gradients
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public byte[] resolve(float exposure, int toneMapping, float gamma, boolean dither) {
+        if (toneMapping < CLAMP || toneMapping > ACES) {
+            throw new IllegalArgumentException("unknown tone mapping " + toneMapping);
+        }
+        byte[] buffer = new byte[3 * width * height];
+        float scale = (float) Math.pow(2, exposure);
+        TileScheduler.shared().render(new TileCosts(width, height, RESOLVE_BLOCK), (x0, y0, x1, y1) -> {
+            Vec3f c = new Vec3f(0, 0, 0);
+            for (int row = y0; row < y1; row++) {
+                for (int col = x0; col < x1; col++) {
+                    int index = 3 * (row * width + col);
+                    get(col, row, c);
+                    // dithering ordonne : seuil dans [0, 1) au lieu de la troncature
+                    float t = dither ? (BAYER[(row & 3) * 4 + (col & 3)] + 0.5f) / 16 : 0;
+                    buffer[index] = quantize(c.z, scale, toneMapping, gamma, t);
+                    buffer[index + 1] = quantize(c.y, scale, toneMapping, gamma, t);
+                    buffer[index + 2] = quantize(c.x, scale, toneMapping, gamma, t);
+                }
+            }
+        });
+        return buffer;
+    }
+
+    private static byte quantize(float c, float scale, int toneMapping, float gamma, float threshold) {
+        if (scale != 1) {
+            c *= scale;
+        }
+        switch (toneMapping) {
+            case REINHARD -> c = c / (1 + c);
+            // approximation de la courbe ACES (Narkowicz)
+            case ACES -> c = c * (2.51f * c + 0.03f) / (c * (2.43f * c + 0.59f) + 0.14f);
+            default -> { }
+        }
+        c = Math.min(1, Math.max(0, c));
+        if (gamma != 1) {
+            c = (float) Math.pow(c, 1 / gamma);
+        }
+        return (byte) Math.min(255, (int) (c * 255 + threshold));
+    }
+
+    /**
+     * Saves the mean colors, unclamped, as a little-endian PFM image (rows bottom to top,
+     * as in the image buffers).
+     */
+    public void writePfm(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.wrap(("PF\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII));
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+            ByteBuffer line = ByteBuffer.allocateDirect(12 * width).order(ByteOrder.LITTLE_ENDIAN);
+            Vec3f c = new Vec3f(0, 0, 0);
+            for (int row = 0; row < height; row++) {
+                line.clear();
+                for (int col = 0; col < width; col++) {
+                    get(col, row, c);
+                    line.putFloat(c.x).putFloat(c.y).putFloat(c.z);
+                }
+                line.flip();
+                while (line.hasRemaining()) {
+                    channel.write(line);
+                }
+            }
+        }
+    }
+
+    private long offset(int x, int y) {
+        return 4L * STRIDE * ((long) y * width + x);
+    }
+
+    /**
+     * Frees the native memory of the image.
+     */
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
@@ -0,0 +1,60 @@
+package fr.florian;
+
+/**
+ * Result of a closest-hit query, meant to be owned by the caller and reused from one ray to the next.
+ */
+public class Hit {
+    /** distance along the ray, Float.MAX_VALUE if nothing was hit */
+    public float t;
+    /** object hit, null if none */
+    public Geometry object;
+    /** primitive of the object that was hit (face of a mesh) */
+    public int primitive;
+    /** intersection point, filled once the closest hit is known */
+    public final Vec3f point = new Vec3f(0, 0, 0);
+    /** unit normal at point */
+    public final Vec3f normal = new Vec3f(0, 0, 0);
+    /** material at point */
+    public Material material;
+    /** position of the object in the scene list, ties are broken like a linear scan would */
+    int index;
+
+    public Hit() {
+        reset();
+    }
+
+    public void reset() {
+        t = Float.MAX_VALUE;
+        object = null;
+        primitive = 0;
+        material = null;
+        index = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Records the candidate (t, object) if it is in front of the ray and closer than the current hit.
+     *
+     * @return true if the hit was updated
+     */
+    boolean offer(float t, Geometry object, int index) {
+        return offer(t, object, index, 0);
+    }
+
+    /**
+     * Records the candidate (t, primitive of object) if it is in front of the ray and closer than
+     * the current hit. On equal distances the lowest (index, primitive) wins.
+     *
+     * @return true if the hit was updated
+     */
+    boolean offer(float t, Geometry object, int index, int primitive) {
+        if (t > JavaTga.EPS && (t < this.t || (t == this.t
+                && (index < this.index || (index == this.index && primitive < this.primitive))))) {
+            this.t = t;
+            this.object = object;
+            this.index = index;
+            this.primitive = primitive;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,64 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Helpers shared by the image writers.
+ */
+final class ImageFiles {
+
+    private ImageFiles() {
+    }
+
+    /**
+     * Writes the buffers one after the other into filename, replacing its content.
+     */
+    static void write(String filename, ByteBuffer... buffers) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(filename), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long remaining = 0;
+            for (ByteBuffer b : buffers) {
+                remaining += b.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= channel.write(buffers);
+            }
+        }
+    }
+
+    /**
+     * Encodes count stripes of an image in parallel on pool.
+     *
+     * @return the encoded stripes, in order
+     */
+    static <T> List<T> encode(ForkJoinPool pool, int count, IntFunction<T> encoder) throws IOException {
+        List<Callable<T>> tasks = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final int stripe = i;
+            tasks.add(() -> encoder.apply(stripe));
+        }
+        List<T> stripes = new ArrayList<>(count);
+        try {
+            for (Future<T> f : pool.invokeAll(tasks)) {
+                stripes.add(f.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while encoding", e);
+        } catch (ExecutionException e) {
+            throw new IOException("image encoding failed", e.getCause());
+        }
+        return stripes;
+    }
+}
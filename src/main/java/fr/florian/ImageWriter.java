@@ -0,0 +1,29 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Saves an image buffer to a file.
+ * <p>
+ * Buffers are those produced by the renderer : 3 bytes per pixel ordered Blue, Green, Red,
+ * the first row being the bottom of the image.
+ */
+public interface ImageWriter {
+
+    /**
+     * @param filename name of the output file
+     * @param buffer image buffer of width x height pixels
+     */
+    void write(String filename, byte[] buffer, int width, int height) throws IOException;
+
+    /**
+     * @return a PNG writer for a ".png" file, the uncompressed TGA writer otherwise
+     */
+    static ImageWriter forFile(String filename) {
+        if (filename.toLowerCase(Locale.ROOT).endsWith(".png")) {
+            return new PngWriter();
+        }
+        return new TgaWriter();
+    }
+}
@@ -0,0 +1,271 @@
+package fr.florian;
+
+/**
+ * Copy of a shared geometry placed in the scene by a 4x4 transform.
+ * <p>
+ * The ray is brought into the object space of the shape by the inverse transform and is
+ * not normalized there, so distances along it are the same in both spaces. Normals go
+ * back out through the inverse transpose. A shape made of several primitives (a mesh)
+ * gets its own {@link BVH} in object space, built once and shared by every copy made
+ * with {@link #copy}, so memory grows with the unique geometry and not with the number
+ * of instances. The scene BVH only sees the transformed box of each instance.
+ * <p>
+ * Instances may be nested (an instance of an instance). The transform of an instance
+ * may change between two frames of an animation with {@link #setTransform}.
+ */
+public class Instance extends Geometry {
+    public final Geometry shape;
+    /** object space to world space */
+    private Matrix4f transform;
+    /** world space to object space */
+    private Matrix4f inverse;
+    /** hierarchy of the primitives of shape, null when it is a single primitive */
+    private final BVH bvh;
+    private AABB box;
+
+    /**
+     * Scratch state of one nesting level : ray in object space, closest hit and traversal
+     * stack of the shape, and the closest hit found in a shape hierarchy for the current ray.
+     */
+    static final class Local {
+        final Vec3f origin = new Vec3f(0, 0, 0);
+        final Vec3f dir = new Vec3f(0, 0, 0);
+        final Hit hit = new Hit();
+        private int[] stack = new int[64];
+
+        // plus proche impact trouve dans un BVH de forme pour le rayon courant, repris par computeSurface
+        BVH closestBvh;
+        final Vec3f rayOrigin = new Vec3f(0, 0, 0), rayDir = new Vec3f(0, 0, 0);
+        final Vec3f closestOrigin = new Vec3f(0, 0, 0), closestDir = new Vec3f(0, 0, 0);
+        float closestT;
+        Geometry closestObject;
+        int closestPrimitive;
+
+        int[] stack(int size) {
+            if (stack.length < size) {
+                stack = new int[size];
+            }
+            return stack;
+        }
+
+        /**
+         * Keeps the hit of bvh along the object-space ray, if it is the first one of the
+         * world ray (P, v) or closer than the one kept.
+         */
+        void offer(Vec3f P, Vec3f v, BVH bvh) {
+            boolean sameRay = closestBvh != null && equal(rayOrigin, P) && equal(rayDir, v);
+            if (sameRay && hit.t >= closestT) {
+                return;
+            }
+            closestBvh = bvh;
+            rayOrigin.set(P);
+            rayDir.set(v);
+            closestOrigin.set(origin);
+            closestDir.set(dir);
+            closestT = hit.t;
+            closestObject = hit.object;
+            closestPrimitive = hit.primitive;
+        }
+
+        /**
+         * @return true if the hit kept is the one of bvh at t along the current object-space
+         *         ray : the traversal would find it again
+         */
+        boolean holds(BVH bvh, float t) {
+            return closestBvh == bvh && closestT == t && equal(closestOrigin, origin) && equal(closestDir, dir);
+        }
+
+        private static boolean equal(Vec3f a, Vec3f b) {
+            return a.x == b.x && a.y == b.y && a.z == b.z;
+        }
+    }
+
+    /**
+     * Instance keeping the materials of the shape.
+     */
+    public Instance(Geometry shape, Matrix4f transform) {
+        this(shape, transform, null);
+    }
+
+    /**
+     * @param material replaces every material of the shape, null to keep them
+     * @throws IllegalArgumentException if transform is singular, or if shape has several
+     *                                  primitives and is unbounded
+     */
+    public Instance(Geometry shape, Matrix4f transform, Material material) {
+        this(shape, hierarchy(shape), transform, material);
+    }
+
+    private Instance(Geometry shape, BVH bvh, Matrix4f transform, Material material) {
+        this.shape = shape;
+        this.bvh = bvh;
+        this.material = material;
+        setTransform(transform);
+    }
+
+    /**
+     * Moves the instance. The scene holding it must then be refitted before the next
+     * frame ({@link Scene#refit()}), and nothing may be tracing it meanwhile.
+     *
+     * @throws IllegalArgumentException if transform is singular
+     */
+    public void setTransform(Matrix4f transform) {
+        Matrix4f inv = transform.inverse();
+        this.transform = transform;
+        this.inverse = inv;
+        AABB b = shape.getBoundingBox();
+        this.box = b == null ? null : transform.transform(b);
+    }
+
+    /**
+     * @return object space to world space
+     */
+    public Matrix4f getTransform() {
+        return transform;
+    }
+
+    /**
+     * @return world space to object space
+     */
+    public Matrix4f getInverse() {
+        return inverse;
+    }
+
+    /**
+     * Another copy of the same shape, sharing its hierarchy.
+     *
+     * @param material replaces every material of the shape, null to keep them
+     */
+    public Instance copy(Matrix4f transform, Material material) {
+        return new Instance(shape, bvh, transform, material);
+    }
+
+    private static BVH hierarchy(Geometry shape) {
+        if (shape.getPrimitiveCount() == 1) {
+            return null;
+        }
+        if (shape.getBoundingBox() == null) {
+            throw new IllegalArgumentException("cannot instance an unbounded " + shape.getClass().getSimpleName()
+                    + " of " + shape.getPrimitiveCount() + " primitives");
+        }
+        return new BVH(new BVH.Primitives() {
+            @Override
+            public int size() {
+                return shape.getPrimitiveCount();
+            }
+
+            @Override
+            public AABB getBoundingBox(int i) {
+                return shape.getBoundingBox(i);
+            }
+
+            @Override
+            public void intersect(int i, Vec3f P, Vec3f v, Hit hit) {
+                hit.offer(shape.getIntersection(i, P, v), shape, 0, i);
+            }
+
+            @Override
+            public boolean occludes(int i, Vec3f P, Vec3f v, float maxT) {
+                return shape.occludes(i, P, v, maxT);
+            }
+        });
+    }
+
+    /**
+     * @return the hierarchy of the shape in object space, null for a single primitive
+     */
+    public BVH getBVH() {
+        return bvh;
+    }
+
+    @Override
+    public float getIntersection(Vec3f P, Vec3f v) {
+        TraceContext ctx = TraceContext.get();
+        Local l = ctx.enterInstance();
+        try {
+            toLocal(P, v, l);
+            if (bvh == null) {
+                return shape.getIntersection(l.origin, l.dir);
+            }
+            l.hit.reset();
+            bvh.intersect(l.origin, l.dir, l.hit, l.stack(bvh.getStackSize()));
+            if (l.hit.object == null) {
+                return -1f;
+            }
+            l.offer(P, v, bvh);
+            return l.hit.t;
+        } finally {
+            ctx.leaveInstance();
+        }
+    }
+
+    @Override
+    public boolean occludes(int prim, Vec3f P, Vec3f v, float maxT) {
+        TraceContext ctx = TraceContext.get();
+        Local l = ctx.enterInstance();
+        try {
+            toLocal(P, v, l);
+            if (bvh == null) {
+                return shape.occludes(0, l.origin, l.dir, maxT);
+            }
+            return bvh.findOccluder(l.origin, l.dir, maxT, l.stack(bvh.getStackSize())) >= 0;
+        } finally {
+            ctx.leaveInstance();
+        }
+    }
+
+    /**
+     * Takes the primitive of the shape hit at hit.t, kept by {@link #getIntersection} or found
+     * again in the hierarchy of the shape, then its normal and material.
+     */
+    @Override
+    public void computeSurface(Vec3f P, Vec3f v, Hit hit) {
+        hit.point.set(v).scaleLocal(hit.t).addLocal(P);
+        TraceContext ctx = TraceContext.get();
+        Local l = ctx.enterInstance();
+        try {
+            toLocal(P, v, l);
+            Hit local = l.hit;
+            local.reset();
+            if (bvh != null) {
+                if (l.holds(bvh, hit.t)) {
+                    local.t = l.closestT;
+                    local.object = l.closestObject;
+                    local.primitive = l.closestPrimitive;
+                } else {
+                    bvh.intersect(l.origin, l.dir, local, l.stack(bvh.getStackSize()));
+                }
+            }
+            if (local.object == null) {
+                local.t = hit.t;
+                local.primitive = 0;
+            }
+            shape.computeSurface(l.origin, l.dir, local);
+            inverse.transformTransposed(local.normal, hit.normal).normalizeLocal();
+            hit.material = material != null ? material : local.material;
+        } finally {
+            ctx.leaveInstance();
+        }
+    }
+
+    private void toLocal(Vec3f P, Vec3f v, Local l) {
+        inverse.transformPoint(P, l.origin);
+        inverse.transformDirection(v, l.dir);
+    }
+
+    @Override
+    public Vec3f getNormal(Vec3f M) {
+        Vec3f n = shape.getNormal(inverse.transformPoint(M, new Vec3f(0, 0, 0)));
+        return inverse.transformTransposed(n, new Vec3f(0, 0, 0)).normalizeLocal();
+    }
+
+    @Override
+    public Material getMaterial(int prim) {
+        return material != null ? material : shape.getMaterial(0);
+    }
+
+    @Override
+    public AABB getBoundingBox() {
+        return box == null ? null : new AABB(new Vec3f(0, 0, 0).set(box.min), new Vec3f(0, 0, 0).set(box.max));
+    }
+}
@@ -0,0 +1,77 @@
+package fr.florian;
+
+/**
+ * Batched intersection tests : one ray against many packed primitives (the faces of a mesh,
+ * the primitives of a BVH leaf), or a packet of coherent rays against one primitive.
+ * <p>
+ * {@link #best()} returns kernels on the Vector API (jdk.incubator.vector) when the module is
+ * present and the CPU has vectors of at least 4 floats, scalar ones otherwise. Triangle
+ * distances match {@link Triangle#getIntersection} exactly; sphere distances are computed in
+ * float instead of double and may differ by a few ulps.
+ * <p>
+ * The renderer does not use them : its BVH leaves hold at most 8 primitives of mixed
+ * types, too few to fill the lanes. They serve callers testing many primitives at once.
+ */
+public abstract class IntersectionKernels {
+    private static IntersectionKernels best;
+
+    /**
+     * @return the fastest kernels available on this JVM, chosen on first use
+     */
+    public static synchronized IntersectionKernels best() {
+        if (best == null) {
+            try {
+                best = VectorKernels.isAvailable() ? new VectorKernels() : scalar();
+            } catch (LinkageError e) {
+                // module jdk.incubator.vector absent (--add-modules oublie)
+                best = scalar();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the plain loops, available everywhere
+     */
+    public static IntersectionKernels scalar() {
+        return new ScalarKernels();
+    }
+
+    /**
+     * One ray against the triangles [from, to) of pack.
+     *
+     * @param t receives in t[k] the distance to triangle from + k, or -1 if it is missed
+     */
+    public abstract void intersect(TrianglePack pack, int from, int to, Vec3f P, Vec3f v, float[] t);
+
+    /**
+     * One ray against the spheres [from, to) of pack.
+     *
+     * @param t receives in t[k] the distance to sphere from + k, or -1 if it is missed
+     */
+    public abstract void intersect(SpherePack pack, int from, int to, Vec3f P, Vec3f v, float[] t);
+
+    /**
+     * The rays [from, to) of a packet against triangle i of pack.
+     *
+     * @param t receives in t[k] the distance along ray from + k, or -1 if it misses
+     */
+    public abstract void intersect(RayPacket rays, int from, int to, TrianglePack pack, int i, float[] t);
+
+    /**
+     * The rays [from, to) of a packet against sphere i of pack.
+     *
+     * @param t receives in t[k] the distance along ray from + k, or -1 if it misses
+     */
+    public abstract void intersect(RayPacket rays, int from, int to, SpherePack pack, int i, float[] t);
+
+    /**
+     * @return short description, such as "scalar" or "vector 512 bits"
+     */
+    public abstract String getName();
+
+    @Override
+    public String toString() {
+        return getName();
+    }
+}
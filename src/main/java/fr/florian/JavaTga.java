@@ -1,19 +1,16 @@
 package fr.florian;
 
-import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiConsumer;
 
-import static fr.florian.Vec3f.normalize;
-
 /**
  *
  * @author P. Meseure based on a Java Adaptation of a C code by B. Debouchages (M1, 2018-2019)
@@ -99,17 +96,8 @@ public class JavaTga
 
     static final int MAX_DEPTH = 15;
     static final float EPS = 1e-4f;
-
-    /**
-     * 
-     * @param fout : output file stream
-     * @param n : short to write to disc in little endian
-     */
-    private static void writeShort(FileOutputStream fout,int n) throws IOException
-    {
-        fout.write(n&255);
-        fout.write((n>>8)&255);
-    }
+    /** default of {@link Scene#withTermination} : below one 8-bit level for the brightest surfaces */
+    public static final float DEFAULT_MIN_WEIGHT = 1f / 512;
 
     /**
      * 
@@ -123,109 +111,362 @@ public class JavaTga
      */
     public static void saveTGA(String filename, byte buffer[], int width, int height) throws IOException, UnsupportedEncodingException {
 
-        FileOutputStream fout = new FileOutputStream(new File(filename));
-
-        fout.write(0); // Comment size, no comment
-        fout.write(0); // Colormap type: No colormap
-        fout.write(2); // Image type
-        writeShort(fout,0); // Origin
-        writeShort(fout,0); // Length
-        fout.write(0); // Depth
-        writeShort(fout,0); // X origin
-        writeShort(fout,0); // Y origin
-        writeShort(fout,width); // Width of the image
-        writeShort(fout,height); // Height of the image
-        fout.write(24); // Pixel size in bits (24bpp)
-        fout.write(0); // Descriptor
-
-        /* Write the buffer */
-        fout.write(buffer);
-
-        fout.close();
+        new TgaWriter().write(filename, buffer, width, height);
     }
 
     /**
-     * Main entry point. Renders many separate scenes.
+     * Main entry point. Renders many separate scenes, all at once on the shared pool, or
+     * the scene file given on the command line.
      *
-     * @param args no command line arguments
+     * @param args none, or a scene file (see {@link SceneFile}) and the output image
      */
     public static void main(String[] args) throws IOException {
         final int w = 1024, h = 768;
         final int blockSize = 32;
 
-        renderScene("scene_simple.tga", w, h, blockSize, JavaTga::drawSimpleScene);
-        renderScene("palais_glace.tga", w, h, blockSize, JavaTga::drawMirrorPalaceScene);
-        renderScene("refraction.tga", w, h, blockSize, JavaTga::drawRefractionScene);
-        renderScene("reflection.tga", w, h, blockSize, JavaTga::drawReflexionScene);
-        renderScene("reflectionDamier.tga", w, h, blockSize, JavaTga::drawDamierReflectionScene);
-        renderScene("refractionDamier.tga", w, h, blockSize, JavaTga::drawDamierRefractionScene);
+        if (args.length >= 2) {
+            // scene compilee une fois, puis relue depuis le cache
+            Scene scene = new SceneCache(Path.of(".scene-cache")).load(Path.of(args[0]));
+            RenderStats stats = new RenderStats();
+            byte[] buffer = render(scene, w, h, blockSize, new TileCosts(w, h, blockSize), stats);
+            ImageWriter.forFile(args[1]).write(args[1], buffer, w, h);
+            report(args[1], stats);
+            return;
+        }
+
+        BatchRenderer batch = new BatchRenderer();
+        CompletableFuture.allOf(
+                submit(batch, "scene_simple.tga", w, h, blockSize, JavaTga::drawSimpleScene),
+                submit(batch, "palais_glace.tga", w, h, blockSize, JavaTga::drawMirrorPalaceScene),
+                submit(batch, "refraction.tga", w, h, blockSize, JavaTga::drawRefractionScene),
+                submit(batch, "reflection.tga", w, h, blockSize, JavaTga::drawReflexionScene),
+                submit(batch, "reflectionDamier.tga", w, h, blockSize, JavaTga::drawDamierReflectionScene),
+                submit(batch, "refractionDamier.tga", w, h, blockSize, JavaTga::drawDamierRefractionScene)).join();
+    }
+
+    /**
+     * Submits a scene to the batch, then prints the statistics of its image once it is
+     * written, or why it could not be.
+     *
+     * @return completed once the summary or the failure is printed
+     */
+    private static CompletableFuture<Void> submit(BatchRenderer batch, String filename, int w, int h, int blockSize,
+                                                  BiConsumer<List<Geometry>, List<Light>> sceneBuilder) {
+        RenderStats stats = new RenderStats();
+        return batch.submit(filename, w, h, blockSize, 0, stats, sceneBuilder).handle((f, e) -> {
+            if (e == null) {
+                report(filename, stats);
+            } else {
+                System.err.println(filename + " not rendered : " + (e instanceof CompletionException ? e.getCause() : e));
+            }
+            return null;
+        });
     }
 
     /**
      * Renders a scene with ray tracing and saves to file.*
      *
-     * @param filename name of output TGA
+     * @param filename name of output image, PNG if it ends with ".png", TGA otherwise
      * @param sceneBuilder function to build the scene (geometries + lights)
      */
     public static void renderScene(String filename, int w, int h, int blockSize,
                                    BiConsumer<List<Geometry>, List<Light>> sceneBuilder) throws IOException {
-        byte[] buffer = new byte[3 * w * h];
+        Scene compiled = build(sceneBuilder);
+
+        RenderStats stats = new RenderStats();
+        byte[] buffer = render(compiled, w, h, blockSize, new TileCosts(w, h, blockSize), stats);
+        ImageWriter.forFile(filename).write(filename, buffer, w, h);
+        report(filename, stats);
+    }
+
+    /**
+     * Renders a scene with adaptive anti-aliasing and saves to file, then prints how many
+     * samples were spent.
+     *
+     * @param filename name of output image, PNG if it ends with ".png", TGA otherwise
+     * @param sampler anti-aliasing settings, collects the statistics of this image
+     * @param sceneBuilder function to build the scene (geometries + lights)
+     */
+    public static void renderScene(String filename, int w, int h, int blockSize, AdaptiveSampler sampler,
+                                   BiConsumer<List<Geometry>, List<Light>> sceneBuilder) throws IOException {
+        Scene compiled = build(sceneBuilder);
+
+        RenderStats stats = new RenderStats();
+        byte[] buffer = render(compiled, w, h, blockSize, sampler, stats);
+        ImageWriter.forFile(filename).write(filename, buffer, w, h);
+        System.out.println(filename + " : " + sampler);
+        report(filename, stats);
+    }
+
+    /**
+     * Renders a scene and saves to file, tracing again only the tiles the edits since the
+     * last render through the same cache can change.
+     *
+     * @param filename name of output image, PNG if it ends with ".png", TGA otherwise
+     * @param cache tile cache of this image, see {@link TileCache}
+     * @param sceneBuilder function to build the scene (geometries + lights)
+     */
+    public static void renderScene(String filename, int w, int h, int blockSize, TileCache cache,
+                                   BiConsumer<List<Geometry>, List<Light>> sceneBuilder) throws IOException {
+        Scene compiled = build(sceneBuilder);
+
+        RenderStats stats = new RenderStats();
+        byte[] buffer = cache.render(compiled, w, h, blockSize, stats);
+        ImageWriter.forFile(filename).write(filename, buffer, w, h);
+        System.out.println(filename + " : " + cache);
+        report(filename, stats);
+    }
+
+    /**
+     * Renders a scene within a wall-clock budget and saves to file, then prints the quality
+     * level its tiles reached.
+     *
+     * @param filename name of output image, PNG if it ends with ".png", TGA otherwise
+     * @param renderer budget and quality levels, see {@link BudgetRenderer}
+     * @param sceneBuilder function to build the scene (geometries + lights)
+     */
+    public static void renderScene(String filename, int w, int h, int blockSize, BudgetRenderer renderer,
+                                   BiConsumer<List<Geometry>, List<Light>> sceneBuilder) throws IOException {
+        Scene compiled = build(sceneBuilder);
+
+        RenderStats stats = new RenderStats();
+        byte[] buffer = renderer.render(compiled, w, h, blockSize, stats);
+        ImageWriter.forFile(filename).write(filename, buffer, w, h);
+        System.out.println(filename + " : " + renderer);
+        report(filename, stats);
+    }
+
+    /**
+     * Renders a scene straight into a memory-mapped TGA file, without holding the image
+     * on the heap : for resolutions too large for a byte array.
+     *
+     * @param filename name of output TGA
+     * @param sceneBuilder function to build the scene (geometries + lights)
+     */
+    public static void renderSceneToFile(String filename, int w, int h, int blockSize,
+                                         BiConsumer<List<Geometry>, List<Light>> sceneBuilder) throws IOException {
+        Scene compiled = build(sceneBuilder);
+
+        RenderStats stats = new RenderStats();
+        try (MappedFramebuffer framebuffer = new MappedFramebuffer(filename, w, h)) {
+            render(compiled, framebuffer, blockSize, stats);
+        }
+        report(filename, stats);
+    }
+
+    /**
+     * @return the scene of sceneBuilder, compiled
+     */
+    private static Scene build(BiConsumer<List<Geometry>, List<Light>> sceneBuilder) {
         List<Geometry> scene = new ArrayList<>();
         List<Light> lights = new ArrayList<>();
 
         sceneBuilder.accept(scene, lights);
+        return new Scene(scene, lights);
+    }
+
+    /**
+     * Prints the statistics of an image rendered by renderScene, unless they are compiled out.
+     */
+    private static void report(String filename, RenderStats stats) {
+        if (RenderStats.ENABLED) {
+            System.out.println(filename + " : " + stats.report());
+        }
+    }
+
+    /**
+     * Renders a compiled scene in parallel, by blocks, on the shared tile scheduler.
+     * Tile costs are estimated first by a quick low-resolution pre-pass.
+     *
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public static byte[] render(Scene scene, int w, int h, int blockSize) {
+        return render(scene, w, h, blockSize, new TileCosts(w, h, blockSize));
+    }
+
+    /**
+     * Same as {@link #render(Scene, int, int, int)}, reusing the tile costs measured on a
+     * previous frame of the same size when there are some. They are updated with the
+     * costs of this frame.
+     */
+    public static byte[] render(Scene scene, int w, int h, int blockSize, TileCosts costs) {
+        return render(scene, w, h, blockSize, costs, null);
+    }
+
+    /**
+     * Same as {@link #render(Scene, int, int, int, TileCosts)}, collecting the rays and tile
+     * times of the frame into stats (may be null).
+     */
+    public static byte[] render(Scene scene, int w, int h, int blockSize, TileCosts costs, RenderStats stats) {
+        byte[] buffer = new byte[3 * w * h];
+        TileScheduler scheduler = TileScheduler.shared();
+        if (!costs.isKnown()) {
+            scheduler.estimate(costs, (x, y) -> tracePixel(TraceContext.get(), scene, w, h, x, y));
+        }
+        scheduler.render(costs, stats, (x0, y0, x1, y1) -> renderBlock(scene, buffer, w, h, x0, y0, x1, y1));
+        return buffer;
+    }
+
+    /**
+     * Renders a compiled scene with adaptive anti-aliasing, on the shared tile scheduler.
+     * The samples actually spent are counted by the sampler.
+     *
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public static byte[] render(Scene scene, int w, int h, int blockSize, AdaptiveSampler sampler) {
+        return render(scene, w, h, blockSize, sampler, null);
+    }
+
+    /**
+     * Same as {@link #render(Scene, int, int, int, AdaptiveSampler)}, collecting the rays and
+     * tile times into stats (may be null).
+     */
+    public static byte[] render(Scene scene, int w, int h, int blockSize, AdaptiveSampler sampler, RenderStats stats) {
+        byte[] buffer = new byte[3 * w * h];
+        TileScheduler scheduler = TileScheduler.shared();
+        TileCosts costs = new TileCosts(w, h, blockSize);
+        scheduler.estimate(costs, (x, y) -> tracePixel(TraceContext.get(), scene, w, h, x, y));
+        scheduler.render(costs, stats, (x0, y0, x1, y1) -> sampler.renderTile(scene, buffer, w, h, x0, y0, x1, y1));
+        return buffer;
+    }
+
+    /**
+     * Renders a compiled scene in parallel into a memory-mapped framebuffer, each tile
+     * writing its rows directly into the mapping.
+     */
+    public static void render(Scene scene, MappedFramebuffer framebuffer, int blockSize) {
+        render(scene, framebuffer, blockSize, null);
+    }
+
+    /**
+     * Same as {@link #render(Scene, MappedFramebuffer, int)}, collecting the rays and tile
+     * times into stats (may be null).
+     */
+    public static void render(Scene scene, MappedFramebuffer framebuffer, int blockSize, RenderStats stats) {
+        int w = framebuffer.width, h = framebuffer.height;
+        TileScheduler scheduler = TileScheduler.shared();
+        TileCosts costs = new TileCosts(w, h, blockSize);
+        scheduler.estimate(costs, (x, y) -> tracePixel(TraceContext.get(), scene, w, h, x, y));
+        scheduler.render(costs, stats, (x0, y0, x1, y1) -> renderBlock(scene, framebuffer, x0, y0, x1, y1));
+    }
+
+    /**
+     * Adds one sample per pixel, at its center, to an accumulation framebuffer, in parallel
+     * on the shared tile scheduler.
+     */
+    public static void render(Scene scene, HdrFramebuffer framebuffer, int blockSize) {
+        render(scene, framebuffer, blockSize, 0, 0);
+    }
+
+    /**
+     * Same as {@link #render(Scene, HdrFramebuffer, int)}, the sample of pixel (i, j) being
+     * traced at (i + dx, j + dy).
+     */
+    public static void render(Scene scene, HdrFramebuffer framebuffer, int blockSize, float dx, float dy) {
+        TileCosts costs = new TileCosts(framebuffer.width, framebuffer.height, blockSize);
+        TileScheduler.shared().render(costs, (x0, y0, x1, y1) -> renderBlock(scene, framebuffer, x0, y0, x1, y1, dx, dy));
+    }
+
+    /**
+     * Ray traces the pixels [startX, endX) x [startY, endY) of the image, at (col + dx, row + dy),
+     * and adds the unclamped colors to an accumulation framebuffer.
+     */
+    public static void renderBlock(Scene scene, HdrFramebuffer framebuffer,
+                                   int startX, int startY, int endX, int endY, float dx, float dy) {
+        TraceContext ctx = TraceContext.get();
+        int w = framebuffer.width, h = framebuffer.height;
+        for (int row = startY; row < endY; row++) {
+            for (int col = startX; col < endX; col++) {
+                framebuffer.add(col, row, tracePixel(ctx, scene, w, h, col + dx, row + dy));
+            }
+        }
+    }
+
+    /**
+     * Ray traces the pixels [startX, endX) x [startY, endY) of the image into buffer.
+     *
+     * @param buffer image buffer of w x h pixels, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public static void renderBlock(Scene scene, byte[] buffer, int w, int h,
+                                   int startX, int startY, int endX, int endY) {
+        renderBlock(scene, buffer, 0, 0, w, w, h, startX, startY, endX, endY);
+    }
 
-        // initialisation du pool de threads
-        int threads = Runtime.getRuntime().availableProcessors();
-        ExecutorService executor = Executors.newFixedThreadPool(threads);
-
-        // parallelisation par blocs
-        for (int blockY = 0; blockY < h; blockY += blockSize) {
-            for (int blockX = 0; blockX < w; blockX += blockSize) {
-                final int startX = blockX;
-                final int startY = blockY;
-
-                executor.submit(() -> {
-                    int endX = Math.min(startX + blockSize, w);
-                    int endY = Math.min(startY + blockSize, h);
-
-                    for (int row = startY; row < endY; row++) {
-                        for (int col = startX; col < endX; col++) {
-                            int index = 3 * ((row * w) + col);
-
-                            // calcul direction rayon
-                            float x = ((col - w / 2f) / (float) h);
-                            float y = ((row - h / 2f) / (float) h);
-
-                            Vec3f rayDir = new Vec3f(x, y - 0.2f, -1);
-                            rayDir = normalize(rayDir);
-
-                            // obtention de la couleur par lancer de rayon
-                            Vec3f pixelColor = findColor(new Vec3f(0, 2, 0), rayDir, scene, lights, 0);
-
-                            // clamp et ecriture dans le buffer
-                            pixelColor.x = Math.min(1, pixelColor.x);
-                            pixelColor.y = Math.min(1, pixelColor.y);
-                            pixelColor.z = Math.min(1, pixelColor.z);
-
-                            buffer[index] = (byte) (pixelColor.z * 255);
-                            buffer[index + 1] = (byte) (pixelColor.y * 255);
-                            buffer[index + 2] = (byte) (pixelColor.x * 255);
-                        }
-                    }
-                });
+    /**
+     * Ray traces the pixels [startX, endX) x [startY, endY) of the image into a buffer
+     * holding only part of it, such as a single tile.
+     *
+     * @param buffer  pixels from (originX, originY) of the image, stride pixels per row,
+     *                3 bytes per pixel ordered Blue, Green, Red
+     * @param w       width of the whole image
+     * @param h       height of the whole image
+     */
+    public static void renderBlock(Scene scene, byte[] buffer, int originX, int originY, int stride, int w, int h,
+                                   int startX, int startY, int endX, int endY) {
+        TraceContext ctx = TraceContext.get();
+        for (int row = startY; row < endY; row++) {
+            for (int col = startX; col < endX; col++) {
+                int index = 3 * ((row - originY) * stride + col - originX);
+
+                // obtention de la couleur par lancer de rayon
+                Vec3f pixelColor = tracePixel(ctx, scene, w, h, col, row);
+
+                // clamp et ecriture dans le buffer
+                pixelColor.x = Math.min(1, pixelColor.x);
+                pixelColor.y = Math.min(1, pixelColor.y);
+                pixelColor.z = Math.min(1, pixelColor.z);
+
+                buffer[index] = (byte) (pixelColor.z * 255);
+                buffer[index + 1] = (byte) (pixelColor.y * 255);
+                buffer[index + 2] = (byte) (pixelColor.x * 255);
             }
         }
+    }
 
-        executor.shutdown();
-        try {
-            executor.awaitTermination(10, TimeUnit.MINUTES);
-            saveTGA(filename, buffer, w, h);
-        } catch (InterruptedException | IOException e) {
-            e.printStackTrace();
+    /**
+     * Ray traces the pixels [startX, endX) x [startY, endY) of the image into a
+     * memory-mapped framebuffer, one row at a time.
+     */
+    public static void renderBlock(Scene scene, MappedFramebuffer framebuffer,
+                                   int startX, int startY, int endX, int endY) {
+        TraceContext ctx = TraceContext.get();
+        int w = framebuffer.width, h = framebuffer.height;
+        byte[] line = new byte[3 * (endX - startX)];
+        for (int row = startY; row < endY; row++) {
+            for (int col = startX; col < endX; col++) {
+                int index = 3 * (col - startX);
+
+                Vec3f pixelColor = tracePixel(ctx, scene, w, h, col, row);
+
+                line[index] = (byte) (Math.min(1, pixelColor.z) * 255);
+                line[index + 1] = (byte) (Math.min(1, pixelColor.y) * 255);
+                line[index + 2] = (byte) (Math.min(1, pixelColor.x) * 255);
+            }
+            framebuffer.writeRow(startX, row, line, endX - startX);
         }
     }
 
+    /**
+     * Traces the camera ray of pixel (col, row).
+     *
+     * @return the unclamped color, held by ctx until its next use
+     */
+    static Vec3f tracePixel(TraceContext ctx, Scene scene, int w, int h, int col, int row) {
+        return tracePixel(ctx, scene, w, h, (float) col, (float) row);
+    }
+
+    /**
+     * Traces the camera ray through the point (col, row) of the image plane, in pixel
+     * units : pixel (i, j) is sampled at (i, j) by default and covers [i - 0.5, i + 0.5).
+     *
+     * @return the unclamped color, held by ctx until its next use
+     */
+    static Vec3f tracePixel(TraceContext ctx, Scene scene, int w, int h, float col, float row) {
+        Vec3f rayDir = scene.camera.direction(ctx.rayDir, w, h, col, row);
+        if (RenderStats.ENABLED) ctx.counters[RenderStats.PRIMARY]++;
+        return findColor(ctx, ctx.rayOrigin.set(scene.camera.position), rayDir, scene, 0, ctx.color);
+    }
+
     /**
      *
      * Computes the color returned by a ray in the scene using the Phong model
@@ -233,104 +474,186 @@ public class JavaTga
      *
      * @param P the origin point of the ray
      * @param v the normalized direction of the ray
-     * @param scene the list of all geometric objects in the scene
-     * @param lights the list of light sources in the scene
+     * @param scene the scene (objects indexed by a BVH, and light sources)
      * @param depth the current recursion depth
      * @return a Vec3f containing the RGB color returned by this ray
      */
-    public static Vec3f findColor(Vec3f P, Vec3f v,
-                                  List<Geometry> scene, List<Light> lights,
-                                  int depth) {
-        float tMin = Float.MAX_VALUE;
-        Geometry hitObj = null;
-
-        // intersection la plus proche
-        for (Geometry obj : scene) {
-            float t = obj.getIntersection(P, v);
-            if (t > EPS && t < tMin) {
-                tMin = t;
-                hitObj = obj;
-            }
-        }
-        if (hitObj == null) {
+    public static Vec3f findColor(Vec3f P, Vec3f v, Scene scene, int depth) {
+        return findColor(TraceContext.get(), P, v, scene, depth, new Vec3f(0, 0, 0));
+    }
+
+    /**
+     * Same as {@link #findColor(TraceContext, Vec3f, Vec3f, Scene, int, float, Vec3f)} for
+     * a ray of full weight, such as a camera ray.
+     */
+    public static Vec3f findColor(TraceContext ctx, Vec3f P, Vec3f v, Scene scene, int depth, Vec3f out) {
+        return findColor(ctx, P, v, scene, depth, 1, out);
+    }
+
+    /**
+     * Allocation-free version of {@link #findColor(Vec3f, Vec3f, Scene, int)} : every temporary
+     * comes from the scratch state of the calling thread.
+     *
+     * @param ctx the context of the calling thread
+     * @param P the origin point of the ray (left untouched)
+     * @param v the normalized direction of the ray (left untouched)
+     * @param scene the scene (objects indexed by a BVH, and light sources)
+     * @param depth the current recursion depth
+     * @param weight share of the pixel color this ray accounts for, see {@link Scene#withTermination}
+     * @param out receives the RGB color returned by this ray
+     * @return out
+     */
+    public static Vec3f findColor(TraceContext ctx, Vec3f P, Vec3f v, Scene scene, int depth, float weight, Vec3f out) {
+        TraceContext.Frame f = ctx.frame(depth);
+        int[] stack = ctx.stack(scene.getStackSize());
+        long[] counters = ctx.counters;
+        if (RenderStats.ENABLED) counters[RenderStats.DEPTH + depth]++;
+
+        // intersection la plus proche (point, normale et materiau en un seul appel)
+        Hit hit = f.hit;
+        TileRecorder recorder = ctx.recorder;
+        if (!scene.intersect(P, v, hit, stack, counters)) {
+            if (recorder != null) recorder.ray(recorder.slot(depth), P, v, Float.POSITIVE_INFINITY);
             // fond noir
-            return new Vec3f(0,0,0);
+            return out.set(0, 0, 0);
         }
+        if (recorder != null) {
+            recorder.ray(recorder.slot(depth), P, v, hit.t);
+            recorder.objects.set(hit.index);
+            recorder.lit |= !scene.lights.isEmpty();
+        }
+        return shade(ctx, v, scene, depth, weight, out);
+    }
 
-        // point d'intersection
-        Vec3f M = P.add(v.scale(tMin));
-        // normale
-        Vec3f N = hitObj.getNormal(M);
-        Material mat = hitObj.material;
-
-        // calcul de l'eclairage local (Phong)
-        Vec3f color = new Vec3f(0, 0, 0);
-        for (Light L : lights) {
-            color = color.add(mat.ambient.mul(L.ambient));
-            Vec3f toL = normalize(L.position.sub(M));
-
-            // test d'ombre
-            boolean inShadow = false;
-            float distToLight = L.position.sub(M).length();
-            for (Geometry o2 : scene) {
-                float ts = o2.getIntersection(M.add(N.scale(EPS)), toL);
-                if (ts > EPS && ts < distToLight) {
-                    inShadow = true;
-                    break;
-                }
+    /**
+     * Second half of {@link #findColor(TraceContext, Vec3f, Vec3f, Scene, int, float, Vec3f)} :
+     * color of the hit held by the frame of depth in ctx, for the ray of direction v.
+     * At depth 0, the shadow tests already known to ctx ({@link TraceContext#shadows}) are
+     * reused instead of traced.
+     */
+    static Vec3f shade(TraceContext ctx, Vec3f v, Scene scene, int depth, float weight, Vec3f out) {
+        TraceContext.Frame f = ctx.frame(depth);
+        int[] stack = ctx.stack(scene.getStackSize());
+        long[] counters = ctx.counters;
+        TileRecorder recorder = ctx.recorder;
+        Hit hit = f.hit;
+        Vec3f M = hit.point;
+        Vec3f N = hit.normal;
+        Material mat = hit.material;
+
+        // calcul de l'eclairage local (Phong), produits materiau x lumiere precalcules
+        Vec3f color = f.color.set(0, 0, 0);
+        ShadingTable.Kernel kernel = scene.shading.kernel(mat);
+        float[] c = kernel.coefficients;
+        float[] positions = scene.shading.positions;
+        OccluderCache occluders = ctx.occluders(scene);
+        byte[] shadows = depth == 0 ? ctx.shadows : null;
+        Vec3f shadowOrigin = f.origin.set(N).scaleLocal(EPS).addLocal(M);
+        for (int i = 0, o = 0; i < kernel.shaded.length; i++, o += ShadingTable.COEFFICIENTS) {
+            color.x += c[o];
+            color.y += c[o + 1];
+            color.z += c[o + 2];
+            if (!kernel.shaded[i]) {
+                continue; // ni diffus ni speculaire : pas de rayon d'ombre
+            }
+
+            Vec3f toL = f.toL.set(positions[3 * i], positions[3 * i + 1], positions[3 * i + 2]).subLocal(M);
+            float distToLight = toL.length();
+            toL.normalizeLocal();
+
+            // test d'ombre, en commencant par le dernier bloqueur trouve pour cette lumiere
+            if (RenderStats.ENABLED) counters[RenderStats.SHADOW]++;
+            boolean inShadow;
+            if (shadows != null && shadows[i] != TraceContext.UNKNOWN) {
+                inShadow = shadows[i] == TraceContext.SHADOWED;
+            } else {
+                inShadow = scene.occluded(shadowOrigin, toL, distToLight, stack, occluders, i, counters);
+                if (shadows != null) shadows[i] = inShadow ? TraceContext.SHADOWED : TraceContext.LIT;
+            }
+            if (recorder != null) {
+                if (inShadow) recorder.objects.set(occluders.index(i));
+                else recorder.ray(recorder.slot(depth) + 1 + i, shadowOrigin, toL, distToLight);
             }
             if (!inShadow) {
                 // diffus
-                float diff = Math.max(0, N.dot(toL));
-                Vec3f diffuse = mat.diffuse.mul(L.diffuse).scale(diff);
-                color = color.add(diffuse);
-
-                //speculaire
-                Vec3f toV = v.negate();  // vers la camera
-                Vec3f refl = normalize(toL.negate().sub(N.scale(2 * toL.negate().dot(N))));
-                float spec = (float)Math.pow(Math.max(0, toV.dot(refl)), mat.shininess);
-                Vec3f specular = mat.specular.mul(L.specular).scale(spec);
-                color = color.add(specular);
+                if (kernel.diffuse[i]) {
+                    float diff = Math.max(0, N.dot(toL));
+                    color.x += c[o + 3] * diff;
+                    color.y += c[o + 4] * diff;
+                    color.z += c[o + 5] * diff;
+                }
+
+                //speculaire (toV = -v, vers la camera)
+                if (kernel.specular[i]) {
+                    float dn = -toL.dot(N);
+                    Vec3f refl = f.tmp.set(toL).negateLocal().addScaledLocal(N, -2 * dn).normalizeLocal();
+                    float spec = kernel.power(Math.max(0, -v.dot(refl)));
+                    color.x += c[o + 6] * spec;
+                    color.y += c[o + 7] * spec;
+                    color.z += c[o + 8] * spec;
+                }
             }
         }
 
         // gestion des reflexions
-        Vec3f reflCol = new Vec3f(0,0,0);
-        if (mat.reflectivity > 0 && depth < MAX_DEPTH) {
-            Vec3f R = normalize(v.sub(N.scale(2 * v.dot(N))));
-            reflCol = findColor( M.add(N.scale(EPS)), R, scene, lights, depth + 1).scale(mat.reflectivity);
+        Vec3f reflCol = f.reflColor.set(0, 0, 0);
+        // poids des rayons secondaires : part du pixel qu'ils peuvent encore changer
+        float reflWeight = mat.reflectivity > 0 ? mat.reflectivity * survival(ctx, scene, weight * mat.reflectivity) : 0;
+        if (reflWeight > 0 && depth < MAX_DEPTH) {
+            Vec3f R = f.dir.set(v).addScaledLocal(N, -2 * v.dot(N)).normalizeLocal();
+            Vec3f origin = f.origin.set(N).scaleLocal(EPS).addLocal(M);
+            if (RenderStats.ENABLED) counters[RenderStats.REFLECTION]++;
+            findColor(ctx, origin, R, scene, depth + 1, weight * reflWeight, reflCol).scaleLocal(reflWeight);
         }
 
         // gestion des refractions
-        Vec3f refrCol = new Vec3f(0,0,0);
-        if (mat.transparency > 0 && depth < MAX_DEPTH) {
+        Vec3f refrCol = f.refrColor.set(0, 0, 0);
+        float refrWeight = mat.transparency > 0 ? mat.transparency * survival(ctx, scene, weight * mat.transparency) : 0;
+        if (refrWeight > 0 && depth < MAX_DEPTH) {
             float n1 = 1f;  // air
             float n2 = mat.ior;
-            Vec3f N2 = N;
-            float cosI = v.negate().dot(N);
+            float side = 1;  // N2 = side * N
+            float cosI = -v.dot(N);
             if (cosI < 0) { // on sort du materiau
                 cosI = -cosI;
-                N2 = N.negate();
+                side = -1;
                 float tmp = n1; n1 = n2; n2 = tmp;
             }
             float eta = n1 / n2;
             float k = 1 - eta*eta*(1 - cosI*cosI);
             if (k >= 0) {
-                Vec3f T = normalize(v.scale(eta).add(N2.scale(eta * cosI - (float)Math.sqrt(k)))
-                );
-                refrCol = findColor( M.add(T.scale(EPS)), T, scene, lights, depth + 1)
-                        .scale(mat.transparency);
+                Vec3f T = f.dir.set(v).scaleLocal(eta)
+                        .addScaledLocal(N, side * (eta * cosI - (float)Math.sqrt(k)))
+                        .normalizeLocal();
+                Vec3f origin = f.origin.set(T).scaleLocal(EPS).addLocal(M);
+                if (RenderStats.ENABLED) counters[RenderStats.REFRACTION]++;
+                findColor(ctx, origin, T, scene, depth + 1, weight * refrWeight, refrCol).scaleLocal(refrWeight);
             }
         }
 
         // composition finale des couleurs
         float Rf = mat.reflectivity, Tr = mat.transparency;
-        Vec3f local = color.scale(1 - Rf - Tr);
-        return local.add(reflCol).add(refrCol);
+        return out.set(color).scaleLocal(1 - Rf - Tr).addLocal(reflCol).addLocal(refrCol);
     }
 
+    /**
+     * @param weight share of the pixel a secondary ray would account for
+     * @return factor of its contribution : 1 to trace it, 0 to drop it, 1 / p if it survived
+     *         Russian roulette with probability p
+     */
+    static float survival(TraceContext ctx, Scene scene, float weight) {
+        if (weight >= scene.minWeight) {
+            return 1;
+        }
+        if (!scene.russianRoulette) {
+            return 0;
+        }
+        float p = weight / scene.minWeight;
+        return ctx.random() < p ? 1 / p : 0;
+    }
 
-    private static void drawSimpleScene(List<Geometry> scene, List<Light> lights) {
+
+    static void drawSimpleScene(List<Geometry> scene, List<Light> lights) {
         scene.add(new Sphere(new Vec3f( -2.0f, 0.5f, -7f), 0.75f, greyMirror));
         scene.add(new Sphere(new Vec3f(-1.0f, 0.5f, -6), 0.5f, red));
         scene.add(new Sphere(new Vec3f(0f, 0.5f, -5f), 0.5f, diffuseBlue));
@@ -386,7 +709,7 @@ public class JavaTga
         ));
     }
 
-    private static void drawMirrorPalaceScene(List<Geometry> scene, List<Light> lights) {
+    static void drawMirrorPalaceScene(List<Geometry> scene, List<Light> lights) {
         // sol
         scene.add(new Plane(new Vec3f(0f, -1f, 0f), new Vec3f(0f, 1f, 0f), brown));
         // plafond
@@ -414,7 +737,7 @@ public class JavaTga
         ));
     }
 
-    private static void drawRefractionScene(List<Geometry> scene, List<Light> lights) {
+    static void drawRefractionScene(List<Geometry> scene, List<Light> lights) {
         Material checker = new Material(
                 new Vec3f(0.2f, 0.2f, 0.2f),
                 new Vec3f(0.8f, 0.8f, 0.8f),
@@ -442,7 +765,7 @@ public class JavaTga
                 new Vec3f(1f, 1f, 1f)
         ));
     }
-    private static void drawReflexionScene(List<Geometry> scene, List<Light> lights){
+    static void drawReflexionScene(List<Geometry> scene, List<Light> lights){
         //sol
         scene.add(new Plane(new Vec3f(0f, 0f, 0f), new Vec3f(0f, 1f, 0f), white));
 
@@ -470,25 +793,19 @@ public class JavaTga
         ));
     }
 
-    private static void drawDamierRefractionScene(List<Geometry> scene, List<Light> lights) {
-        for (int i = -6; i < 6; i++) {
-            for (int j = -30; j < 1; j++) {
-                Material mat = ((i + j) % 2 == 0) ? white : grey;
-                Vec3f p0 = new Vec3f(i,   0f, j);
-                Vec3f p1 = new Vec3f(i+1, 0f, j);
-                Vec3f p2 = new Vec3f(i+1, 0, j+1);
-                Vec3f p3 = new Vec3f(i,   -0, j+1);
-                scene.add(new Triangle(p0, p1, p2, mat));
-                scene.add(new Triangle(p0, p2, p3, mat));
-            }
-        }
+    static void drawDamierRefractionScene(List<Geometry> scene, List<Light> lights) {
+        TriangleMesh floor = new TriangleMesh();
+        addCheckerboard(floor, -6, 6, -30, 1);
+        scene.add(floor);
 
 //        //sol
 //        scene.add(new Plane(new Vec3f(0f, 0f, 0f), new Vec3f(0f, 1f, 0f), white));
 
         scene.add(new Sphere(new Vec3f(0f, 1f, -8f), 1f, glass));
-        addCubeAsTriangles(scene, new Vec3f(-4f,1f,-15f), 2f, diffuseOrange);
-        addCubeAsTriangles(scene, new Vec3f( 4f,1f,-15f), 2f, diffuseOrange);
+        TriangleMesh cubes = new TriangleMesh();
+        addCubeAsTriangles(cubes, new Vec3f(-4f,1f,-15f), 2f, diffuseOrange);
+        addCubeAsTriangles(cubes, new Vec3f( 4f,1f,-15f), 2f, diffuseOrange);
+        scene.add(cubes);
 
         scene.add(new Plane(
                 new Vec3f(0f, 0f, -20f), new Vec3f(0f, 0f, 1f), red
@@ -517,26 +834,20 @@ public class JavaTga
         ));
     }
 
-    private static void drawDamierReflectionScene(List<Geometry> scene, List<Light> lights) {
+    static void drawDamierReflectionScene(List<Geometry> scene, List<Light> lights) {
 
-        for (int i = -6; i < 6; i++) {
-            for (int j = -30; j < 1; j++) {
-                Material mat = ((i + j) % 2 == 0) ? white : grey;
-                Vec3f p0 = new Vec3f(i,   0f, j);
-                Vec3f p1 = new Vec3f(i+1, 0f, j);
-                Vec3f p2 = new Vec3f(i+1, 0f, j+1);
-                Vec3f p3 = new Vec3f(i,   0f, j+1);
-                scene.add(new Triangle(p0, p1, p2, mat));
-                scene.add(new Triangle(p0, p2, p3, mat));
-            }
-        }
+        TriangleMesh floor = new TriangleMesh();
+        addCheckerboard(floor, -6, 6, -30, 1);
+        scene.add(floor);
 
 //        //sol
 //        scene.add(new Plane(new Vec3f(0f, 0f, 0f), new Vec3f(0f, 1f, 0f), white));
 
         scene.add(new Sphere(new Vec3f(0f, 1f, -8f), 1f, greyMirror));
-        addCubeAsTriangles(scene, new Vec3f(-4f,1f,-15f), 2f, diffuseOrange);
-        addCubeAsTriangles(scene, new Vec3f( 4f,1f,-15f), 2f, diffuseOrange);
+        TriangleMesh cubes = new TriangleMesh();
+        addCubeAsTriangles(cubes, new Vec3f(-4f,1f,-15f), 2f, diffuseOrange);
+        addCubeAsTriangles(cubes, new Vec3f( 4f,1f,-15f), 2f, diffuseOrange);
+        scene.add(cubes);
 
 
         scene.add(new Plane(
@@ -567,6 +878,110 @@ public class JavaTga
         ));
     }
 
+    /**
+     * Ten thousand copies of one tree model, each an {@link Instance} of the same mesh with
+     * its own position, turn and size ; one in seven is painted orange by a material override.
+     */
+    static void drawForestScene(List<Geometry> scene, List<Light> lights) {
+        scene.add(new Plane(new Vec3f(0f, 0f, 0f), new Vec3f(0f, 1f, 0f), grey));
+
+        // tronc et deux etages de feuillage, 36 triangles en tout
+        TriangleMesh model = new TriangleMesh();
+        addCubeAsTriangles(model, new Vec3f(0f, 0.3f, 0f), 0.3f, brown);
+        addCubeAsTriangles(model, new Vec3f(0f, 0.9f, 0f), 1f, verticalGreen);
+        addCubeAsTriangles(model, new Vec3f(0f, 1.6f, 0f), 0.6f, verticalGreen);
+        Instance tree = new Instance(model, Matrix4f.IDENTITY);
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j < 100; j++) {
+                float x = -25f + 0.5f * i + random.nextFloat() * 0.3f;
+                float z = -4f - 1f * j - random.nextFloat() * 0.5f;
+                Matrix4f place = Matrix4f.translation(x, 0f, z)
+                        .mul(Matrix4f.rotationY(random.nextFloat() * 6.2831855f))
+                        .mul(Matrix4f.scaling(0.5f + 0.4f * random.nextFloat()));
+                scene.add(tree.copy(place, (i * 100 + j) % 7 == 0 ? diffuseOrange : null));
+            }
+        }
+
+        lights.add(new Light(
+                new Vec3f(-10f, 20f, 10f),
+                new Vec3f(0.2f, 0.2f, 0.2f),
+                new Vec3f(0.8f, 0.8f, 0.8f),
+                new Vec3f(1f, 1f, 1f)
+        ));
+    }
+
+    /**
+     * Emits a checkerboard of unit squares in the plane y = 0, white and grey, with
+     * vertices shared between neighbouring squares.
+     *
+     * @param mesh destination mesh
+     * @param i0 first column (x), inclusive
+     * @param i1 last column, exclusive
+     * @param j0 first row (z), inclusive
+     * @param j1 last row, exclusive
+     */
+    static void addCheckerboard(TriangleMesh mesh, int i0, int i1, int j0, int j1) {
+        int rows = j1 - j0 + 1;
+        int first = mesh.getVertexCount();
+        for (int i = i0; i <= i1; i++) {
+            for (int j = j0; j <= j1; j++) {
+                mesh.addVertex(i, 0f, j);
+            }
+        }
+        for (int i = i0; i < i1; i++) {
+            for (int j = j0; j < j1; j++) {
+                Material mat = ((i + j) % 2 == 0) ? white : grey;
+                int p0 = first + (i - i0) * rows + (j - j0);
+                int p1 = p0 + rows;
+                int p2 = p1 + 1;
+                int p3 = p0 + 1;
+                mesh.addTriangle(p0, p1, p2, mat);
+                mesh.addTriangle(p0, p2, p3, mat);
+            }
+        }
+    }
+
+    /**
+     * Same cube as {@link #addCubeAsTriangles(List, Vec3f, float, Material)}, emitted into a mesh
+     * with its 8 corners shared by the 12 faces.
+     */
+    static void addCubeAsTriangles(
+            TriangleMesh mesh,
+            Vec3f center,
+            float size,
+            Material mat
+    ) {
+        float h = size/2f;
+        int p000 = mesh.addVertex(center.x - h, center.y - h, center.z - h);
+        int p001 = mesh.addVertex(center.x - h, center.y - h, center.z + h);
+        int p010 = mesh.addVertex(center.x - h, center.y + h, center.z - h);
+        int p011 = mesh.addVertex(center.x - h, center.y + h, center.z + h);
+        int p100 = mesh.addVertex(center.x + h, center.y - h, center.z - h);
+        int p101 = mesh.addVertex(center.x + h, center.y - h, center.z + h);
+        int p110 = mesh.addVertex(center.x + h, center.y + h, center.z - h);
+        int p111 = mesh.addVertex(center.x + h, center.y + h, center.z + h);
+
+        mesh.addTriangle(p101, p001, p011, mat);
+        mesh.addTriangle(p101, p011, p111, mat);
+
+        mesh.addTriangle(p000, p100, p110, mat);
+        mesh.addTriangle(p000, p110, p010, mat);
+
+        mesh.addTriangle(p001, p000, p010, mat);
+        mesh.addTriangle(p001, p010, p011, mat);
+
+        mesh.addTriangle(p100, p101, p111, mat);
+        mesh.addTriangle(p100, p111, p110, mat);
+
+        mesh.addTriangle(p010, p110, p111, mat);
+        mesh.addTriangle(p010, p111, p011, mat);
+
+        mesh.addTriangle(p000, p001, p101, mat);
+        mesh.addTriangle(p000, p101, p100, mat);
+    }
+
     private static void addCubeAsTriangles(
             List<Geometry> scene,
             Vec3f center,
@@ -4,8 +4,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import static fr.florian.JavaTga.saveTGA;
-
 public class JavaTgaSansLumiere {
 
     /**
@@ -14,6 +12,22 @@ public class JavaTgaSansLumiere {
     public static void main(String[] args) {
         int w = 1024;
         int h = 768;
+        byte[] buffer = render(w, h);
+
+        try {
+            // image en aplats : la compression RLE la reduit fortement
+            new RleTgaWriter().write("image_sans_lumiere.tga", buffer, w, h);
+        } catch (IOException e) {
+            System.err.println("TGA file not created :"+e);
+        }
+    }
+
+    /**
+     * Renders the flat-shaded scene.
+     *
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    static byte[] render(int w, int h) {
         byte[] buffer = new byte[3 * w * h];
 
         List<Geometry> scene = new ArrayList<>();
@@ -54,12 +68,7 @@ public class JavaTgaSansLumiere {
                 buffer[index + 2] = (byte) (pixelColor.x * 255);
             }
         }
-
-        try {
-            saveTGA("image_sans_lumiere.tga", buffer, w, h);
-        } catch (IOException e) {
-            System.err.println("TGA file not created :"+e);
-        }
+        return buffer;
     }
 
     public static  Vec3f findColorSansLumiere(Vec3f plan, Vec3f rayDir, List<Geometry> scene){
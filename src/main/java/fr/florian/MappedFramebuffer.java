@@ -0,0 +1,81 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Framebuffer held in a memory-mapped, uncompressed TGA file.
+ * <p>
+ * The header is written when the file is created and the tiles write their pixels straight
+ * into the mapping, so the image never lives on the heap : its size is only limited by the
+ * disk and by the 65535 pixels of a TGA side. The file is complete once {@link #close()}
+ * has returned.
+ */
+public class MappedFramebuffer implements AutoCloseable {
+    private static final int HEADER = 18;
+
+    public final int width, height;
+    private final FileChannel channel;
+    private final Arena arena;
+    private final MemorySegment file;
+
+    /**
+     * Creates (or replaces) filename, sized for a width x height image.
+     */
+    public MappedFramebuffer(String filename, int width, int height) throws IOException {
+        if (width < 1 || height < 1 || width > 0xffff || height > 0xffff) {
+            throw new IllegalArgumentException("a TGA image is 1 to 65535 pixels wide and high");
+        }
+        this.width = width;
+        this.height = height;
+        this.channel = FileChannel.open(Path.of(filename), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.arena = Arena.ofShared();
+        try {
+            this.file = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + 3L * width * height, arena);
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            channel.close();
+            throw e;
+        }
+        file.asByteBuffer().put(TgaWriter.header(2, width, height));
+    }
+
+    /**
+     * Writes count pixels of row, starting at col.
+     *
+     * @param bgr 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public void writeRow(int col, int row, byte[] bgr, int count) {
+        MemorySegment.copy(bgr, 0, file, ValueLayout.JAVA_BYTE, offset(col, row), 3 * count);
+    }
+
+    /**
+     * @return pixel data of the image, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public MemorySegment pixels() {
+        return file.asSlice(HEADER);
+    }
+
+    private long offset(int col, int row) {
+        return HEADER + 3 * ((long) row * width + col);
+    }
+
+    /**
+     * Flushes the pixels to the file and unmaps it.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            file.force();
+        } finally {
+            arena.close();
+            channel.close();
+        }
+    }
+}
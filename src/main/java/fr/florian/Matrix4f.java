@@ -0,0 +1,211 @@
+package fr.florian;
+
+/**
+ * Immutable 4x4 matrix acting on column vectors : a point p becomes M (p, 1), a direction
+ * v becomes M (v, 0). Composition follows the same order, a.mul(b) applies b first.
+ */
+public final class Matrix4f {
+    public static final Matrix4f IDENTITY = new Matrix4f(new float[]{
+            1, 0, 0, 0,
+            0, 1, 0, 0,
+            0, 0, 1, 0,
+            0, 0, 0, 1});
+
+    /** 16 coefficients, row by row */
+    private final float[] m;
+
+    private Matrix4f(float[] m) {
+        this.m = m;
+    }
+
+    /**
+     * @param m 16 coefficients, row by row (copied)
+     */
+    public static Matrix4f of(float... m) {
+        if (m.length != 16) {
+            throw new IllegalArgumentException("a 4x4 matrix needs 16 coefficients, not " + m.length);
+        }
+        return new Matrix4f(m.clone());
+    }
+
+    public static Matrix4f translation(float x, float y, float z) {
+        return new Matrix4f(new float[]{
+                1, 0, 0, x,
+                0, 1, 0, y,
+                0, 0, 1, z,
+                0, 0, 0, 1});
+    }
+
+    public static Matrix4f translation(Vec3f t) {
+        return translation(t.x, t.y, t.z);
+    }
+
+    public static Matrix4f scaling(float sx, float sy, float sz) {
+        return new Matrix4f(new float[]{
+                sx, 0, 0, 0,
+                0, sy, 0, 0,
+                0, 0, sz, 0,
+                0, 0, 0, 1});
+    }
+
+    public static Matrix4f scaling(float s) {
+        return scaling(s, s, s);
+    }
+
+    /**
+     * Rotation of angle radians around the unit axis, counterclockwise when the axis
+     * points toward the viewer.
+     */
+    public static Matrix4f rotation(Vec3f axis, float angle) {
+        float c = (float) Math.cos(angle), s = (float) Math.sin(angle), k = 1 - c;
+        float x = axis.x, y = axis.y, z = axis.z;
+        return new Matrix4f(new float[]{
+                k * x * x + c, k * x * y - s * z, k * x * z + s * y, 0,
+                k * x * y + s * z, k * y * y + c, k * y * z - s * x, 0,
+                k * x * z - s * y, k * y * z + s * x, k * z * z + c, 0,
+                0, 0, 0, 1});
+    }
+
+    public static Matrix4f rotationY(float angle) {
+        return rotation(new Vec3f(0, 1, 0), angle);
+    }
+
+    /**
+     * @return coefficient at (row, col)
+     */
+    public float get(int row, int col) {
+        return m[4 * row + col];
+    }
+
+    /**
+     * @return this x b, the transform applying b then this
+     */
+    public Matrix4f mul(Matrix4f b) {
+        float[] r = new float[16];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                r[4 * i + j] = m[4 * i] * b.m[j] + m[4 * i + 1] * b.m[4 + j]
+                        + m[4 * i + 2] * b.m[8 + j] + m[4 * i + 3] * b.m[12 + j];
+            }
+        }
+        return new Matrix4f(r);
+    }
+
+    public Matrix4f transpose() {
+        float[] r = new float[16];
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                r[4 * j + i] = m[4 * i + j];
+            }
+        }
+        return new Matrix4f(r);
+    }
+
+    /**
+     * Inverse by cofactors, computed in double.
+     *
+     * @throws IllegalArgumentException if the matrix is singular
+     */
+    public Matrix4f inverse() {
+        double[] a = new double[16];
+        for (int i = 0; i < 16; i++) {
+            a[i] = m[i];
+        }
+        // mineurs 2x2 des deux premieres et des deux dernieres lignes
+        double s0 = a[0] * a[5] - a[4] * a[1];
+        double s1 = a[0] * a[6] - a[4] * a[2];
+        double s2 = a[0] * a[7] - a[4] * a[3];
+        double s3 = a[1] * a[6] - a[5] * a[2];
+        double s4 = a[1] * a[7] - a[5] * a[3];
+        double s5 = a[2] * a[7] - a[6] * a[3];
+        double c5 = a[10] * a[15] - a[14] * a[11];
+        double c4 = a[9] * a[15] - a[13] * a[11];
+        double c3 = a[9] * a[14] - a[13] * a[10];
+        double c2 = a[8] * a[15] - a[12] * a[11];
+        double c1 = a[8] * a[14] - a[12] * a[10];
+        double c0 = a[8] * a[13] - a[12] * a[9];
+        double det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+        if (det == 0 || !Double.isFinite(det)) {
+            throw new IllegalArgumentException("singular matrix " + this);
+        }
+        double d = 1 / det;
+        return new Matrix4f(new float[]{
+                (float) ((a[5] * c5 - a[6] * c4 + a[7] * c3) * d),
+                (float) ((-a[1] * c5 + a[2] * c4 - a[3] * c3) * d),
+                (float) ((a[13] * s5 - a[14] * s4 + a[15] * s3) * d),
+                (float) ((-a[9] * s5 + a[10] * s4 - a[11] * s3) * d),
+                (float) ((-a[4] * c5 + a[6] * c2 - a[7] * c1) * d),
+                (float) ((a[0] * c5 - a[2] * c2 + a[3] * c1) * d),
+                (float) ((-a[12] * s5 + a[14] * s2 - a[15] * s1) * d),
+                (float) ((a[8] * s5 - a[10] * s2 + a[11] * s1) * d),
+                (float) ((a[4] * c4 - a[5] * c2 + a[7] * c0) * d),
+                (float) ((-a[0] * c4 + a[1] * c2 - a[3] * c0) * d),
+                (float) ((a[12] * s4 - a[13] * s2 + a[15] * s0) * d),
+                (float) ((-a[8] * s4 + a[9] * s2 - a[11] * s0) * d),
+                (float) ((-a[4] * c3 + a[5] * c1 - a[6] * c0) * d),
+                (float) ((a[0] * c3 - a[1] * c1 + a[2] * c0) * d),
+                (float) ((-a[12] * s3 + a[13] * s1 - a[14] * s0) * d),
+                (float) ((a[8] * s3 - a[9] * s1 + a[10] * s0) * d)});
+    }
+
+    /**
+     * Writes M (p, 1) into out, which may be p.
+     *
+     * @return out
+     */
+    public Vec3f transformPoint(Vec3f p, Vec3f out) {
+        float x = m[0] * p.x + m[1] * p.y + m[2] * p.z + m[3];
+        float y = m[4] * p.x + m[5] * p.y + m[6] * p.z + m[7];
+        float z = m[8] * p.x + m[9] * p.y + m[10] * p.z + m[11];
+        return out.set(x, y, z);
+    }
+
+    /**
+     * Writes M (v, 0) into out, which may be v. The result keeps the scale of the matrix.
+     *
+     * @return out
+     */
+    public Vec3f transformDirection(Vec3f v, Vec3f out) {
+        float x = m[0] * v.x + m[1] * v.y + m[2] * v.z;
+        float y = m[4] * v.x + m[5] * v.y + m[6] * v.z;
+        float z = m[8] * v.x + m[9] * v.y + m[10] * v.z;
+        return out.set(x, y, z);
+    }
+
+    /**
+     * Writes transpose(M) (n, 0) into out, which may be n. Called on the inverse of a
+     * transform, it maps the normals of that transform (not normalized).
+     *
+     * @return out
+     */
+    public Vec3f transformTransposed(Vec3f n, Vec3f out) {
+        float x = m[0] * n.x + m[4] * n.y + m[8] * n.z;
+        float y = m[1] * n.x + m[5] * n.y + m[9] * n.z;
+        float z = m[2] * n.x + m[6] * n.y + m[10] * n.z;
+        return out.set(x, y, z);
+    }
+
+    /**
+     * @return the box enclosing the 8 transformed corners of b
+     */
+    public AABB transform(AABB b) {
+        AABB box = AABB.empty();
+        Vec3f corner = new Vec3f(0, 0, 0);
+        for (int k = 0; k < 8; k++) {
+            corner.set((k & 1) == 0 ? b.min.x : b.max.x,
+                    (k & 2) == 0 ? b.min.y : b.max.y,
+                    (k & 4) == 0 ? b.min.z : b.max.z);
+            box.grow(transformPoint(corner, corner));
+        }
+        return box;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Matrix4f[");
+        for (int i = 0; i < 16; i++) {
+            sb.append(m[i]).append(i == 15 ? "]" : i % 4 == 3 ? "; " : ", ");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,496 @@
+package fr.florian;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Wavefront OBJ importer, with its MTL materials, into a {@link TriangleMesh}.
+ * <p>
+ * The file is cut in chunks of a few megabytes, read with positional NIO reads and parsed in
+ * parallel straight from the bytes : no String per line, numbers are decoded in place.
+ * Each chunk fills its own packed arrays, which are then copied side by side into the
+ * arrays of the mesh. Polygons are split in fans of triangles. Only the positions are kept
+ * (texture coordinates and vertex normals are skipped), a face uses its first index.
+ * <p>
+ * MTL materials map to {@link Material} : Ka ambient, Kd diffuse, Ks specular, Ns shininess,
+ * d (or 1 - Tr) opacity and Ni index of refraction ; a transparent material is tinted by Kd.
+ * Faces before any usemtl, or using an unknown material, get the default material.
+ */
+public class ObjLoader {
+    private static final int CHUNK = 8 << 20;
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Material defaultMaterial;
+
+    /**
+     * Loader on the shared pool, using {@link JavaTga#grey} for faces without material.
+     */
+    public ObjLoader() {
+        this(TileScheduler.shared().getPool(), JavaTga.grey);
+    }
+
+    public ObjLoader(ForkJoinPool pool, Material defaultMaterial) {
+        this.pool = pool;
+        this.defaultMaterial = defaultMaterial;
+    }
+
+    /**
+     * Loads an OBJ file and the MTL libraries it references (looked up next to it).
+     *
+     * @throws IOException if the file cannot be read or references a missing vertex
+     */
+    public TriangleMesh load(Path file) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            for (long start = 0; start < size; start += CHUNK) {
+                chunks.add(new Chunk(channel, start, Math.min(size, start + CHUNK), size));
+            }
+            parallel(chunks, c -> c.parse());
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+
+        // bibliotheques de materiaux, puis materiau courant de chaque bloc
+        Map<String, Material> library = new HashMap<>();
+        Set<String> libraries = new LinkedHashSet<>();
+        for (Chunk c : chunks) {
+            libraries.addAll(c.libraries);
+        }
+        for (String name : libraries) {
+            Path mtl = file.resolveSibling(name);
+            if (Files.isRegularFile(mtl)) {
+                library.putAll(loadMaterials(mtl));
+            }
+        }
+        List<Material> materials = new ArrayList<>();
+        Map<String, Integer> materialIndex = new HashMap<>();
+        materials.add(defaultMaterial);
+        int current = 0;
+        int vertexCount = 0, faceCount = 0;
+        for (Chunk c : chunks) {
+            c.firstVertex = vertexCount;
+            c.firstFace = faceCount;
+            c.inherited = current;
+            c.materialIds = new int[c.materialNames.size()];
+            for (int i = 0; i < c.materialIds.length; i++) {
+                String name = c.materialNames.get(i);
+                Material m = library.get(name);
+                c.materialIds[i] = m == null ? 0 : materialIndex.computeIfAbsent(name, n -> {
+                    materials.add(m);
+                    return materials.size() - 1;
+                });
+            }
+            if (c.lastMaterial >= 0) {
+                current = c.materialIds[c.lastMaterial];
+            }
+            vertexCount += c.vertexCount;
+            faceCount += c.faceCount;
+        }
+
+        // copie des blocs dans les tableaux du maillage
+        float[] vertices = new float[3 * vertexCount];
+        int[] indices = new int[3 * faceCount];
+        int[] faceMaterial = new int[faceCount];
+        final int vertexTotal = vertexCount;
+        try {
+            parallel(chunks, c -> c.copyTo(vertices, indices, faceMaterial, vertexTotal));
+        } catch (IOException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+
+        TriangleMesh mesh = new TriangleMesh(vertices, vertexCount, indices, faceMaterial, faceCount, materials);
+        parallel(chunks, c -> mesh.computeFaces(c.firstFace, c.firstFace + c.faceCount));
+        return mesh;
+    }
+
+    /**
+     * Reads the materials of an MTL file.
+     */
+    static Map<String, Material> loadMaterials(Path file) throws IOException {
+        Map<String, Material> materials = new HashMap<>();
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String name = null;
+            float[] ka = {0, 0, 0}, kd = {0.8f, 0.8f, 0.8f}, ks = {0, 0, 0};
+            float ns = 0, opacity = 1, ni = 1;
+            String line;
+            while (true) {
+                line = in.readLine();
+                String[] t = line == null ? null : line.strip().split("\\s+");
+                if (line == null || t[0].equals("newmtl")) {
+                    if (name != null) {
+                        Vec3f diffuse = new Vec3f(kd[0], kd[1], kd[2]);
+                        materials.put(name, new Material(new Vec3f(ka[0], ka[1], ka[2]), diffuse,
+                                new Vec3f(ks[0], ks[1], ks[2]), ns, 0f, 1 - opacity, ni,
+                                opacity < 1 ? new Vec3f(kd[0], kd[1], kd[2]) : new Vec3f(0.1f, 0.1f, 0.1f)));
+                    }
+                    if (line == null) break;
+                    name = t.length > 1 ? t[1] : "";
+                    ka = new float[]{0, 0, 0};
+                    kd = new float[]{0.8f, 0.8f, 0.8f};
+                    ks = new float[]{0, 0, 0};
+                    ns = 0;
+                    opacity = 1;
+                    ni = 1;
+                    continue;
+                }
+                try {
+                    switch (t[0]) {
+                        case "Ka" -> ka = color(t);
+                        case "Kd" -> kd = color(t);
+                        case "Ks" -> ks = color(t);
+                        case "Ns" -> ns = Float.parseFloat(t[1]);
+                        case "d" -> opacity = Float.parseFloat(t[1]);
+                        case "Tr" -> opacity = 1 - Float.parseFloat(t[1]);
+                        case "Ni" -> ni = Float.parseFloat(t[1]);
+                        default -> {
+                            // textures, illum... ignores
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    throw new IOException(file + ": bad line '" + line + "'", e);
+                }
+            }
+        }
+        return materials;
+    }
+
+    private static float[] color(String[] t) {
+        float r = Float.parseFloat(t[1]);
+        // une seule valeur : gris
+        return t.length < 4 ? new float[]{r, r, r} : new float[]{r, Float.parseFloat(t[2]), Float.parseFloat(t[3])};
+    }
+
+    @FunctionalInterface
+    private interface ChunkTask {
+        void run(Chunk c) throws IOException;
+    }
+
+    private void parallel(List<Chunk> chunks, ChunkTask task) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>(chunks.size());
+        for (Chunk c : chunks) {
+            tasks.add(() -> {
+                task.run(c);
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> f : pool.invokeAll(tasks)) {
+                f.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading", e);
+        } catch (ExecutionException e) {
+            // le pool enveloppe les exceptions verifiees
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException io) {
+                    throw io;
+                }
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * The lines starting in [start, end) of the file, and what they define.
+     */
+    private static final class Chunk {
+        final FileChannel channel;
+        final long start, end, fileSize;
+
+        byte[] buf;
+        int pos, limit;
+
+        float[] vertices = new float[3 * 1024];
+        int vertexCount;
+        /** 3 indices per face : absolute (0-based), or relative to the start of the chunk */
+        int[] faces = new int[3 * 1024];
+        /** indices of faces that are relative */
+        BitSet relative;
+        /** material of each face : index in materialNames, -1 for the one in use before the chunk */
+        int[] materials = new int[1024];
+        int faceCount;
+        final List<String> materialNames = new ArrayList<>();
+        int lastMaterial = -1;
+        final List<String> libraries = new ArrayList<>();
+
+        // resolution apres lecture de tous les blocs
+        int firstVertex, firstFace, inherited;
+        int[] materialIds;
+
+        Chunk(FileChannel channel, long start, long end, long fileSize) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.fileSize = fileSize;
+        }
+
+        void parse() throws IOException {
+            // lecture du bloc, la derniere ligne pouvant deborder sur le suivant
+            long from = Math.max(0, start - 1);
+            int length = (int) Math.min(fileSize - from, end - from + 4096);
+            buf = new byte[length];
+            limit = read(from, buf, 0, length);
+            pos = 0;
+            if (start > 0) {
+                // la ligne en cours appartient au bloc precedent
+                while (pos < limit && buf[pos] != '\n') pos++;
+                pos++;
+            }
+            int current = -1;
+            while (pos < limit && from + pos < end) {
+                int lineStart = pos;
+                ensureLine(from);
+                if (buf[pos] == 'v' && pos + 1 < limit && isBlank(buf[pos + 1])) {
+                    pos += 2;
+                    addVertex(number(), number(), number());
+                } else if (buf[pos] == 'f' && pos + 1 < limit && isBlank(buf[pos + 1])) {
+                    pos += 2;
+                    parseFace(current);
+                } else if (keyword("usemtl")) {
+                    String name = restOfLine();
+                    current = materialNames.indexOf(name);
+                    if (current < 0) {
+                        materialNames.add(name);
+                        current = materialNames.size() - 1;
+                    }
+                    lastMaterial = current;
+                } else if (keyword("mtllib")) {
+                    libraries.add(restOfLine());
+                }
+                skipLine();
+                if (pos == lineStart) pos++;
+            }
+            buf = null;
+        }
+
+        private int read(long position, byte[] dst, int offset, int length) throws IOException {
+            ByteBuffer b = ByteBuffer.wrap(dst, offset, length);
+            int total = 0;
+            while (b.hasRemaining()) {
+                int n = channel.read(b, position + total);
+                if (n < 0) break;
+                total += n;
+            }
+            return offset + total;
+        }
+
+        /**
+         * Makes sure the whole line at pos is in the buffer, reading further if it crosses
+         * the end of the chunk.
+         */
+        private void ensureLine(long from) throws IOException {
+            int i = pos;
+            while (true) {
+                while (i < limit && buf[i] != '\n') i++;
+                if (i < limit || from + limit >= fileSize) return;
+                int more = (int) Math.min(fileSize - from - limit, Math.max(4096, buf.length));
+                buf = Arrays.copyOf(buf, limit + more);
+                limit = read(from + limit, buf, limit, more);
+            }
+        }
+
+        private void parseFace(int material) throws IOException {
+            int first = index(), second = index(), third = index();
+            if (third == Integer.MIN_VALUE) {
+                throw new IOException("face with less than 3 vertices");
+            }
+            // polygone decoupe en eventail
+            do {
+                addFace(first, second, third, material);
+                second = third;
+            } while ((third = index()) != Integer.MIN_VALUE);
+        }
+
+        /**
+         * @return next vertex index of the face (absolute 0-based, or relative encoded by
+         * {@link #addFace}), Integer.MIN_VALUE at the end of the line
+         */
+        private int index() {
+            skipBlanks();
+            if (pos >= limit || buf[pos] == '\n' || buf[pos] == '\r' || buf[pos] == '#') {
+                return Integer.MIN_VALUE;
+            }
+            boolean negative = buf[pos] == '-';
+            if (negative) pos++;
+            int v = 0;
+            while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') {
+                v = 10 * v + (buf[pos++] - '0');
+            }
+            // indices de texture et de normale ignores
+            while (pos < limit && !isBlank(buf[pos]) && buf[pos] != '\n' && buf[pos] != '\r') pos++;
+            return negative ? -v : v;
+        }
+
+        private void addFace(int a, int b, int c, int material) {
+            if (faceCount == materials.length) {
+                faces = Arrays.copyOf(faces, 6 * faceCount);
+                materials = Arrays.copyOf(materials, 2 * faceCount);
+            }
+            int k = 3 * faceCount;
+            faces[k] = resolve(a, k);
+            faces[k + 1] = resolve(b, k + 1);
+            faces[k + 2] = resolve(c, k + 2);
+            materials[faceCount++] = material;
+        }
+
+        /** indice OBJ (1.. ou negatif) vers indice 0.. absolu, ou relatif au debut du bloc */
+        private int resolve(int objIndex, int slot) {
+            if (objIndex >= 0) {
+                return objIndex - 1; // 0 n'est pas un indice valide : rejete a la copie
+            }
+            if (relative == null) relative = new BitSet();
+            relative.set(slot);
+            return vertexCount + objIndex;
+        }
+
+        private void addVertex(float x, float y, float z) {
+            if (3 * vertexCount == vertices.length) {
+                vertices = Arrays.copyOf(vertices, 2 * vertices.length);
+            }
+            vertices[3 * vertexCount] = x;
+            vertices[3 * vertexCount + 1] = y;
+            vertices[3 * vertexCount + 2] = z;
+            vertexCount++;
+        }
+
+        void copyTo(float[] allVertices, int[] allIndices, int[] faceMaterial, int vertexTotal) throws IOException {
+            System.arraycopy(vertices, 0, allVertices, 3 * firstVertex, 3 * vertexCount);
+            int base = 3 * firstFace;
+            for (int k = 0; k < 3 * faceCount; k++) {
+                int i = relative != null && relative.get(k) ? firstVertex + faces[k] : faces[k];
+                if (i < 0 || i >= vertexTotal) {
+                    throw new IOException("face " + (firstFace + k / 3 + 1) + " references a missing vertex");
+                }
+                allIndices[base + k] = i;
+            }
+            for (int f = 0; f < faceCount; f++) {
+                faceMaterial[firstFace + f] = materials[f] < 0 ? inherited : materialIds[materials[f]];
+            }
+            vertices = null;
+            faces = null;
+            materials = null;
+        }
+
+        /**
+         * Decodes a decimal number at pos ([-]digits[.digits][e[-]digits]) without allocating.
+         */
+        private float number() throws IOException {
+            skipBlanks();
+            int begin = pos;
+            boolean negative = false;
+            if (pos < limit && (buf[pos] == '-' || buf[pos] == '+')) {
+                negative = buf[pos++] == '-';
+            }
+            long mantissa = 0;
+            int exponent = 0, digits = 0;
+            boolean any = false;
+            while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') {
+                any = true;
+                if (digits < 18) {
+                    mantissa = 10 * mantissa + (buf[pos] - '0');
+                    if (mantissa != 0) digits++;
+                } else {
+                    exponent++;
+                }
+                pos++;
+            }
+            if (pos < limit && buf[pos] == '.') {
+                pos++;
+                while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') {
+                    any = true;
+                    if (digits < 18) {
+                        mantissa = 10 * mantissa + (buf[pos] - '0');
+                        if (mantissa != 0) digits++;
+                        exponent--;
+                    }
+                    pos++;
+                }
+            }
+            if (!any) {
+                throw new IOException("number expected at '" + new String(buf, begin,
+                        Math.min(20, limit - begin), StandardCharsets.US_ASCII).split("\n")[0] + "'");
+            }
+            if (pos < limit && (buf[pos] == 'e' || buf[pos] == 'E')) {
+                pos++;
+                boolean negativeExp = false;
+                if (pos < limit && (buf[pos] == '-' || buf[pos] == '+')) {
+                    negativeExp = buf[pos++] == '-';
+                }
+                int e = 0;
+                while (pos < limit && buf[pos] >= '0' && buf[pos] <= '9') {
+                    e = Math.min(10 * e + (buf[pos++] - '0'), 1000);
+                }
+                exponent += negativeExp ? -e : e;
+            }
+            double value;
+            if (mantissa == 0) {
+                value = 0;
+            } else if (exponent >= 0) {
+                value = exponent < POW10.length ? mantissa * POW10[exponent] : mantissa * Math.pow(10, exponent);
+            } else {
+                value = -exponent < POW10.length ? mantissa / POW10[-exponent] : mantissa / Math.pow(10, -exponent);
+            }
+            return (float) (negative ? -value : value);
+        }
+
+        private boolean keyword(String word) {
+            int n = word.length();
+            if (pos + n >= limit || !isBlank(buf[pos + n])) return false;
+            for (int i = 0; i < n; i++) {
+                if (buf[pos + i] != word.charAt(i)) return false;
+            }
+            pos += n;
+            return true;
+        }
+
+        private String restOfLine() {
+            skipBlanks();
+            int begin = pos;
+            while (pos < limit && buf[pos] != '\n' && buf[pos] != '\r') pos++;
+            int last = pos;
+            while (last > begin && isBlank(buf[last - 1])) last--;
+            return new String(buf, begin, last - begin, StandardCharsets.UTF_8);
+        }
+
+        private void skipBlanks() {
+            while (pos < limit && isBlank(buf[pos])) pos++;
+        }
+
+        private void skipLine() {
+            while (pos < limit && buf[pos] != '\n') pos++;
+            if (pos < limit) pos++;
+        }
+
+        private static boolean isBlank(byte b) {
+            return b == ' ' || b == '\t';
+        }
+    }
+}
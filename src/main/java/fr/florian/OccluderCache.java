@@ -0,0 +1,54 @@
+package fr.florian;
+
+/**
+ * Last occluder found for each light of a scene, owned by one thread.
+ * <p>
+ * Neighbouring pixels tend to be shadowed by the same object, so the shadow query tests
+ * the remembered primitive before traversing the scene.
+ */
+final class OccluderCache {
+    private Scene scene;
+    private Geometry[] objects = new Geometry[0];
+    private int[] prims = new int[0];
+    /** position of each occluder in the scene list */
+    private int[] indices = new int[0];
+
+    /**
+     * Binds the cache to scene, forgetting everything if it was used for another one.
+     */
+    OccluderCache bind(Scene scene) {
+        if (this.scene != scene) {
+            this.scene = scene;
+            int n = scene.lights.size();
+            if (objects.length < n) {
+                objects = new Geometry[n];
+                prims = new int[n];
+                indices = new int[n];
+            } else {
+                java.util.Arrays.fill(objects, null);
+            }
+        }
+        return this;
+    }
+
+    Geometry object(int light) {
+        return objects[light];
+    }
+
+    int primitive(int light) {
+        return prims[light];
+    }
+
+    /**
+     * @return position in the scene list of the occluder of light
+     */
+    int index(int light) {
+        return indices[light];
+    }
+
+    void remember(int light, Geometry obj, int prim, int index) {
+        objects[light] = obj;
+        prims[light] = prim;
+        indices[light] = index;
+    }
+}
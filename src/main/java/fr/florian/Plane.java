@@ -1,7 +1,5 @@
 package fr.florian;
 
-import java.awt.*;
-
 public class Plane extends Geometry {
     public Vec3f P0, N;
 
@@ -24,4 +22,14 @@ public class Plane extends Geometry {
     public Vec3f getNormal(Vec3f intersection) {
         return N;
     }
+
+    @Override
+    protected void computeNormal(Hit hit) {
+        hit.normal.set(N);
+    }
+
+    @Override
+    public AABB getBoundingBox() {
+        return null; // plan infini
+    }
 }
@@ -0,0 +1,269 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 24 bits PNG, compressed in parallel.
+ * <p>
+ * The image is cut in stripes of rows. Each stripe is filtered (the PNG filter that minimises
+ * the row is chosen, as most encoders do) and compressed by its own {@link Deflater},
+ * primed with the end of the previous stripe so that matches can cross stripe borders.
+ * Every stripe but the last ends on a sync flush : the raw streams simply follow each other
+ * in a single zlib stream, whose checksum is combined from the per-stripe ones.
+ */
+public class PngWriter implements ImageWriter {
+    private static final byte[] SIGNATURE = {(byte) 137, 'P', 'N', 'G', '\r', '\n', 26, '\n'};
+    private static final int STRIPE_ROWS = 32;
+    /** taille de la fenetre de deflate */
+    private static final int WINDOW = 32 * 1024;
+
+    private final ForkJoinPool pool;
+    private final int level;
+
+    public PngWriter() {
+        this(TileScheduler.shared().getPool(), Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param pool pool compressing the stripes
+     * @param level deflate level, 0 to 9 or {@link Deflater#DEFAULT_COMPRESSION}
+     */
+    public PngWriter(ForkJoinPool pool, int level) {
+        this.pool = pool;
+        this.level = level;
+    }
+
+    /** une bande filtree et compressee */
+    private static final class Stripe {
+        byte[] data;
+        int length;
+        long adler;
+        int rawLength;
+    }
+
+    @Override
+    public void write(String filename, byte[] buffer, int width, int height) throws IOException {
+        int stride = 1 + 3 * width;
+        int count = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        List<Stripe> stripes = ImageFiles.encode(pool, count, s -> {
+            int y0 = s * STRIPE_ROWS, y1 = Math.min(height, y0 + STRIPE_ROWS);
+            // le dictionnaire est la fin de la bande precedente, refiltree ici
+            int dictRows = s == 0 ? 0 : Math.min(y0, (WINDOW + stride - 1) / stride);
+            byte[] filtered = filter(buffer, width, height, y0 - dictRows, y1);
+            int dictBytes = dictRows * stride;
+            return compress(filtered, Math.max(0, dictBytes - WINDOW), dictBytes, s == count - 1);
+        });
+
+        long adler = 1;
+        int idatLength = 2 + 4;
+        for (Stripe s : stripes) {
+            adler = combineAdler(adler, s.adler, s.rawLength);
+            idatLength += s.length;
+        }
+
+        ByteBuffer head = ByteBuffer.allocate(SIGNATURE.length + 25 + 8 + 2);
+        head.put(SIGNATURE);
+        ByteBuffer ihdr = ByteBuffer.allocate(13);
+        ihdr.putInt(width).putInt(height);
+        ihdr.put((byte) 8); // bits par canal
+        ihdr.put((byte) 2); // couleurs RGB
+        ihdr.put((byte) 0).put((byte) 0).put((byte) 0); // deflate, filtres standards, pas d'entrelacement
+        chunk(head, "IHDR", ihdr.array());
+
+        // debut du bloc IDAT : longueur, type, en-tete zlib
+        CRC32 crc = new CRC32();
+        head.putInt(idatLength);
+        int typeAt = head.position();
+        head.put("IDAT".getBytes(StandardCharsets.US_ASCII));
+        head.put((byte) 0x78).put((byte) 0x9c);
+        crc.update(head.array(), typeAt, 6);
+
+        ByteBuffer[] out = new ByteBuffer[count + 2];
+        out[0] = head.flip();
+        for (int s = 0; s < count; s++) {
+            Stripe stripe = stripes.get(s);
+            crc.update(stripe.data, 0, stripe.length);
+            out[s + 1] = ByteBuffer.wrap(stripe.data, 0, stripe.length);
+        }
+
+        ByteBuffer tail = ByteBuffer.allocate(4 + 4 + 12);
+        tail.putInt((int) adler);
+        crc.update(tail.array(), 0, 4);
+        tail.putInt((int) crc.getValue());
+        chunk(tail, "IEND", new byte[0]);
+        out[count + 1] = tail.flip();
+
+        ImageFiles.write(filename, out);
+    }
+
+    /**
+     * Filters rows [y0, y1) of the PNG image, which is the buffer upside down in RGB order.
+     *
+     * @return the filtered rows, each one preceded by its filter type
+     */
+    static byte[] filter(byte[] buffer, int width, int height, int y0, int y1) {
+        int rowBytes = 3 * width;
+        byte[] out = new byte[(y1 - y0) * (1 + rowBytes)];
+        byte[] prev = new byte[rowBytes];
+        byte[] cur = new byte[rowBytes];
+        byte[][] candidates = new byte[5][rowBytes];
+        if (y0 > 0) {
+            toRgb(buffer, width, height - y0, prev);
+        }
+        int n = 0;
+        for (int y = y0; y < y1; y++) {
+            toRgb(buffer, width, height - 1 - y, cur);
+            long best = Long.MAX_VALUE;
+            int bestType = 0;
+            for (int type = 0; type < 5; type++) {
+                long sum = filterRow(type, cur, prev, candidates[type]);
+                if (sum < best) {
+                    best = sum;
+                    bestType = type;
+                }
+            }
+            out[n++] = (byte) bestType;
+            System.arraycopy(candidates[bestType], 0, out, n, rowBytes);
+            n += rowBytes;
+            byte[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return out;
+    }
+
+    /**
+     * Applies filter type to the row cur, prev being the row above.
+     *
+     * @return sum of the filtered bytes taken as signed, the lower the better
+     */
+    private static long filterRow(int type, byte[] cur, byte[] prev, byte[] f) {
+        int n = cur.length;
+        long sum = 0;
+        // un filtre par boucle : pas de test dans la boucle interne
+        switch (type) {
+            case 0 -> {
+                for (int i = 0; i < n; i++) {
+                    f[i] = cur[i];
+                    sum += Math.abs(f[i]);
+                }
+            }
+            case 1 -> {
+                for (int i = 0; i < n; i++) {
+                    f[i] = (byte) (cur[i] - (i >= 3 ? cur[i - 3] : 0));
+                    sum += Math.abs(f[i]);
+                }
+            }
+            case 2 -> {
+                for (int i = 0; i < n; i++) {
+                    f[i] = (byte) (cur[i] - prev[i]);
+                    sum += Math.abs(f[i]);
+                }
+            }
+            case 3 -> {
+                for (int i = 0; i < n; i++) {
+                    int a = i >= 3 ? cur[i - 3] & 0xff : 0;
+                    f[i] = (byte) (cur[i] - ((a + (prev[i] & 0xff)) >>> 1));
+                    sum += Math.abs(f[i]);
+                }
+            }
+            default -> {
+                for (int i = 0; i < n; i++) {
+                    int a = i >= 3 ? cur[i - 3] & 0xff : 0;
+                    int c = i >= 3 ? prev[i - 3] & 0xff : 0;
+                    f[i] = (byte) (cur[i] - paeth(a, prev[i] & 0xff, c));
+                    sum += Math.abs(f[i]);
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static void toRgb(byte[] buffer, int width, int bufferRow, byte[] out) {
+        int base = 3 * bufferRow * width;
+        for (int i = 0; i < 3 * width; i += 3) {
+            out[i] = buffer[base + i + 2];
+            out[i + 1] = buffer[base + i + 1];
+            out[i + 2] = buffer[base + i];
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * Compresses data[start, data.length) as raw deflate, data[dictStart, start) being the
+     * end of what was compressed just before.
+     */
+    private Stripe compress(byte[] data, int dictStart, int start, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (start > dictStart) {
+                deflater.setDictionary(data, dictStart, start - dictStart);
+            }
+            deflater.setInput(data, start, data.length - start);
+            if (last) {
+                deflater.finish();
+            }
+            Stripe stripe = new Stripe();
+            stripe.data = new byte[Math.max(64, (data.length - start) / 4)];
+            while (true) {
+                if (stripe.length == stripe.data.length) {
+                    stripe.data = Arrays.copyOf(stripe.data, 2 * stripe.data.length);
+                }
+                int room = stripe.data.length - stripe.length;
+                int n = last ? deflater.deflate(stripe.data, stripe.length, room)
+                        : deflater.deflate(stripe.data, stripe.length, room, Deflater.SYNC_FLUSH);
+                stripe.length += n;
+                if (last ? deflater.finished() : n < room) {
+                    break;
+                }
+            }
+            Adler32 adler = new Adler32();
+            adler.update(data, start, data.length - start);
+            stripe.adler = adler.getValue();
+            stripe.rawLength = data.length - start;
+            return stripe;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * @return the Adler-32 of the concatenation of two blocks, from their own checksums and
+     * the length of the second one (same as zlib's adler32_combine)
+     */
+    static long combineAdler(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
+
+    private static void chunk(ByteBuffer out, String type, byte[] data) {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        out.putInt(data.length).put(name).put(data).putInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,166 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progressive rendering : the image is first rendered with one camera ray per block of
+ * pixels (8 x 8 by default), then refined pass after pass down to one ray per pixel.
+ * <p>
+ * Each pass only traces the pixels that no coarser pass traced, the final image is the same
+ * as a plain render. Every finished tile of every pass is published to a {@link TileListener}.
+ * The measured cost of the coarse pass drives the scheduling of the following ones.
+ */
+public class ProgressiveRenderer {
+    private final int[] steps;
+
+    /**
+     * @param steps block sizes of the passes, decreasing, each one dividing the previous
+     *              one and ending with 1 ; 8 then 1 if none is given
+     */
+    public ProgressiveRenderer(int... steps) {
+        if (steps.length == 0) {
+            steps = new int[]{8, 1};
+        }
+        for (int i = 0; i < steps.length; i++) {
+            if (steps[i] < 1 || (i > 0 && steps[i - 1] % steps[i] != 0)) {
+                throw new IllegalArgumentException("each step must divide the previous one");
+            }
+        }
+        if (steps[steps.length - 1] != 1) {
+            throw new IllegalArgumentException("the last step must be 1");
+        }
+        this.steps = steps.clone();
+    }
+
+    /**
+     * Renders the scene pass after pass on the shared tile scheduler.
+     *
+     * @param listener receives every finished tile, may be null
+     * @return the final image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public byte[] render(Scene scene, int w, int h, int blockSize, TileListener listener) {
+        byte[] buffer = new byte[3 * w * h];
+        TileScheduler scheduler = TileScheduler.shared();
+        TileCosts costs = new TileCosts(w, h, blockSize);
+
+        for (int pass = 0; pass < steps.length; pass++) {
+            final int p = pass;
+            final int step = steps[pass];
+            final int previous = pass == 0 ? 0 : steps[pass - 1];
+            final boolean last = pass == steps.length - 1;
+            scheduler.render(costs, (x0, y0, x1, y1) -> {
+                renderPass(scene, buffer, w, h, x0, y0, x1, y1, step, previous);
+                if (listener != null) {
+                    listener.tileCompleted(new TileUpdate(p, last, step, x0, y0, x1, y1, copy(buffer, w, x0, y0, x1, y1)));
+                }
+            });
+            if (listener != null) {
+                listener.passCompleted(pass, last);
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * Fills the part of the tile covered by each step x step block of the image grid with the
+     * color of the block corner, for the corners not on the grid of the previous pass. A block
+     * straddling the tile origin (tile size not a multiple of step, split tile) has its corner
+     * outside the tile : it is traced all the same, its pixels are clipped to the tile.
+     */
+    private static void renderPass(Scene scene, byte[] buffer, int w, int h,
+                                   int x0, int y0, int x1, int y1, int step, int previous) {
+        TraceContext ctx = TraceContext.get();
+        int firstRow = y0 / step * step, firstCol = x0 / step * step;
+        for (int row = firstRow; row < y1; row += step) {
+            for (int col = firstCol; col < x1; col += step) {
+                if (previous > 0 && row % previous == 0 && col % previous == 0) {
+                    continue; // deja calcule par la passe precedente
+                }
+                Vec3f c = JavaTga.tracePixel(ctx, scene, w, h, col, row);
+                byte b = (byte) (Math.min(1, c.z) * 255);
+                byte g = (byte) (Math.min(1, c.y) * 255);
+                byte r = (byte) (Math.min(1, c.x) * 255);
+                for (int y = Math.max(row, y0), ye = Math.min(row + step, y1); y < ye; y++) {
+                    for (int x = Math.max(col, x0), xe = Math.min(col + step, x1); x < xe; x++) {
+                        int index = 3 * (y * w + x);
+                        buffer[index] = b;
+                        buffer[index + 1] = g;
+                        buffer[index + 2] = r;
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] copy(byte[] buffer, int w, int x0, int y0, int x1, int y1) {
+        int rowBytes = 3 * (x1 - x0);
+        byte[] tile = new byte[rowBytes * (y1 - y0)];
+        for (int row = y0; row < y1; row++) {
+            System.arraycopy(buffer, 3 * (row * w + x0), tile, (row - y0) * rowBytes, rowBytes);
+        }
+        return tile;
+    }
+
+    /**
+     * Listener keeping its own copy of the image and saving it as a TGA file after every pass.
+     */
+    public static class PreviewWriter implements TileListener {
+        private final String filename;
+        private final int width, height;
+        private final byte[] preview;
+
+        public PreviewWriter(String filename, int width, int height) {
+            this.filename = filename;
+            this.width = width;
+            this.height = height;
+            this.preview = new byte[3 * width * height];
+        }
+
+        @Override
+        public void tileCompleted(TileUpdate tile) {
+            tile.copyTo(preview, width); // tuiles disjointes : pas de verrou
+        }
+
+        @Override
+        public void passCompleted(int pass, boolean last) {
+            try {
+                JavaTga.saveTGA(filename, preview, width, height);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Listener printing the progress of each pass.
+     */
+    public static class ProgressReporter implements TileListener {
+        private final int tileCount;
+        private final AtomicInteger done = new AtomicInteger();
+        private final long start = System.nanoTime();
+
+        /**
+         * @param tileCount number of tiles in one pass
+         */
+        public ProgressReporter(int tileCount) {
+            this.tileCount = tileCount;
+        }
+
+        @Override
+        public void tileCompleted(TileUpdate tile) {
+            int n = done.incrementAndGet();
+            if (n % Math.max(1, tileCount / 10) == 0) {
+                System.out.printf("pass %d : %d%%%n", tile.pass, 100 * n / tileCount);
+            }
+        }
+
+        @Override
+        public void passCompleted(int pass, boolean last) {
+            done.set(0);
+            System.out.printf("pass %d done after %.1f ms%s%n", pass, (System.nanoTime() - start) / 1e6,
+                    last ? " (final)" : "");
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package fr.florian;
+
+/**
+ * A packet of rays, one array per coordinate of the origins and directions, tested against
+ * one primitive at a time by the {@link IntersectionKernels}.
+ */
+public class RayPacket {
+    final float[] ox, oy, oz;
+    final float[] dx, dy, dz;
+    private int size;
+
+    public RayPacket(int capacity) {
+        ox = new float[capacity]; oy = new float[capacity]; oz = new float[capacity];
+        dx = new float[capacity]; dy = new float[capacity]; dz = new float[capacity];
+    }
+
+    /**
+     * @return the camera rays of the pixels [x0, x1) x [y0, y1), row by row : coherent rays
+     *         sharing their origin
+     */
+    public static RayPacket camera(Camera camera, int w, int h, int x0, int y0, int x1, int y1) {
+        RayPacket rays = new RayPacket((x1 - x0) * (y1 - y0));
+        Vec3f dir = new Vec3f(0, 0, 0);
+        for (int row = y0; row < y1; row++) {
+            for (int col = x0; col < x1; col++) {
+                rays.add(camera.position, camera.direction(dir, w, h, col, row));
+            }
+        }
+        return rays;
+    }
+
+    public void add(Vec3f origin, Vec3f dir) {
+        int i = size++;
+        ox[i] = origin.x; oy[i] = origin.y; oz[i] = origin.z;
+        dx[i] = dir.x; dy[i] = dir.y; dz[i] = dir.z;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,477 @@
+package fr.florian;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Coordinator of a render farm : renders an image on {@link RenderWorker} processes
+ * reached over TCP.
+ * <p>
+ * The scene is compiled once ({@link SceneCache#encode}, BVH included) and sent to each
+ * worker, which keeps it for the next frames of the same scene. The tiles are split in
+ * Morton order between per-worker queues ; a worker whose queue is empty steals from the
+ * tail of the longest one. Each worker keeps a few tiles in flight (twice its threads) so
+ * that it never waits for the network. A worker that fails or stops answering is dropped
+ * and its tiles in flight are handed again to the others ; it is reconnected on the next
+ * frame. The returned tiles are copied into the framebuffer as they arrive.
+ */
+public class RenderFarm implements Closeable {
+    // protocole : entiers big-endian de DataOutputStream
+    static final int MAGIC = 0x52544652; // "RTFR"
+    static final int PROTOCOL = 1;
+    /** coordinator : SCENE length bytes, TILE id x0 y0 x1 y1 w h, BYE */
+    static final int SCENE = 1, TILE = 2, BYE = 3;
+    /** worker : READY threads, RESULT id pixels */
+    static final int READY = 4, RESULT = 5;
+
+    /** a worker silent for this long is considered lost */
+    private static final int TIMEOUT_MS = 60_000;
+
+    private final List<InetSocketAddress> addresses;
+    private final Connection[] connections;
+    private volatile String report = "no frame rendered yet";
+
+    /**
+     * Connection to one worker, used by one coordinator thread at a time.
+     */
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        /** scene already sent, by identity */
+        Scene scene;
+        int threads = 1;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, 5_000);
+                socket.setSoTimeout(TIMEOUT_MS);
+                socket.setTcpNoDelay(true);
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(PROTOCOL);
+                out.flush();
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        /** closed after a failure, replaced by {@link #reconnect()} on the next frame */
+        volatile boolean broken;
+
+        void close() {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Tiles of one frame shared by the coordinator threads.
+     */
+    private static final class Frame {
+        final int w, h;
+        final byte[] buffer;
+        /** x0, y0, x1, y1 of each tile */
+        final int[] rects;
+        final ArrayDeque<Integer>[] queues;
+        /** tiles of lost workers, handed out before any other */
+        final ArrayDeque<Integer> retry = new ArrayDeque<>();
+        final boolean[] done;
+        int remaining;
+        // statistiques par travailleur
+        final int[] rendered, stolen, retried;
+        final boolean[] lost;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        Frame(int w, int h, int blockSize, int workers) {
+            this.w = w;
+            this.h = h;
+            buffer = new byte[3 * w * h];
+            int tilesX = (w + blockSize - 1) / blockSize, tilesY = (h + blockSize - 1) / blockSize;
+            int n = tilesX * tilesY;
+            rects = new int[4 * n];
+            long[] order = new long[n];
+            for (int i = 0; i < n; i++) {
+                int x0 = (i % tilesX) * blockSize, y0 = (i / tilesX) * blockSize;
+                rects[4 * i] = x0;
+                rects[4 * i + 1] = y0;
+                rects[4 * i + 2] = Math.min(x0 + blockSize, w);
+                rects[4 * i + 3] = Math.min(y0 + blockSize, h);
+                order[i] = TileScheduler.morton(i % tilesX, i / tilesX);
+            }
+            Arrays.sort(order);
+
+            // une portion contigue de la courbe par travailleur
+            queues = new ArrayDeque[workers];
+            for (int k = 0; k < workers; k++) {
+                queues[k] = new ArrayDeque<>();
+                for (int i = (int) ((long) n * k / workers), end = (int) ((long) n * (k + 1) / workers); i < end; i++) {
+                    queues[k].add(TileScheduler.compact(order[i] >>> 1) * tilesX + TileScheduler.compact(order[i]));
+                }
+            }
+            done = new boolean[n];
+            remaining = n;
+            rendered = new int[workers];
+            stolen = new int[workers];
+            retried = new int[workers];
+            lost = new boolean[workers];
+        }
+
+        /**
+         * @param wait if no tile is available, wait until one is or the frame is complete
+         * @return the next tile for worker k, null if there is none
+         */
+        synchronized Integer next(int k, boolean wait) throws InterruptedException {
+            while (remaining > 0) {
+                Integer tile = retry.pollFirst();
+                if (tile != null) {
+                    retried[k]++;
+                    return tile;
+                }
+                tile = queues[k].pollFirst();
+                if (tile != null) {
+                    return tile;
+                }
+                // vol par la fin de la file la plus longue, loin de ce que son proprietaire calcule
+                ArrayDeque<Integer> victim = null;
+                for (ArrayDeque<Integer> q : queues) {
+                    if (victim == null || q.size() > victim.size()) victim = q;
+                }
+                if (victim != null && !victim.isEmpty()) {
+                    stolen[k]++;
+                    return victim.pollLast();
+                }
+                if (!wait) {
+                    return null;
+                }
+                wait();
+            }
+            return null;
+        }
+
+        synchronized void complete(int k, int tile) {
+            rendered[k]++;
+            if (!done[tile]) {
+                done[tile] = true;
+                if (--remaining == 0) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * Worker k is gone : its tiles in flight go to the others.
+         */
+        synchronized void lose(int k, ArrayDeque<Integer> inFlight) {
+            lost[k] = true;
+            for (int tile : inFlight) {
+                if (!done[tile]) retry.add(tile);
+            }
+            notifyAll();
+        }
+    }
+
+    private RenderFarm(List<InetSocketAddress> addresses) {
+        this.addresses = List.copyOf(addresses);
+        this.connections = new Connection[addresses.size()];
+    }
+
+    /**
+     * Connects to the workers that answer.
+     *
+     * @throws IOException if none does
+     */
+    public static RenderFarm connect(List<InetSocketAddress> addresses) throws IOException {
+        RenderFarm farm = new RenderFarm(addresses);
+        if (farm.reconnect() == 0) {
+            throw new IOException("no worker reachable among " + addresses);
+        }
+        return farm;
+    }
+
+    /**
+     * Opens the connections that are missing.
+     *
+     * @return number of connected workers
+     */
+    private int reconnect() {
+        int alive = 0;
+        for (int k = 0; k < connections.length; k++) {
+            if (connections[k] == null || connections[k].broken) {
+                connections[k] = null;
+                try {
+                    connections[k] = new Connection(addresses.get(k));
+                } catch (IOException e) {
+                    continue;
+                }
+            }
+            alive++;
+        }
+        return alive;
+    }
+
+    /**
+     * Renders scene on the workers.
+     *
+     * @return image buffer of w x h pixels, 3 bytes per pixel ordered Blue, Green, Red
+     * @throws IOException if every worker was lost before the end of the frame
+     * @throws IllegalArgumentException if the scene cannot be compiled ({@link SceneCache#encode})
+     */
+    public synchronized byte[] render(Scene scene, int w, int h, int blockSize) throws IOException {
+        if (reconnect() == 0) {
+            throw new IOException("no worker reachable among " + addresses);
+        }
+        long start = System.nanoTime();
+        ByteBuffer encoded = SceneCache.encode(scene);
+        byte[] sceneBytes = new byte[encoded.remaining()];
+        encoded.get(sceneBytes);
+
+        Connection[] workers = connections.clone();
+        Frame frame = new Frame(w, h, blockSize, workers.length);
+        Thread[] threads = new Thread[workers.length];
+        for (int k = 0; k < workers.length; k++) {
+            int worker = k;
+            if (workers[k] == null || workers[k].broken) {
+                frame.lose(k, new ArrayDeque<>());
+                continue;
+            }
+            threads[k] = Thread.ofPlatform().name("farm-" + addresses.get(k)).start(
+                    () -> drive(frame, worker, workers[worker], scene, sceneBytes));
+        }
+        for (Thread t : threads) {
+            if (t == null) continue;
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted", e);
+            }
+        }
+        report = report(frame, System.nanoTime() - start);
+        if (frame.remaining > 0) {
+            throw new IOException("all workers lost, " + frame.remaining + " tiles not rendered");
+        }
+        return frame.buffer;
+    }
+
+    /**
+     * Feeds worker k with tiles until the frame is complete, on its own thread.
+     */
+    private void drive(Frame frame, int k, Connection c, Scene scene, byte[] sceneBytes) {
+        ArrayDeque<Integer> inFlight = new ArrayDeque<>();
+        try {
+            if (c.scene != scene) {
+                c.out.writeInt(SCENE);
+                c.out.writeInt(sceneBytes.length);
+                c.out.write(sceneBytes);
+                c.out.flush();
+                if (c.in.readInt() != READY) {
+                    throw new IOException(addresses.get(k) + " did not load the scene");
+                }
+                c.threads = c.in.readInt();
+                c.scene = scene;
+            }
+            int window = 2 * Math.max(1, c.threads);
+            while (true) {
+                Integer tile;
+                while (inFlight.size() < window && (tile = frame.next(k, inFlight.isEmpty())) != null) {
+                    int[] r = frame.rects;
+                    c.out.writeInt(TILE);
+                    c.out.writeInt(tile);
+                    c.out.writeInt(r[4 * tile]);
+                    c.out.writeInt(r[4 * tile + 1]);
+                    c.out.writeInt(r[4 * tile + 2]);
+                    c.out.writeInt(r[4 * tile + 3]);
+                    c.out.writeInt(frame.w);
+                    c.out.writeInt(frame.h);
+                    inFlight.add(tile);
+                }
+                c.out.flush();
+                if (inFlight.isEmpty()) {
+                    return;
+                }
+                receive(frame, k, c, inFlight);
+            }
+        } catch (IOException | InterruptedException e) {
+            System.err.println("worker " + addresses.get(k) + " lost : " + e);
+            c.close();
+            frame.lose(k, inFlight);
+        }
+    }
+
+    /**
+     * Reads one finished tile of worker k straight into the framebuffer.
+     */
+    private void receive(Frame frame, int k, Connection c, ArrayDeque<Integer> inFlight) throws IOException {
+        if (c.in.readInt() != RESULT) {
+            throw new IOException(addresses.get(k) + " sent an unexpected message");
+        }
+        int tile = c.in.readInt();
+        if (!inFlight.remove(tile)) {
+            throw new IOException(addresses.get(k) + " returned tile " + tile + " it was not given");
+        }
+        int[] r = frame.rects;
+        int x0 = r[4 * tile], y0 = r[4 * tile + 1], x1 = r[4 * tile + 2], y1 = r[4 * tile + 3];
+        for (int y = y0; y < y1; y++) {
+            c.in.readFully(frame.buffer, 3 * (y * frame.w + x0), 3 * (x1 - x0));
+        }
+        frame.complete(k, tile);
+    }
+
+    private String report(Frame frame, long elapsed) {
+        StringBuilder sb = new StringBuilder(String.format("%dx%d, %d tiles in %.1f ms on %d workers",
+                frame.w, frame.h, frame.done.length, elapsed / 1e6, addresses.size()));
+        for (int k = 0; k < addresses.size(); k++) {
+            sb.append(String.format("%n  %s : %d tiles, %d stolen, %d retried%s", addresses.get(k),
+                    frame.rendered[k], frame.stolen[k], frame.retried[k], frame.lost[k] ? ", lost" : ""));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return tiles rendered, stolen and retried by each worker during the last frame
+     */
+    public String report() {
+        return report;
+    }
+
+    /**
+     * Says goodbye to the workers and closes the connections.
+     */
+    @Override
+    public synchronized void close() {
+        for (int k = 0; k < connections.length; k++) {
+            Connection c = connections[k];
+            if (c == null || c.broken) continue;
+            try {
+                c.out.writeInt(BYE);
+                c.out.flush();
+            } catch (IOException ignored) {
+            }
+            c.close();
+            connections[k] = null;
+        }
+    }
+
+    /**
+     * <pre>
+     * java fr.florian.RenderFarm scene.txt image.png host:port...
+     * java fr.florian.RenderFarm --local N [scene.txt]
+     * </pre>
+     * The first form renders a scene file on the given workers. The second starts N
+     * workers on this machine, renders the scene (the mirror palace by default) with
+     * 1, 2, ... N of them and prints the scaling efficiency.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final int w = 1024, h = 768, blockSize = 32;
+        if (args.length >= 2 && args[0].equals("--local")) {
+            scaling(Integer.parseInt(args[1]), args.length > 2 ? Path.of(args[2]) : null, w, h, blockSize);
+            return;
+        }
+        if (args.length < 3) {
+            System.err.println("usage: RenderFarm scene image host:port... | RenderFarm --local N [scene]");
+            System.exit(1);
+        }
+        List<InetSocketAddress> workers = new ArrayList<>();
+        for (int i = 2; i < args.length; i++) {
+            int colon = args[i].lastIndexOf(':');
+            workers.add(new InetSocketAddress(args[i].substring(0, colon), Integer.parseInt(args[i].substring(colon + 1))));
+        }
+        Scene scene = new SceneCache(Path.of(".scene-cache")).load(Path.of(args[0]));
+        try (RenderFarm farm = RenderFarm.connect(workers)) {
+            byte[] buffer = farm.render(scene, w, h, blockSize);
+            ImageWriter.forFile(args[1]).write(args[1], buffer, w, h);
+            System.out.println(farm.report());
+        }
+    }
+
+    /**
+     * Starts workers as child JVMs on this machine, the cores shared between them, and
+     * prints the time, speedup and efficiency of the farm for each number of workers.
+     */
+    static void scaling(int maxWorkers, Path sceneFile, int w, int h, int blockSize)
+            throws IOException, InterruptedException {
+        Scene scene;
+        if (sceneFile != null) {
+            scene = new SceneCache(Path.of(".scene-cache")).load(sceneFile);
+        } else {
+            List<Geometry> objects = new ArrayList<>();
+            List<Light> lights = new ArrayList<>();
+            JavaTga.drawMirrorPalaceScene(objects, lights);
+            scene = new Scene(objects, lights);
+        }
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / maxWorkers);
+        List<Process> processes = new ArrayList<>();
+        List<InetSocketAddress> workers = new ArrayList<>();
+        try {
+            for (int k = 0; k < maxWorkers; k++) {
+                Process p = startLocalWorker(threads);
+                processes.add(p);
+                // premiere ligne : "RenderWorker listening on <port>, ..."
+                String line = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine();
+                if (line == null) {
+                    throw new IOException("worker " + k + " did not start");
+                }
+                int port = Integer.parseInt(line.replaceAll(".* on (\\d+),.*", "$1"));
+                workers.add(new InetSocketAddress("localhost", port));
+            }
+
+            System.out.printf("%dx%d, %d thread(s) per worker%n", w, h, threads);
+            double base = 0;
+            for (int n = 1; n <= maxWorkers; n++) {
+                try (RenderFarm farm = RenderFarm.connect(workers.subList(0, n))) {
+                    farm.render(scene, w, h, blockSize); // envoi de la scene et chauffe du JIT
+                    long best = Long.MAX_VALUE;
+                    for (int run = 0; run < 3; run++) {
+                        long t0 = System.nanoTime();
+                        farm.render(scene, w, h, blockSize);
+                        best = Math.min(best, System.nanoTime() - t0);
+                    }
+                    if (n == 1) base = best;
+                    System.out.printf("%2d worker(s) : %8.1f ms, speedup %.2f, efficiency %3.0f%%%n",
+                            n, best / 1e6, base / best, 100 * base / best / n);
+                }
+            }
+        } finally {
+            for (Process p : processes) {
+                p.destroy();
+            }
+        }
+    }
+
+    /**
+     * Starts a worker on a free port with the JVM, class path and options of this process.
+     */
+    static Process startLocalWorker(int threads) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(RenderWorker.class.getName());
+        command.add("0");
+        command.add(Integer.toString(threads));
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+}
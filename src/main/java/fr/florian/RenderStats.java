@@ -0,0 +1,310 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Instrumentation of the ray tracer : rays by kind, intersection tests by primitive type,
+ * recursion depth reached and time spent in each tile.
+ * <p>
+ * The hot path only increments the plain counters of its {@link TraceContext}. The tile
+ * scheduler clears them when a tile starts and adds them to the statistics of the image
+ * when it ends, so nothing is shared between threads while rays are traced. Every tile
+ * and every frame is also emitted as a JFR event ({@code fr.florian.Tile},
+ * {@code fr.florian.Frame}), recorded only when a recording enables them.
+ * <p>
+ * One instance collects the statistics of one image (or of the frames rendered with it).
+ * Setting {@link #ENABLED} to false and recompiling removes all the instrumentation.
+ */
+public final class RenderStats {
+    /** false compiles every counter and event out of the ray tracer */
+    public static final boolean ENABLED = true;
+
+    // index des compteurs de TraceContext
+    static final int PRIMARY = 0;
+    static final int SHADOW = 1;
+    static final int REFLECTION = 2;
+    static final int REFRACTION = 3;
+    static final int SPHERE_TESTS = 4;
+    static final int PLANE_TESTS = 5;
+    static final int TRIANGLE_TESTS = 6;
+    static final int MESH_TESTS = 7;
+    static final int INSTANCE_TESTS = 8;
+    static final int OTHER_TESTS = 9;
+    /** rays traced at each recursion depth, MAX_DEPTH + 1 counters */
+    static final int DEPTH = 10;
+    static final int COUNTERS = DEPTH + JavaTga.MAX_DEPTH + 1;
+
+    private final LongAdder[] totals = new LongAdder[COUNTERS];
+    private final LongAdder nanos = new LongAdder();
+    /** time of each tile of the last frame */
+    private volatile TileCosts tiles;
+
+    public RenderStats() {
+        for (int i = 0; i < COUNTERS; i++) {
+            totals[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @return the counter of intersection tests against obj
+     */
+    static int testCounter(Geometry obj) {
+        if (obj instanceof Sphere) return SPHERE_TESTS;
+        if (obj instanceof Plane) return PLANE_TESTS;
+        if (obj instanceof Triangle) return TRIANGLE_TESTS;
+        if (obj instanceof TriangleMesh) return MESH_TESTS;
+        if (obj instanceof Instance) return INSTANCE_TESTS;
+        return OTHER_TESTS;
+    }
+
+    /**
+     * Starts a tile on the current thread : clears its counters and opens its event.
+     */
+    static TileEvent beginTile() {
+        java.util.Arrays.fill(TraceContext.get().counters, 0);
+        TileEvent event = new TileEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the tile [x0, x1) x [y0, y1) started by {@link #beginTile()} on the current thread.
+     *
+     * @param stats statistics of the image, may be null
+     */
+    static void endTile(TileEvent event, RenderStats stats, int x0, int y0, int x1, int y1) {
+        long[] counters = TraceContext.get().counters;
+        if (stats != null) {
+            stats.add(counters);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.x = x0;
+            event.y = y0;
+            event.width = x1 - x0;
+            event.height = y1 - y0;
+            event.primaryRays = counters[PRIMARY];
+            event.secondaryRays = counters[REFLECTION] + counters[REFRACTION];
+            event.shadowRays = counters[SHADOW];
+            event.commit();
+        }
+    }
+
+    /**
+     * Opens the event of a frame rendered by the tile scheduler.
+     */
+    static FrameEvent beginFrame() {
+        FrameEvent event = new FrameEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Closes the event of a frame and records its tile times.
+     *
+     * @param stats statistics of the image, may be null
+     */
+    static void endFrame(FrameEvent event, RenderStats stats, TileCosts costs, long elapsed) {
+        if (stats != null) {
+            stats.nanos.add(elapsed);
+            stats.tiles = costs;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.width = costs.width;
+            event.height = costs.height;
+            event.tiles = costs.getTileCount();
+            event.commit();
+        }
+    }
+
+    private void add(long[] counters) {
+        for (int i = 0; i < COUNTERS; i++) {
+            if (counters[i] != 0) {
+                totals[i].add(counters[i]);
+            }
+        }
+    }
+
+    public long getPrimaryRays() {
+        return totals[PRIMARY].sum();
+    }
+
+    public long getShadowRays() {
+        return totals[SHADOW].sum();
+    }
+
+    public long getReflectionRays() {
+        return totals[REFLECTION].sum();
+    }
+
+    public long getRefractionRays() {
+        return totals[REFRACTION].sum();
+    }
+
+    /**
+     * @return primary, shadow, reflection and refraction rays
+     */
+    public long getRays() {
+        return getPrimaryRays() + getShadowRays() + getReflectionRays() + getRefractionRays();
+    }
+
+    public long getSphereTests() {
+        return totals[SPHERE_TESTS].sum();
+    }
+
+    public long getPlaneTests() {
+        return totals[PLANE_TESTS].sum();
+    }
+
+    public long getTriangleTests() {
+        return totals[TRIANGLE_TESTS].sum();
+    }
+
+    /**
+     * @return intersection tests against faces of a {@link TriangleMesh}
+     */
+    public long getMeshFaceTests() {
+        return totals[MESH_TESTS].sum();
+    }
+
+    /**
+     * @return intersection tests against an {@link Instance}, each one covering its whole shape
+     */
+    public long getInstanceTests() {
+        return totals[INSTANCE_TESTS].sum();
+    }
+
+    /**
+     * @return number of shaded rays (camera, reflected or refracted) at recursion depth d
+     */
+    public long getRaysAtDepth(int d) {
+        return totals[DEPTH + d].sum();
+    }
+
+    /**
+     * @return deepest recursion level of findColor reached, -1 if nothing was traced
+     */
+    public int getMaxDepth() {
+        for (int d = JavaTga.MAX_DEPTH; d >= 0; d--) {
+            if (getRaysAtDepth(d) > 0) return d;
+        }
+        return -1;
+    }
+
+    /**
+     * @return time spent rendering the frames, pre-pass excluded
+     */
+    public long getNanos() {
+        return nanos.sum();
+    }
+
+    /**
+     * @return time of each tile of the last frame, null before the first one
+     */
+    public TileCosts getTileTimes() {
+        return tiles;
+    }
+
+    /**
+     * Saves the time spent in each tile of the last frame as an image : black for the
+     * fastest tiles, then red, yellow and white for the slowest one.
+     *
+     * @param filename PNG if it ends with ".png", TGA otherwise
+     */
+    public void writeHeatmap(String filename) throws IOException {
+        TileCosts t = tiles;
+        if (t == null) {
+            throw new IllegalStateException("no frame rendered yet");
+        }
+        float max = Math.max(1, t.max());
+        byte[] buffer = new byte[3 * t.width * t.height];
+        for (int y = 0; y < t.height; y++) {
+            for (int x = 0; x < t.width; x++) {
+                float heat = 3 * t.get((y / t.blockSize) * t.tilesX + x / t.blockSize) / max;
+                int index = 3 * (y * t.width + x);
+                // noir -> rouge -> jaune -> blanc
+                buffer[index] = (byte) (255 * Math.clamp(heat - 2, 0, 1));
+                buffer[index + 1] = (byte) (255 * Math.clamp(heat - 1, 0, 1));
+                buffer[index + 2] = (byte) (255 * Math.clamp(heat, 0, 1));
+            }
+        }
+        ImageWriter.forFile(filename).write(filename, buffer, t.width, t.height);
+    }
+
+    /**
+     * @return a few lines summing up the rays, the tests, the depth reached and the tiles
+     */
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        long ns = getNanos();
+        sb.append(String.format("%d rays (%d primary, %d shadow, %d reflection, %d refraction) in %.1f ms, %.2f Mrays/s%n",
+                getRays(), getPrimaryRays(), getShadowRays(), getReflectionRays(), getRefractionRays(),
+                ns / 1e6, ns == 0 ? 0.0 : getRays() * 1e3 / ns));
+        sb.append(String.format("intersection tests : %d spheres, %d planes, %d triangles, %d mesh faces, %d instances",
+                getSphereTests(), getPlaneTests(), getTriangleTests(), getMeshFaceTests(), getInstanceTests()));
+        if (totals[OTHER_TESTS].sum() > 0) {
+            sb.append(String.format(", %d others", totals[OTHER_TESTS].sum()));
+        }
+        sb.append(String.format("%ndepth reached : %d, rays per depth :", getMaxDepth()));
+        for (int d = 0; d <= getMaxDepth(); d++) {
+            sb.append(' ').append(getRaysAtDepth(d));
+        }
+        TileCosts t = tiles;
+        if (t != null) {
+            int slowest = 0;
+            for (int i = 1; i < t.getTileCount(); i++) {
+                if (t.get(i) > t.get(slowest)) slowest = i;
+            }
+            sb.append(String.format("%ntiles : %d, %.2f ms mean, %.2f ms max (tile %d, %d)",
+                    t.getTileCount(), t.mean() / 1e6, t.max() / 1e6, slowest % t.tilesX, slowest / t.tilesX));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report();
+    }
+
+    @Name("fr.florian.Tile")
+    @Label("Tile")
+    @Category("Ray tracing")
+    @Description("One tile, or a fragment of a split tile, rendered by a worker")
+    static final class TileEvent extends Event {
+        @Label("X")
+        int x;
+        @Label("Y")
+        int y;
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Primary rays")
+        long primaryRays;
+        @Label("Reflected and refracted rays")
+        long secondaryRays;
+        @Label("Shadow rays")
+        long shadowRays;
+    }
+
+    @Name("fr.florian.Frame")
+    @Label("Frame")
+    @Category("Ray tracing")
+    @Description("All the tiles of one image, cost pre-pass excluded")
+    static final class FrameEvent extends Event {
+        @Label("Width")
+        int width;
+        @Label("Height")
+        int height;
+        @Label("Tiles")
+        int tiles;
+    }
+}
@@ -0,0 +1,116 @@
+package fr.florian;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Render farm worker : waits for a {@link RenderFarm} coordinator on a TCP port, receives
+ * its compiled scene, then renders the tiles it is sent on all its cores and sends each
+ * one back as soon as it is done. A worker serves one coordinator at a time and keeps
+ * running after it disconnects.
+ * <p>
+ * <pre>java fr.florian.RenderWorker port [threads]</pre>
+ * Port 0 picks a free port ; the port is printed on the first line of the output.
+ */
+public final class RenderWorker {
+    private final ForkJoinPool pool;
+    private final int threads;
+
+    public RenderWorker(int threads) {
+        this.threads = threads;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: RenderWorker port [threads]");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        RenderWorker worker = new RenderWorker(threads);
+        try (ServerSocket server = new ServerSocket(port)) {
+            System.out.println("RenderWorker listening on " + server.getLocalPort() + ", " + threads + " threads");
+            System.out.flush();
+            while (true) {
+                try (Socket socket = server.accept()) {
+                    worker.serve(socket);
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("coordinator lost : " + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Serves one coordinator until it says goodbye or the connection breaks.
+     */
+    public void serve(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+        String peer = socket.getRemoteSocketAddress().toString();
+        if (in.readInt() != RenderFarm.MAGIC || in.readInt() != RenderFarm.PROTOCOL) {
+            throw new IOException(peer + " does not speak the render farm protocol " + RenderFarm.PROTOCOL);
+        }
+
+        Scene scene = null;
+        while (true) {
+            int op = in.readInt();
+            switch (op) {
+                case RenderFarm.SCENE -> {
+                    byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    scene = SceneCache.decode(ByteBuffer.wrap(bytes), peer);
+                    out.writeInt(RenderFarm.READY);
+                    out.writeInt(threads);
+                    out.flush();
+                }
+                case RenderFarm.TILE -> {
+                    int id = in.readInt();
+                    int x0 = in.readInt(), y0 = in.readInt(), x1 = in.readInt(), y1 = in.readInt();
+                    int w = in.readInt(), h = in.readInt();
+                    if (scene == null) {
+                        throw new IOException(peer + " sent a tile before its scene");
+                    }
+                    Scene s = scene;
+                    pool.execute(() -> render(s, id, x0, y0, x1, y1, w, h, socket, out));
+                }
+                case RenderFarm.BYE -> {
+                    return;
+                }
+                default -> throw new IOException(peer + " sent unknown message " + op);
+            }
+        }
+    }
+
+    private static void render(Scene scene, int id, int x0, int y0, int x1, int y1, int w, int h,
+                               Socket socket, DataOutputStream out) {
+        try {
+            RenderStats.TileEvent event = RenderStats.ENABLED ? RenderStats.beginTile() : null;
+            // tampon de la seule tuile, envoye tel quel
+            byte[] tile = new byte[3 * (x1 - x0) * (y1 - y0)];
+            JavaTga.renderBlock(scene, tile, x0, y0, x1 - x0, w, h, x0, y0, x1, y1);
+            if (RenderStats.ENABLED) RenderStats.endTile(event, null, x0, y0, x1, y1);
+            synchronized (out) {
+                out.writeInt(RenderFarm.RESULT);
+                out.writeInt(id);
+                out.write(tile);
+                out.flush();
+            }
+        } catch (IOException | RuntimeException e) {
+            // le coordinateur redistribuera les tuiles en cours
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Run-length encoded 24 bits TGA (image type 10).
+ * <p>
+ * Each packet holds up to 128 pixels, either one pixel repeated or literal pixels, and never
+ * crosses a row. Stripes of rows are encoded in parallel. Flat areas (sky, untextured
+ * planes) shrink to a few bytes per run.
+ */
+public class RleTgaWriter implements ImageWriter {
+    private static final int STRIPE_ROWS = 32;
+
+    private final ForkJoinPool pool;
+
+    public RleTgaWriter() {
+        this(TileScheduler.shared().getPool());
+    }
+
+    /**
+     * @param pool pool encoding the stripes
+     */
+    public RleTgaWriter(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public void write(String filename, byte[] buffer, int width, int height) throws IOException {
+        int count = (height + STRIPE_ROWS - 1) / STRIPE_ROWS;
+        List<byte[]> stripes = ImageFiles.encode(pool, count, s ->
+                encode(buffer, width, s * STRIPE_ROWS, Math.min(height, (s + 1) * STRIPE_ROWS)));
+
+        ByteBuffer[] out = new ByteBuffer[count + 1];
+        out[0] = TgaWriter.header(10, width, height);
+        for (int s = 0; s < count; s++) {
+            out[s + 1] = ByteBuffer.wrap(stripes.get(s));
+        }
+        ImageFiles.write(filename, out);
+    }
+
+    /**
+     * @return the packets of rows [y0, y1)
+     */
+    static byte[] encode(byte[] buffer, int width, int y0, int y1) {
+        // pire cas : un octet d'en-tete par paquet de 128 pixels bruts
+        byte[] out = new byte[(y1 - y0) * (3 * width + (width + 127) / 128)];
+        int n = 0;
+        for (int row = y0; row < y1; row++) {
+            int base = 3 * row * width;
+            int col = 0;
+            while (col < width) {
+                int run = 1;
+                while (col + run < width && run < 128 && samePixel(buffer, base, col, col + run)) {
+                    run++;
+                }
+                if (run > 1) {
+                    out[n++] = (byte) (0x80 | (run - 1));
+                    System.arraycopy(buffer, base + 3 * col, out, n, 3);
+                    n += 3;
+                    col += run;
+                    continue;
+                }
+                // paquet brut jusqu'au debut de la prochaine repetition
+                int start = col, count = 1;
+                col++;
+                while (col < width && count < 128 && !(col + 1 < width && samePixel(buffer, base, col, col + 1))) {
+                    count++;
+                    col++;
+                }
+                out[n++] = (byte) (count - 1);
+                System.arraycopy(buffer, base + 3 * start, out, n, 3 * count);
+                n += 3 * count;
+            }
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static boolean samePixel(byte[] buffer, int base, int a, int b) {
+        int i = base + 3 * a, j = base + 3 * b;
+        return buffer[i] == buffer[j] && buffer[i + 1] == buffer[j + 1] && buffer[i + 2] == buffer[j + 2];
+    }
+}
@@ -0,0 +1,98 @@
+package fr.florian;
+
+import static fr.florian.JavaTga.EPS;
+
+/**
+ * Fallback {@link IntersectionKernels} : one primitive and one ray at a time. Triangles
+ * follow {@link Triangle} operation for operation, spheres are solved in float like the
+ * vector kernels.
+ */
+final class ScalarKernels extends IntersectionKernels {
+
+    @Override
+    public void intersect(TrianglePack p, int from, int to, Vec3f P, Vec3f v, float[] t) {
+        for (int i = from; i < to; i++) {
+            t[i - from] = triangle(P.x, P.y, P.z, v.x, v.y, v.z, p.ax[i], p.ay[i], p.az[i],
+                    p.e1x[i], p.e1y[i], p.e1z[i], p.e2x[i], p.e2y[i], p.e2z[i]);
+        }
+    }
+
+    @Override
+    public void intersect(SpherePack p, int from, int to, Vec3f P, Vec3f v, float[] t) {
+        for (int i = from; i < to; i++) {
+            t[i - from] = sphere(P.x, P.y, P.z, v.x, v.y, v.z, p.cx[i], p.cy[i], p.cz[i], p.radius[i]);
+        }
+    }
+
+    @Override
+    public void intersect(RayPacket r, int from, int to, TrianglePack p, int i, float[] t) {
+        for (int k = from; k < to; k++) {
+            t[k - from] = triangle(r.ox[k], r.oy[k], r.oz[k], r.dx[k], r.dy[k], r.dz[k], p.ax[i], p.ay[i], p.az[i],
+                    p.e1x[i], p.e1y[i], p.e1z[i], p.e2x[i], p.e2y[i], p.e2z[i]);
+        }
+    }
+
+    @Override
+    public void intersect(RayPacket r, int from, int to, SpherePack p, int i, float[] t) {
+        for (int k = from; k < to; k++) {
+            t[k - from] = sphere(r.ox[k], r.oy[k], r.oz[k], r.dx[k], r.dy[k], r.dz[k], p.cx[i], p.cy[i], p.cz[i], p.radius[i]);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "scalar";
+    }
+
+    /**
+     * Möller–Trumbore, as {@link Triangle#getIntersection}.
+     */
+    private static float triangle(float px, float py, float pz, float vx, float vy, float vz,
+                                  float ax, float ay, float az, float e1x, float e1y, float e1z,
+                                  float e2x, float e2y, float e2z) {
+        float hx = vy * e2z - vz * e2y;
+        float hy = vz * e2x - vx * e2z;
+        float hz = vx * e2y - vy * e2x;
+        float det = e1x * hx + e1y * hy + e1z * hz;
+        if (Math.abs(det) < EPS) {
+            return -1;
+        }
+        float invDet = 1.0f / det;
+        float sx = px - ax, sy = py - ay, sz = pz - az;
+        float u = (sx * hx + sy * hy + sz * hz) * invDet;
+        if (u < 0f || u > 1f) {
+            return -1;
+        }
+        float qx = sy * e1z - sz * e1y;
+        float qy = sz * e1x - sx * e1z;
+        float qz = sx * e1y - sy * e1x;
+        float w = (vx * qx + vy * qy + vz * qz) * invDet;
+        if (w < 0f || u + w > 1f) {
+            return -1;
+        }
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        return t > EPS ? t : -1;
+    }
+
+    /**
+     * Nearest root in front of the ray, in float like the vector kernels.
+     */
+    private static float sphere(float px, float py, float pz, float vx, float vy, float vz,
+                                float cx, float cy, float cz, float radius) {
+        float ocx = px - cx, ocy = py - cy, ocz = pz - cz;
+        float a = vx * vx + vy * vy + vz * vz;
+        float b = 2 * (vx * ocx + vy * ocy + vz * ocz);
+        float c = (ocx * ocx + ocy * ocy + ocz * ocz) - radius * radius;
+        float disc = b * b - 4 * a * c;
+        if (disc < 0) {
+            return -1;
+        }
+        float sq = (float) Math.sqrt(disc);
+        float near = (-b - sq) / (2 * a);
+        if (near > 0) {
+            return near;
+        }
+        float far = (-b + sq) / (2 * a);
+        return far > 0 ? far : -1;
+    }
+}
@@ -0,0 +1,376 @@
+package fr.florian;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Scene ready to be ray traced : bounded objects are indexed by a {@link BVH},
+ * unbounded ones (planes) are kept in a small list tested linearly.
+ * <p>
+ * An animated scene keeps its moving objects in a second BVH : after their transforms
+ * changed, {@link #refit()} updates the boxes of that hierarchy only, the static one is
+ * built once for the whole sequence.
+ */
+public class Scene {
+    public final List<Geometry> objects;
+    public final List<Light> lights;
+    public final Camera camera;
+    /** secondary rays contributing less than this to their pixel are not traced, see {@link #withTermination} */
+    public final float minWeight;
+    public final boolean russianRoulette;
+    /** lights flattened for shading, and the Phong coefficients of each material under them */
+    final ShadingTable shading;
+
+    private final Geometry[] unbounded;
+    private final int[] unboundedIndex;
+    /** {@link RenderStats} counter of the tests against each unbounded object */
+    private final int[] unboundedCounter;
+    /** bounded static objects, and bounded moving ones (null when there are none) */
+    private final Part fixed;
+    private final Part moving;
+
+    /**
+     * Bounded objects of the scene and the BVH over their primitives.
+     */
+    private static final class Part {
+        final Geometry[] bounded;
+        final int[] boundedIndex;
+        /** for each BVH primitive : index in bounded, and primitive number inside that object */
+        final int[] primObject;
+        final int[] primId;
+        /** {@link RenderStats} counter of the tests against each BVH primitive */
+        final byte[] primCounter;
+        final BVH bvh;
+
+        /**
+         * @param index index in the scene of each object
+         */
+        Part(Geometry[] bounded, int[] index, Function<BVH.Primitives, BVH> hierarchy) {
+            this.bounded = bounded;
+            this.boundedIndex = index;
+            int primCount = 0;
+            for (Geometry obj : bounded) {
+                primCount += obj.getPrimitiveCount();
+            }
+
+            // chaque primitive (face d'un maillage) est une feuille du BVH
+            primObject = new int[primCount];
+            primId = new int[primCount];
+            primCounter = new byte[primCount];
+            for (int i = 0, k = 0; i < bounded.length; i++) {
+                byte counter = (byte) RenderStats.testCounter(bounded[i]);
+                for (int p = 0, n = bounded[i].getPrimitiveCount(); p < n; p++, k++) {
+                    primObject[k] = i;
+                    primId[k] = p;
+                    primCounter[k] = counter;
+                }
+            }
+
+            bvh = hierarchy.apply(new BVH.Primitives() {
+                @Override
+                public int size() {
+                    return primObject.length;
+                }
+
+                @Override
+                public AABB getBoundingBox(int i) {
+                    return bounded[primObject[i]].getBoundingBox(primId[i]);
+                }
+
+                @Override
+                public void intersect(int i, Vec3f P, Vec3f v, Hit hit) {
+                    Geometry obj = bounded[primObject[i]];
+                    hit.offer(obj.getIntersection(primId[i], P, v), obj, boundedIndex[primObject[i]], primId[i]);
+                }
+
+                @Override
+                public boolean occludes(int i, Vec3f P, Vec3f v, float maxT) {
+                    return bounded[primObject[i]].occludes(primId[i], P, v, maxT);
+                }
+
+                @Override
+                public void intersect(int i, Vec3f P, Vec3f v, Hit hit, long[] counters) {
+                    if (RenderStats.ENABLED && counters != null) counters[primCounter[i]]++;
+                    intersect(i, P, v, hit);
+                }
+
+                @Override
+                public boolean occludes(int i, Vec3f P, Vec3f v, float maxT, long[] counters) {
+                    if (RenderStats.ENABLED && counters != null) counters[primCounter[i]]++;
+                    return occludes(i, P, v, maxT);
+                }
+            });
+        }
+
+        /**
+         * @return true if a primitive is hit at EPS &lt; t &lt; maxT, remembered in cache for light
+         */
+        boolean findOccluder(Vec3f P, Vec3f v, float maxT, int[] stack, OccluderCache cache, int light, long[] counters) {
+            int i = bvh.findOccluder(P, v, maxT, stack, counters);
+            if (i >= 0) {
+                cache.remember(light, bounded[primObject[i]], primId[i], boundedIndex[primObject[i]]);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Scene seen by the default {@link Camera}.
+     *
+     * @param objects geometries, in scene order (ties between equal distances go to the first one)
+     * @param lights light sources
+     */
+    public Scene(List<Geometry> objects, List<Light> lights) {
+        this(objects, lights, new Camera());
+    }
+
+    public Scene(List<Geometry> objects, List<Light> lights, Camera camera) {
+        this(objects, List.of(), lights, camera, BVH::new);
+    }
+
+    /**
+     * Animated scene : the moving objects get a hierarchy of their own, to be refitted
+     * with {@link #refit()} after their transforms changed.
+     *
+     * @param objects static geometries
+     * @param moving geometries whose transform changes between frames, placed after objects
+     *               in scene order
+     */
+    public Scene(List<Geometry> objects, List<Geometry> moving, List<Light> lights, Camera camera) {
+        this(objects, moving, lights, camera, BVH::new);
+    }
+
+    /**
+     * @param hierarchy builds or restores the BVH over the bounded static primitives of the scene
+     */
+    Scene(List<Geometry> objects, List<Light> lights, Camera camera, Function<BVH.Primitives, BVH> hierarchy) {
+        this(objects, List.of(), lights, camera, hierarchy);
+    }
+
+    private Scene(List<Geometry> objects, List<Geometry> moving, List<Light> lights, Camera camera,
+                  Function<BVH.Primitives, BVH> hierarchy) {
+        this.lights = lights;
+        this.shading = new ShadingTable(lights);
+        this.camera = camera;
+        this.minWeight = JavaTga.DEFAULT_MIN_WEIGHT;
+        this.russianRoulette = false;
+        if (moving.isEmpty()) {
+            this.objects = objects;
+        } else {
+            this.objects = new ArrayList<>(objects.size() + moving.size());
+            this.objects.addAll(objects);
+            this.objects.addAll(moving);
+        }
+
+        List<Integer> inf = new ArrayList<>();
+        List<Integer> fin = new ArrayList<>();
+        List<Integer> dyn = new ArrayList<>();
+        for (int i = 0; i < this.objects.size(); i++) {
+            (this.objects.get(i).getBoundingBox() == null ? inf : i < objects.size() ? fin : dyn).add(i);
+        }
+        // les objets infinis qui bougent restent dans la liste testee a chaque rayon
+        unbounded = new Geometry[inf.size()];
+        unboundedIndex = new int[inf.size()];
+        unboundedCounter = new int[inf.size()];
+        for (int i = 0; i < unbounded.length; i++) {
+            unboundedIndex[i] = inf.get(i);
+            unbounded[i] = this.objects.get(unboundedIndex[i]);
+            unboundedCounter[i] = RenderStats.testCounter(unbounded[i]);
+        }
+        this.fixed = part(fin, hierarchy);
+        this.moving = dyn.isEmpty() ? null : part(dyn, BVH::new);
+    }
+
+    private Part part(List<Integer> index, Function<BVH.Primitives, BVH> hierarchy) {
+        Geometry[] bounded = new Geometry[index.size()];
+        int[] boundedIndex = new int[index.size()];
+        for (int i = 0; i < bounded.length; i++) {
+            boundedIndex[i] = index.get(i);
+            bounded[i] = objects.get(boundedIndex[i]);
+        }
+        return new Part(bounded, boundedIndex, hierarchy);
+    }
+
+    /**
+     * Same objects seen by another camera, lit by other lights or traced with other
+     * termination settings, sharing every structure of scene.
+     */
+    private Scene(Scene scene, Camera camera, List<Light> lights, float minWeight, boolean russianRoulette) {
+        this.objects = scene.objects;
+        this.lights = lights;
+        this.shading = scene.shading.matches(lights) ? scene.shading : new ShadingTable(lights);
+        this.camera = camera;
+        this.minWeight = minWeight;
+        this.russianRoulette = russianRoulette;
+        this.unbounded = scene.unbounded;
+        this.unboundedIndex = scene.unboundedIndex;
+        this.unboundedCounter = scene.unboundedCounter;
+        this.fixed = scene.fixed;
+        this.moving = scene.moving;
+    }
+
+    /**
+     * @return this scene seen by camera, without rebuilding anything
+     */
+    public Scene withCamera(Camera camera) {
+        return camera == this.camera ? this : new Scene(this, camera, lights, minWeight, russianRoulette);
+    }
+
+    /**
+     * Also takes the lights and materials edited in place since this scene was built : they
+     * are compared by value with those its shading was compiled from.
+     *
+     * @return the objects of this scene lit by lights, without rebuilding anything else
+     */
+    public Scene withLights(List<Light> lights) {
+        return lights == this.lights && shading.matches(lights) ? this
+                : new Scene(this, camera, lights, minWeight, russianRoulette);
+    }
+
+    /**
+     * Sets when the ray tree stops, for the renders of the returned scene only. A secondary
+     * ray carries the product of the reflectivities and transparencies along its path : the
+     * share of the pixel it can still change. Rays whose weight falls below minWeight are
+     * dropped, or with Russian roulette, survive with probability weight / minWeight and are
+     * scaled up to stay unbiased (noisy, but long mirror paths are not darkened). MAX_DEPTH
+     * stays a hard limit.
+     *
+     * @param minWeight 0 to trace every ray up to MAX_DEPTH, {@link JavaTga#DEFAULT_MIN_WEIGHT} by default
+     * @return this scene traced with these settings, without rebuilding anything
+     */
+    public Scene withTermination(float minWeight, boolean russianRoulette) {
+        return minWeight == this.minWeight && russianRoulette == this.russianRoulette ? this
+                : new Scene(this, camera, lights, minWeight, russianRoulette);
+    }
+
+    /**
+     * Updates the hierarchy of the moving objects to their current bounding boxes. To be
+     * called between two frames, never while the scene is being traced.
+     */
+    public void refit() {
+        if (moving != null) {
+            moving.bvh.refit();
+        }
+    }
+
+    /**
+     * @return true if the scene has bounded moving objects
+     */
+    public boolean isAnimated() {
+        return moving != null;
+    }
+
+    /**
+     * @return the hierarchy of the static objects
+     */
+    public BVH getBVH() {
+        return fixed.bvh;
+    }
+
+    /**
+     * @return the hierarchy of the moving objects, null when there are none
+     */
+    public BVH getMovingBVH() {
+        return moving == null ? null : moving.bvh;
+    }
+
+    /**
+     * @return size of the traversal stack expected by the queries
+     */
+    public int getStackSize() {
+        return moving == null ? fixed.bvh.getStackSize()
+                : Math.max(fixed.bvh.getStackSize(), moving.bvh.getStackSize());
+    }
+
+    /**
+     * Closest-hit query.
+     *
+     * @param P ray origin
+     * @param v ray direction
+     * @param hit filled with the closest intersection at t &gt; EPS (point, normal and material included)
+     * @return true if something was hit
+     */
+    public boolean intersect(Vec3f P, Vec3f v, Hit hit) {
+        return intersect(P, v, hit, new int[getStackSize()]);
+    }
+
+    /**
+     * Closest-hit query with a caller-owned traversal stack of at least {@link #getStackSize()} entries.
+     */
+    public boolean intersect(Vec3f P, Vec3f v, Hit hit, int[] stack) {
+        return intersect(P, v, hit, stack, null);
+    }
+
+    /**
+     * @param counters {@link RenderStats} counters of the calling thread, or null
+     */
+    boolean intersect(Vec3f P, Vec3f v, Hit hit, int[] stack, long[] counters) {
+        hit.reset();
+        for (int i = 0; i < unbounded.length; i++) {
+            if (RenderStats.ENABLED && counters != null) counters[unboundedCounter[i]]++;
+            hit.offer(unbounded[i].getIntersection(P, v), unbounded[i], unboundedIndex[i]);
+        }
+        fixed.bvh.intersect(P, v, hit, stack, counters);
+        if (moving != null) {
+            moving.bvh.intersect(P, v, hit, stack, counters);
+        }
+        if (hit.object == null) {
+            return false;
+        }
+        hit.object.computeSurface(P, v, hit);
+        return true;
+    }
+
+    /**
+     * Shadow query.
+     *
+     * @return true if any object is hit at EPS &lt; t &lt; maxT
+     */
+    public boolean occluded(Vec3f P, Vec3f v, float maxT) {
+        return occluded(P, v, maxT, new int[getStackSize()]);
+    }
+
+    /**
+     * Shadow query with a caller-owned traversal stack of at least {@link #getStackSize()} entries.
+     */
+    public boolean occluded(Vec3f P, Vec3f v, float maxT, int[] stack) {
+        for (Geometry obj : unbounded) {
+            if (obj.occludes(0, P, v, maxT)) {
+                return true;
+            }
+        }
+        return fixed.bvh.occluded(P, v, maxT, stack)
+                || moving != null && moving.bvh.occluded(P, v, maxT, stack);
+    }
+
+    /**
+     * Shadow query towards light number light, testing first the occluder this thread found
+     * last time for that light, and remembering the new one.
+     *
+     * @param cache occluder cache of the calling thread, bound to this scene
+     * @param counters {@link RenderStats} counters of the calling thread, or null
+     */
+    boolean occluded(Vec3f P, Vec3f v, float maxT, int[] stack, OccluderCache cache, int light, long[] counters) {
+        Geometry last = cache.object(light);
+        if (last != null) {
+            if (RenderStats.ENABLED && counters != null) counters[RenderStats.testCounter(last)]++;
+            if (last.occludes(cache.primitive(light), P, v, maxT)) {
+                return true;
+            }
+        }
+        for (int k = 0; k < unbounded.length; k++) {
+            Geometry obj = unbounded[k];
+            if (obj != last) {
+                if (RenderStats.ENABLED && counters != null) counters[unboundedCounter[k]]++;
+                if (obj.occludes(0, P, v, maxT)) {
+                    cache.remember(light, obj, 0, unboundedIndex[k]);
+                    return true;
+                }
+            }
+        }
+        return fixed.findOccluder(P, v, maxT, stack, cache, light, counters)
+                || moving != null && moving.findOccluder(P, v, maxT, stack, cache, light, counters);
+    }
+}
@@ -0,0 +1,363 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary cache of compiled scene files.
+ * <p>
+ * A scene file is parsed and its BVH built once : the result is saved in the cache
+ * directory under the SHA-256 of the file content. The next loads of the same content map
+ * that file and rebuild the scene from flat arrays, without parsing nor building the
+ * hierarchy. Editing the scene file changes its hash, so a stale entry is never used.
+ * <p>
+ * The shapes of the {@link Instance}s are saved once each, before the objects : the copies
+ * of a shape only hold its number and their transform, and share its hierarchy again once
+ * loaded.
+ */
+public class SceneCache {
+    private static final int MAGIC = 0x43535452; // "RTSC"
+    private static final int VERSION = 3;
+
+    private static final int SPHERE = 0, PLANE = 1, TRIANGLE = 2, MESH = 3, INSTANCE = 4;
+
+    private final Path directory;
+
+    /**
+     * @param directory where the compiled scenes are kept, created if needed
+     */
+    public SceneCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Loads a scene file, from the cache if its content was already compiled.
+     */
+    public Scene load(Path sceneFile) throws IOException {
+        byte[] source = Files.readAllBytes(sceneFile);
+        Path cached = directory.resolve(key(source) + ".scene.bin");
+        if (Files.isRegularFile(cached)) {
+            try {
+                return read(cached);
+            } catch (IOException | RuntimeException e) {
+                // entree illisible (ecriture interrompue, autre version) : on la refait
+            }
+        }
+        Scene scene = SceneFile.parse(new String(source, StandardCharsets.UTF_8), sceneFile.toString());
+        Files.createDirectories(directory);
+        Path tmp = Files.createTempFile(directory, "scene", ".tmp");
+        try {
+            write(scene, tmp);
+            Files.move(tmp, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return scene;
+    }
+
+    /**
+     * @return the cache key of a scene file content
+     */
+    static String key(byte[] source) {
+        try {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(source);
+            sha.update((byte) VERSION);
+            return HexFormat.of().formatHex(sha.digest(), 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Saves a compiled scene made of spheres, planes, triangles, meshes and instances of them,
+     * with its BVH.
+     *
+     * @throws IllegalArgumentException if the scene holds another kind of object, or is animated
+     */
+    public static void write(Scene scene, Path file) throws IOException {
+        ByteBuffer out = encode(scene);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        }
+    }
+
+    /**
+     * Compiled form of a scene, as saved by {@link #write}, also sent to the workers of a
+     * {@link RenderFarm}.
+     *
+     * @return a buffer positioned at 0, limited to the encoded bytes
+     * @throws IllegalArgumentException if the scene holds another kind of object, or is animated
+     */
+    static ByteBuffer encode(Scene scene) {
+        if (scene.isAnimated()) {
+            throw new IllegalArgumentException("cannot cache an animated scene");
+        }
+        List<Material> materials = new ArrayList<>();
+        Map<Material, Integer> materialIndex = new IdentityHashMap<>();
+        List<Geometry> shapes = new ArrayList<>();
+        Map<Geometry, Integer> shapeIndex = new IdentityHashMap<>();
+        int objectWords = 0, shapeWords = 0;
+        for (Geometry obj : scene.objects) {
+            register(obj, materials, materialIndex, shapes, shapeIndex);
+            objectWords += wordsOf(obj);
+        }
+        for (Geometry shape : shapes) {
+            shapeWords += wordsOf(shape);
+        }
+        BVH bvh = scene.getBVH();
+        int nodes = bvh.getNodeCount(), prims = bvh.order().length;
+
+        int size = 4 * (2 + 12
+                + 1 + 16 * materials.size()
+                + 1 + 12 * scene.lights.size()
+                + 1 + 2 * shapes.size() + shapeWords
+                + 1 + 2 * scene.objects.size() + objectWords
+                + 3 + 8 * nodes + prims);
+        ByteBuffer out = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC).putInt(VERSION);
+        Camera c = scene.camera;
+        put(out, c.position); put(out, c.forward); put(out, c.right); put(out, c.up);
+
+        out.putInt(materials.size());
+        for (Material m : materials) {
+            put(out, m.ambient); put(out, m.diffuse); put(out, m.specular); put(out, m.absorption);
+            out.putFloat(m.shininess).putFloat(m.reflectivity).putFloat(m.transparency).putFloat(m.ior);
+        }
+        out.putInt(scene.lights.size());
+        for (Light l : scene.lights) {
+            put(out, l.position); put(out, l.ambient); put(out, l.diffuse); put(out, l.specular);
+        }
+        // formes des instances, chacune apres celles dont elle depend
+        out.putInt(shapes.size());
+        for (Geometry shape : shapes) {
+            put(out, shape, materialIndex, shapeIndex);
+        }
+        out.putInt(scene.objects.size());
+        for (Geometry obj : scene.objects) {
+            put(out, obj, materialIndex, shapeIndex);
+        }
+
+        out.putInt(prims).putInt(nodes).putInt(bvh.getDepth());
+        if (nodes > 0) {
+            out.asFloatBuffer().put(bvh.bounds(), 0, 6 * nodes);
+            out.position(out.position() + 4 * 6 * nodes);
+            out.asIntBuffer().put(bvh.children(), 0, nodes).put(bvh.counts(), 0, nodes).put(bvh.order(), 0, prims);
+            out.position(out.position() + 4 * (2 * nodes + prims));
+        }
+        return out.flip();
+    }
+
+    /**
+     * Writes the type, the material and the words of one object.
+     */
+    private static void put(ByteBuffer out, Geometry obj, Map<Material, Integer> materialIndex,
+                            Map<Geometry, Integer> shapeIndex) {
+        Integer m = obj.material == null ? null : materialIndex.get(obj.material);
+        if (obj instanceof Sphere s) {
+            out.putInt(SPHERE).putInt(m == null ? -1 : m);
+            put(out, s.center);
+            out.putFloat(s.radius);
+        } else if (obj instanceof Plane p) {
+            out.putInt(PLANE).putInt(m == null ? -1 : m);
+            put(out, p.P0); put(out, p.N);
+        } else if (obj instanceof Triangle t) {
+            out.putInt(TRIANGLE).putInt(m == null ? -1 : m);
+            put(out, t.a); put(out, t.b); put(out, t.c);
+        } else if (obj instanceof TriangleMesh mesh) {
+            int vertices = mesh.getVertexCount(), faces = mesh.getFaceCount();
+            List<Material> meshMaterials = mesh.materials();
+            out.putInt(MESH).putInt(m == null ? -1 : m);
+            out.putInt(vertices).putInt(faces).putInt(meshMaterials.size());
+            for (Material mm : meshMaterials) {
+                out.putInt(materialIndex.get(mm));
+            }
+            out.asFloatBuffer().put(mesh.vertices(), 0, 3 * vertices);
+            out.position(out.position() + 4 * 3 * vertices);
+            out.asIntBuffer().put(mesh.indices(), 0, 3 * faces).put(mesh.faceMaterials(), 0, faces);
+            out.position(out.position() + 4 * 4 * faces);
+        } else if (obj instanceof Instance instance) {
+            out.putInt(INSTANCE).putInt(m == null ? -1 : m);
+            out.putInt(shapeIndex.get(instance.shape));
+            Matrix4f t = instance.getTransform();
+            for (int row = 0; row < 4; row++) {
+                for (int col = 0; col < 4; col++) {
+                    out.putFloat(t.get(row, col));
+                }
+            }
+        }
+    }
+
+    /**
+     * Numbers the materials of obj and, for an instance, its shape after the shapes this
+     * one depends on.
+     */
+    private static void register(Geometry obj, List<Material> materials, Map<Material, Integer> materialIndex,
+                                 List<Geometry> shapes, Map<Geometry, Integer> shapeIndex) {
+        register(obj.material, materials, materialIndex);
+        if (obj instanceof TriangleMesh mesh) {
+            for (Material m : mesh.materials()) {
+                register(m, materials, materialIndex);
+            }
+        } else if (obj instanceof Instance instance && !shapeIndex.containsKey(instance.shape)) {
+            register(instance.shape, materials, materialIndex, shapes, shapeIndex);
+            shapeIndex.put(instance.shape, shapes.size());
+            shapes.add(instance.shape);
+        }
+    }
+
+    private static void register(Material m, List<Material> materials, Map<Material, Integer> materialIndex) {
+        if (m != null && !materialIndex.containsKey(m)) {
+            materialIndex.put(m, materials.size());
+            materials.add(m);
+        }
+    }
+
+    /**
+     * @return number of 4-byte words of the object after its type and material
+     */
+    private static int wordsOf(Geometry obj) {
+        if (obj instanceof Sphere) return 4;
+        if (obj instanceof Plane) return 6;
+        if (obj instanceof Triangle) return 9;
+        if (obj instanceof TriangleMesh mesh) {
+            return 3 + mesh.materials().size() + 3 * mesh.getVertexCount() + 4 * mesh.getFaceCount();
+        }
+        if (obj instanceof Instance instance) {
+            wordsOf(instance.shape);
+            return 1 + 16;
+        }
+        throw new IllegalArgumentException("cannot cache " + obj.getClass().getSimpleName());
+    }
+
+    /**
+     * Loads a scene saved by {@link #write}, through a read-only mapping of the file.
+     */
+    public static Scene read(Path file) throws IOException {
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        return decode(in, file.toString());
+    }
+
+    /**
+     * Rebuilds a scene from the bytes of {@link #encode}, from the position of in.
+     *
+     * @param name file or peer the bytes come from, for error messages
+     */
+    static Scene decode(ByteBuffer in, String name) throws IOException {
+        in.order(ByteOrder.LITTLE_ENDIAN);
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException(name + " is not a compiled scene of version " + VERSION);
+        }
+        Camera camera = new Camera(vec(in), vec(in), vec(in), vec(in));
+
+        Material[] materials = new Material[in.getInt()];
+        for (int i = 0; i < materials.length; i++) {
+            Vec3f a = vec(in), d = vec(in), s = vec(in), absorption = vec(in);
+            materials[i] = new Material(a, d, s, in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat(), absorption);
+        }
+        int lightCount = in.getInt();
+        List<Light> lights = new ArrayList<>(lightCount);
+        for (int i = 0; i < lightCount; i++) {
+            lights.add(new Light(vec(in), vec(in), vec(in), vec(in)));
+        }
+        Geometry[] shapes = new Geometry[in.getInt()];
+        // premiere instance de chaque forme : les suivantes en sont des copies, partageant son BVH
+        Instance[] firstCopies = new Instance[shapes.length];
+        for (int i = 0; i < shapes.length; i++) {
+            shapes[i] = object(in, materials, shapes, firstCopies, name);
+        }
+        int objectCount = in.getInt();
+        List<Geometry> objects = new ArrayList<>(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            objects.add(object(in, materials, shapes, firstCopies, name));
+        }
+
+        int prims = in.getInt(), nodes = in.getInt(), depth = in.getInt();
+        float[] bounds = new float[6 * nodes];
+        int[] child = new int[nodes], count = new int[nodes], order = new int[prims];
+        in.asFloatBuffer().get(bounds);
+        in.position(in.position() + 4 * bounds.length);
+        in.asIntBuffer().get(child).get(count).get(order);
+        return new Scene(objects, lights, camera, p -> new BVH(p, nodes, depth, bounds, child, count, order));
+    }
+
+    private static Geometry object(ByteBuffer in, Material[] materials, Geometry[] shapes, Instance[] firstCopies,
+                                   String name) throws IOException {
+        int type = in.getInt(), m = in.getInt();
+        Material material = m < 0 ? null : materials[m];
+        switch (type) {
+            case SPHERE -> {
+                return new Sphere(vec(in), in.getFloat(), material);
+            }
+            case PLANE -> {
+                Plane p = new Plane(vec(in), new Vec3f(0, 0, 1), material);
+                p.N = vec(in); // deja normalisee
+                return p;
+            }
+            case TRIANGLE -> {
+                return new Triangle(vec(in), vec(in), vec(in), material);
+            }
+            case MESH -> {
+                return mesh(in, materials);
+            }
+            case INSTANCE -> {
+                int shape = in.getInt();
+                float[] t = new float[16];
+                for (int k = 0; k < 16; k++) {
+                    t[k] = in.getFloat();
+                }
+                Matrix4f transform = Matrix4f.of(t);
+                if (firstCopies[shape] != null) {
+                    return firstCopies[shape].copy(transform, material);
+                }
+                return firstCopies[shape] = new Instance(shapes[shape], transform, material);
+            }
+            default -> throw new IOException(name + ": unknown object type " + type);
+        }
+    }
+
+    private static TriangleMesh mesh(ByteBuffer in, Material[] materials) {
+        int vertexCount = in.getInt(), faceCount = in.getInt();
+        List<Material> meshMaterials = new ArrayList<>();
+        for (int i = 0, n = in.getInt(); i < n; i++) {
+            meshMaterials.add(materials[in.getInt()]);
+        }
+        float[] vertices = new float[3 * vertexCount];
+        int[] indices = new int[3 * faceCount], faceMaterial = new int[faceCount];
+        in.asFloatBuffer().get(vertices);
+        in.position(in.position() + 4 * vertices.length);
+        in.asIntBuffer().get(indices).get(faceMaterial);
+        in.position(in.position() + 4 * 4 * faceCount);
+        TriangleMesh mesh = new TriangleMesh(vertices, vertexCount, indices, faceMaterial, faceCount, meshMaterials);
+        mesh.computeFaces(0, faceCount);
+        return mesh;
+    }
+
+    private static void put(ByteBuffer out, Vec3f v) {
+        out.putFloat(v.x).putFloat(v.y).putFloat(v.z);
+    }
+
+    private static Vec3f vec(ByteBuffer in) {
+        return new Vec3f(in.getFloat(), in.getFloat(), in.getFloat());
+    }
+}
@@ -0,0 +1,200 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Text scene description.
+ * <p>
+ * One element per line, numbers separated by spaces, '#' starts a comment. A material is
+ * named when it is defined and referenced by that name afterwards :
+ * <pre>
+ * camera   px py pz  fx fy fz  [rx ry rz  ux uy uz]
+ * material name  ar ag ab  dr dg db  sr sg sb  shininess reflectivity  [transparency ior  tr tg tb]
+ * sphere   cx cy cz  radius  material
+ * plane    px py pz  nx ny nz  material
+ * triangle ax ay az  bx by bz  cx cy cz  material
+ * light    px py pz  ar ag ab  dr dg db  sr sg sb
+ * </pre>
+ * The camera is described in {@link Camera}, the default one being used when the line is
+ * missing. tr tg tb is the absorption tint of a transparent material.
+ */
+public class SceneFile {
+
+    private SceneFile() {
+    }
+
+    /**
+     * Reads and compiles a scene file.
+     */
+    public static Scene read(Path file) throws IOException {
+        return parse(Files.readString(file, StandardCharsets.UTF_8), file.toString());
+    }
+
+    /**
+     * Compiles the scene described by text.
+     *
+     * @param source name of the text in error messages
+     * @throws IOException if the text is not a valid scene, with the faulty line
+     */
+    public static Scene parse(String text, String source) throws IOException {
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        Map<String, Material> materials = new HashMap<>();
+        Camera camera = new Camera();
+
+        String[] lines = text.split("\r?\n");
+        for (int l = 0; l < lines.length; l++) {
+            String line = lines[l];
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.strip();
+            if (line.isEmpty()) continue;
+
+            Tokens t = new Tokens(line.split("\\s+"), source, l + 1);
+            switch (t.word()) {
+                case "camera" -> {
+                    Vec3f position = t.vec(), forward = t.vec();
+                    camera = t.hasMore() ? new Camera(position, forward, t.vec(), t.vec()) : new Camera(position, forward);
+                }
+                case "material" -> {
+                    String name = t.word();
+                    Vec3f a = t.vec(), d = t.vec(), s = t.vec();
+                    float shininess = t.number(), reflectivity = t.number();
+                    Material m = t.hasMore()
+                            ? new Material(a, d, s, shininess, reflectivity, t.number(), t.number(), t.vec())
+                            : new Material(a, d, s, shininess, reflectivity);
+                    materials.put(name, m);
+                }
+                case "sphere" -> objects.add(new Sphere(t.vec(), t.number(), t.material(materials)));
+                case "plane" -> objects.add(new Plane(t.vec(), t.vec(), t.material(materials)));
+                case "triangle" -> objects.add(new Triangle(t.vec(), t.vec(), t.vec(), t.material(materials)));
+                case "light" -> lights.add(new Light(t.vec(), t.vec(), t.vec(), t.vec()));
+                default -> throw t.error("unknown element '" + t.tokens[0] + "'");
+            }
+            t.end();
+        }
+        return new Scene(objects, lights, camera);
+    }
+
+    /**
+     * Describes a scene made of spheres, planes and triangles in this format, materials
+     * being named m0, m1... Numbers are written exactly.
+     *
+     * @throws IllegalArgumentException if the scene holds another kind of object
+     */
+    public static String format(Scene scene) {
+        StringWriter out = new StringWriter();
+        PrintWriter w = new PrintWriter(out);
+        Camera c = scene.camera;
+        w.println("camera " + vec(c.position) + "  " + vec(c.forward) + "  " + vec(c.right) + "  " + vec(c.up));
+
+        Map<Material, String> names = new IdentityHashMap<>();
+        for (Geometry obj : scene.objects) {
+            Material m = obj.material;
+            if (m != null && !names.containsKey(m)) {
+                String name = "m" + names.size();
+                names.put(m, name);
+                w.println("material " + name + "  " + vec(m.ambient) + "  " + vec(m.diffuse) + "  " + vec(m.specular)
+                        + "  " + num(m.shininess) + " " + num(m.reflectivity)
+                        + "  " + num(m.transparency) + " " + num(m.ior) + "  " + vec(m.absorption));
+            }
+        }
+        for (Geometry obj : scene.objects) {
+            String m = names.get(obj.material);
+            if (obj instanceof Sphere s) {
+                w.println("sphere " + vec(s.center) + "  " + num(s.radius) + "  " + m);
+            } else if (obj instanceof Plane p) {
+                w.println("plane " + vec(p.P0) + "  " + vec(p.N) + "  " + m);
+            } else if (obj instanceof Triangle t) {
+                w.println("triangle " + vec(t.a) + "  " + vec(t.b) + "  " + vec(t.c) + "  " + m);
+            } else {
+                throw new IllegalArgumentException("no text form for " + obj.getClass().getSimpleName());
+            }
+        }
+        for (Light l : scene.lights) {
+            w.println("light " + vec(l.position) + "  " + vec(l.ambient) + "  " + vec(l.diffuse) + "  " + vec(l.specular));
+        }
+        w.flush();
+        return out.toString();
+    }
+
+    private static String vec(Vec3f v) {
+        return num(v.x) + " " + num(v.y) + " " + num(v.z);
+    }
+
+    private static String num(float f) {
+        // Float.toString relu par Float.parseFloat redonne exactement le meme float
+        String s = Float.toString(f);
+        return s.endsWith(".0") ? s.substring(0, s.length() - 2) : s.toLowerCase(Locale.ROOT);
+    }
+
+    /** les mots d'une ligne, consommes dans l'ordre */
+    private static final class Tokens {
+        final String[] tokens;
+        final String source;
+        final int line;
+        int next;
+
+        Tokens(String[] tokens, String source, int line) {
+            this.tokens = tokens;
+            this.source = source;
+            this.line = line;
+        }
+
+        boolean hasMore() {
+            return next < tokens.length;
+        }
+
+        String word() throws IOException {
+            if (!hasMore()) {
+                throw error("missing value");
+            }
+            return tokens[next++];
+        }
+
+        float number() throws IOException {
+            String word = word();
+            try {
+                return Float.parseFloat(word);
+            } catch (NumberFormatException e) {
+                throw error("'" + word + "' is not a number");
+            }
+        }
+
+        Vec3f vec() throws IOException {
+            return new Vec3f(number(), number(), number());
+        }
+
+        Material material(Map<String, Material> materials) throws IOException {
+            String name = word();
+            Material m = materials.get(name);
+            if (m == null) {
+                throw error("unknown material '" + name + "'");
+            }
+            return m;
+        }
+
+        void end() throws IOException {
+            if (hasMore()) {
+                throw error("unexpected '" + tokens[next] + "'");
+            }
+        }
+
+        IOException error(String message) {
+            return new IOException(source + ":" + line + ": " + message);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Renders the frames of an animation, one image file per frame.
+ * <p>
+ * The scene is built once : static objects go into a BVH kept for the whole sequence,
+ * moving ones into a second BVH which is only refitted after the animation moved them
+ * ({@link Scene#refit()}). The tile costs measured on a frame order the tiles of the next
+ * one, so there is no cost pre-pass after the first frame. Encoding is pipelined : frame N
+ * is written by a background thread while frame N + 1 is updated and traced, with two
+ * image buffers in turn.
+ * <p>
+ * <pre>java fr.florian.SequenceRenderer [frames [pattern]]</pre>
+ * renders the built-in forest animation, by default 48 frames into "anim_000.tga"...
+ */
+public class SequenceRenderer {
+
+    /**
+     * Animated scene.
+     */
+    public interface Animation {
+        /**
+         * Builds the scene, once for the whole sequence.
+         *
+         * @param objects receives the objects that never move
+         * @param moving receives the objects moved by {@link #update}
+         * @param lights receives the light sources
+         */
+        void build(List<Geometry> objects, List<Geometry> moving, List<Light> lights);
+
+        /**
+         * Moves the moving objects to their place at this frame (for instance with
+         * {@link Instance#setTransform}). Only their transforms may change, not their shape.
+         *
+         * @param frame frame number, from 0
+         * @param time time of the frame in seconds
+         * @return camera of the frame
+         */
+        Camera update(int frame, float time);
+    }
+
+    private final int w, h, blockSize;
+    private final float fps;
+    private final TileScheduler scheduler;
+
+    private long buildNanos, updateNanos, traceNanos, waitNanos;
+
+    public SequenceRenderer(int w, int h, int blockSize, float fps) {
+        this(w, h, blockSize, fps, TileScheduler.shared());
+    }
+
+    public SequenceRenderer(int w, int h, int blockSize, float fps, TileScheduler scheduler) {
+        this.w = w;
+        this.h = h;
+        this.blockSize = blockSize;
+        this.fps = fps;
+        this.scheduler = scheduler;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+        String pattern = args.length > 1 ? args[1] : "anim_%03d.tga";
+        SequenceRenderer renderer = new SequenceRenderer(1024, 768, 32, 24);
+        renderer.render(new ForestAnimation(), frames, pattern);
+        System.out.println(renderer.report(frames));
+    }
+
+    /**
+     * Renders frames 0 to frames - 1 and returns once the last file is written.
+     *
+     * @param pattern name of the output images, formatted with the frame number
+     *                ("anim_%03d.png"), PNG if it ends with ".png", TGA otherwise
+     */
+    public void render(Animation animation, int frames, String pattern) throws IOException {
+        buildNanos = updateNanos = traceNanos = waitNanos = 0;
+        List<Geometry> objects = new ArrayList<>();
+        List<Geometry> moving = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        Scene base = null;
+
+        TileCosts costs = new TileCosts(w, h, blockSize);
+        byte[][] buffers = {new byte[3 * w * h], new byte[3 * w * h]};
+        List<Future<?>> writes = new ArrayList<>(List.of(done(), done()));
+        ExecutorService encoder = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "frame-encoder");
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            for (int frame = 0; frame < frames; frame++) {
+                byte[] buffer = buffers[frame & 1];
+                // le tampon est libre une fois l'image d'il y a deux trames ecrite
+                long t0 = System.nanoTime();
+                await(writes.get(frame & 1));
+                long t1 = System.nanoTime();
+                if (base == null) {
+                    // hierarchies construites sur la premiere image, puis seulement reajustees
+                    animation.build(objects, moving, lights);
+                    Camera camera = animation.update(frame, 0);
+                    base = new Scene(objects, moving, lights, camera != null ? camera : new Camera());
+                    buildNanos = System.nanoTime() - t1;
+                    t1 += buildNanos;
+                } else {
+                    Camera camera = animation.update(frame, frame / fps);
+                    base.refit();
+                    base = base.withCamera(camera != null ? camera : base.camera);
+                }
+                Scene scene = base;
+                long t2 = System.nanoTime();
+                if (!costs.isKnown()) {
+                    scheduler.estimate(costs, (x, y) -> JavaTga.tracePixel(TraceContext.get(), scene, w, h, x, y));
+                }
+                scheduler.render(costs, (x0, y0, x1, y1) -> JavaTga.renderBlock(scene, buffer, w, h, x0, y0, x1, y1));
+                long t3 = System.nanoTime();
+                waitNanos += t1 - t0;
+                updateNanos += t2 - t1;
+                traceNanos += t3 - t2;
+
+                String filename = String.format(Locale.ROOT, pattern, frame);
+                writes.set(frame & 1, encoder.submit(() -> {
+                    ImageWriter.forFile(filename).write(filename, buffer, w, h);
+                    return null;
+                }));
+            }
+            long t0 = System.nanoTime();
+            await(writes.get(0));
+            await(writes.get(1));
+            waitNanos += System.nanoTime() - t0;
+        } finally {
+            encoder.shutdownNow();
+        }
+    }
+
+    private static Future<?> done() {
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static void await(Future<?> write) throws IOException {
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while writing a frame", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            }
+            throw new IOException("cannot write a frame", e.getCause());
+        }
+    }
+
+    /**
+     * @return time spent building the scene and its static BVH, in nanoseconds
+     */
+    public long getBuildNanos() {
+        return buildNanos;
+    }
+
+    /**
+     * @return time spent moving the objects and refitting, over the whole sequence
+     */
+    public long getUpdateNanos() {
+        return updateNanos;
+    }
+
+    /**
+     * @return time spent tracing, over the whole sequence
+     */
+    public long getTraceNanos() {
+        return traceNanos;
+    }
+
+    /**
+     * @return time spent waiting for the encoder, over the whole sequence
+     */
+    public long getWaitNanos() {
+        return waitNanos;
+    }
+
+    /**
+     * @return one line summing up the last sequence of frames images
+     */
+    public String report(int frames) {
+        return String.format(Locale.ROOT, "%d frames : build %.1f ms, per frame update %.3f ms, trace %.1f ms,"
+                        + " encoder wait %.3f ms",
+                frames, buildNanos / 1e6, updateNanos / 1e6 / frames, traceNanos / 1e6 / frames,
+                waitNanos / 1e6 / frames);
+    }
+
+    /**
+     * The forest of the built-in scenes, crossed by the camera, with a few trees turning
+     * and spheres bouncing among them.
+     */
+    static final class ForestAnimation implements Animation {
+        private final List<Instance> trees = new ArrayList<>();
+        private final List<Matrix4f> places = new ArrayList<>();
+        private final List<Instance> balls = new ArrayList<>();
+
+        @Override
+        public void build(List<Geometry> objects, List<Geometry> moving, List<Light> lights) {
+            JavaTga.drawForestScene(objects, lights);
+            // quelques arbres des premiers rangs se mettent a tourner
+            Random random = new Random(7);
+            for (int k = 0; k < 16; k++) {
+                Instance tree = (Instance) objects.remove(objects.size() - 1 - random.nextInt(2000));
+                trees.add(tree);
+                places.add(tree.getTransform());
+                moving.add(tree);
+            }
+            Sphere unit = new Sphere(new Vec3f(0, 0, 0), 1, JavaTga.glass);
+            for (int k = 0; k < 8; k++) {
+                Instance ball = new Instance(unit, Matrix4f.scaling(0.4f));
+                balls.add(ball);
+                moving.add(ball);
+            }
+        }
+
+        @Override
+        public Camera update(int frame, float time) {
+            for (int k = 0; k < trees.size(); k++) {
+                trees.get(k).setTransform(places.get(k).mul(Matrix4f.rotationY(time * (1 + k % 3))));
+            }
+            for (int k = 0; k < balls.size(); k++) {
+                float x = -3f + 0.8f * k, z = -6f - 1.5f * k - 2f * time;
+                float y = 0.4f + 1.5f * Math.abs((float) Math.sin(2 * time + k));
+                balls.get(k).setTransform(Matrix4f.translation(x, y, z).mul(Matrix4f.scaling(0.4f)));
+            }
+            return new Camera(new Vec3f(0, 2, -2f * time), new Vec3f(0, -0.2f, -1));
+        }
+    }
+}
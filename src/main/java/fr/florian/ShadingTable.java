@@ -0,0 +1,176 @@
+package fr.florian;
+
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The lights of a scene flattened for the Phong loop of {@link JavaTga#findColor}, with one
+ * {@link Kernel} per material combining their colors once for the whole frame.
+ * <p>
+ * The table copies the lights when it is built, and each kernel the material it was
+ * compiled for, on the first hit of that material. Lights or materials edited in place
+ * afterwards are not seen by the renders of the scene : {@link #matches} tells whether the
+ * table still holds their current values, and {@link Scene#withLights} builds a new table
+ * when it does not.
+ */
+final class ShadingTable {
+    /** floats per light in a kernel : ambient, diffuse and specular products, red green blue each */
+    static final int COEFFICIENTS = 9;
+    /** integer shininess up to this one is evaluated by squaring instead of Math.pow */
+    static final int MAX_SQUARED_EXPONENT = 1 << 12;
+
+    /** positions of the lights, x y z each */
+    final float[] positions;
+    /** ambient, diffuse and specular colors of the lights, COEFFICIENTS floats each */
+    private final float[] colors;
+    /** kernels of the materials hit so far, replaced by a larger copy under the lock only */
+    private volatile Map<Material, Kernel> kernels = new IdentityHashMap<>();
+
+    /**
+     * Phong coefficients of one material under every light of the scene.
+     */
+    static final class Kernel {
+        /** COEFFICIENTS floats per light */
+        final float[] coefficients;
+        /** false for a light whose diffuse and specular products are black : it only adds its ambient */
+        final boolean[] shaded;
+        final boolean[] diffuse, specular;
+        /** shininess, raised by squaring when it is an integer below MAX_SQUARED_EXPONENT, else -1 */
+        final int exponent;
+        final float shininess;
+        /** ambient, diffuse and specular colors of the material the kernel was compiled for */
+        private final float[] source;
+
+        Kernel(Material mat, float[] colors) {
+            int n = colors.length / COEFFICIENTS;
+            source = colors(mat);
+            coefficients = new float[COEFFICIENTS * n];
+            shaded = new boolean[n];
+            diffuse = new boolean[n];
+            specular = new boolean[n];
+            for (int i = 0; i < n; i++) {
+                int o = COEFFICIENTS * i;
+                product(source, colors, o, 0);
+                diffuse[i] = product(source, colors, o + 3, 3);
+                specular[i] = product(source, colors, o + 6, 6);
+                shaded[i] = diffuse[i] || specular[i];
+            }
+            shininess = mat.shininess;
+            exponent = shininess >= 0 && shininess <= MAX_SQUARED_EXPONENT && shininess == (int) shininess
+                    ? (int) shininess : -1;
+        }
+
+        /**
+         * @param o index of the product in coefficients and of the light color in colors
+         * @param m index of the material color in source
+         * @return true if the product is not black
+         */
+        private boolean product(float[] source, float[] colors, int o, int m) {
+            coefficients[o] = source[m] * colors[o];
+            coefficients[o + 1] = source[m + 1] * colors[o + 1];
+            coefficients[o + 2] = source[m + 2] * colors[o + 2];
+            return coefficients[o] != 0 || coefficients[o + 1] != 0 || coefficients[o + 2] != 0;
+        }
+
+        /**
+         * @return true if mat still has the colors and shininess this kernel was compiled with
+         */
+        boolean matches(Material mat) {
+            return mat.shininess == shininess && same(source, 0, mat.ambient)
+                    && same(source, 3, mat.diffuse) && same(source, 6, mat.specular);
+        }
+
+        /**
+         * @param x cosine of the specular angle, &gt;= 0
+         * @return x raised to the shininess, as (float) Math.pow(x, shininess)
+         */
+        float power(float x) {
+            if (exponent < 0) {
+                return (float) Math.pow(x, shininess);
+            }
+            // puissance entiere par carres successifs, en double comme Math.pow
+            double result = 1, square = x;
+            for (int e = exponent; e != 0; e >>= 1) {
+                if ((e & 1) != 0) result *= square;
+                square *= square;
+            }
+            return (float) result;
+        }
+    }
+
+    ShadingTable(List<Light> lights) {
+        this.positions = new float[3 * lights.size()];
+        this.colors = new float[COEFFICIENTS * lights.size()];
+        for (int i = 0; i < lights.size(); i++) {
+            Light L = lights.get(i);
+            put(positions, 3 * i, L.position);
+            put(colors, COEFFICIENTS * i, L.ambient);
+            put(colors, COEFFICIENTS * i + 3, L.diffuse);
+            put(colors, COEFFICIENTS * i + 6, L.specular);
+        }
+    }
+
+    /**
+     * @return true if lights have the values this table was built with, and every material
+     *         compiled so far those of its kernel : the table shades as a new one would
+     */
+    boolean matches(List<Light> lights) {
+        if (COEFFICIENTS * lights.size() != colors.length) {
+            return false;
+        }
+        for (int i = 0; i < lights.size(); i++) {
+            Light L = lights.get(i);
+            int o = COEFFICIENTS * i;
+            if (!same(positions, 3 * i, L.position) || !same(colors, o, L.ambient)
+                    || !same(colors, o + 3, L.diffuse) || !same(colors, o + 6, L.specular)) {
+                return false;
+            }
+        }
+        for (Map.Entry<Material, Kernel> e : kernels.entrySet()) {
+            if (!e.getValue().matches(e.getKey())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the kernel of mat under the lights of this table
+     */
+    Kernel kernel(Material mat) {
+        // un noyau lu sans verrou est complet : tous ses champs sont final
+        Kernel kernel = kernels.get(mat);
+        return kernel != null ? kernel : compile(mat);
+    }
+
+    private synchronized Kernel compile(Material mat) {
+        Kernel kernel = kernels.get(mat);
+        if (kernel == null) {
+            // copie publiee entiere : les lecteurs sans verrou ne voient jamais une table en cours d'ecriture
+            Map<Material, Kernel> k = new IdentityHashMap<>(kernels);
+            kernel = new Kernel(mat, colors);
+            k.put(mat, kernel);
+            kernels = k;
+        }
+        return kernel;
+    }
+
+    private static float[] colors(Material mat) {
+        float[] c = new float[COEFFICIENTS];
+        put(c, 0, mat.ambient);
+        put(c, 3, mat.diffuse);
+        put(c, 6, mat.specular);
+        return c;
+    }
+
+    private static void put(float[] a, int o, Vec3f v) {
+        a[o] = v.x;
+        a[o + 1] = v.y;
+        a[o + 2] = v.z;
+    }
+
+    private static boolean same(float[] a, int o, Vec3f v) {
+        return a[o] == v.x && a[o + 1] == v.y && a[o + 2] == v.z;
+    }
+}
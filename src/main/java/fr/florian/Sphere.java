@@ -1,5 +1,7 @@
 package fr.florian;
 
+import static fr.florian.JavaTga.EPS;
+
 /**
  * Sphere primitive.
  */
@@ -15,11 +17,11 @@ public class Sphere extends Geometry {
 
     @Override
     public float getIntersection(Vec3f P, Vec3f v) {
-        Vec3f oc = new Vec3f(P.x - center.x, P.y - center.y, P.z - center.z);
+        float ocx = P.x - center.x, ocy = P.y - center.y, ocz = P.z - center.z;
 
-        float a = Vec3f.dotProduct(v, v);
-        float b = 2 * Vec3f.dotProduct(v, oc);;
-        float c = (Vec3f.dotProduct(oc, oc) - (radius * radius));
+        float a = v.x * v.x + v.y * v.y + v.z * v.z;
+        float b = 2 * (v.x * ocx + v.y * ocy + v.z * ocz);
+        float c = ((ocx * ocx + ocy * ocy + ocz * ocz) - (radius * radius));
         float discriminant = b * b - 4 * a * c;
 
         if (discriminant < 0) {
@@ -45,4 +47,28 @@ public class Sphere extends Geometry {
         Vec3f normal = Vec3f.subtract(intersection, center);
         return Vec3f.normalize(normal);
     }
+
+    @Override
+    public boolean occludes(int prim, Vec3f P, Vec3f v, float maxT) {
+        float ocx = P.x - center.x, ocy = P.y - center.y, ocz = P.z - center.z;
+        float b = 2 * (v.x * ocx + v.y * ocy + v.z * ocz);
+        float c = ((ocx * ocx + ocy * ocy + ocz * ocz) - (radius * radius));
+        if (c > 0 && b > 0) {
+            return false; // origine dehors et sphere derriere
+        }
+        float t = getIntersection(P, v);
+        return t > EPS && t < maxT;
+    }
+
+    @Override
+    protected void computeNormal(Hit hit) {
+        hit.normal.set(hit.point).subLocal(center).normalizeLocal();
+    }
+
+    @Override
+    public AABB getBoundingBox() {
+        return new AABB(
+                new Vec3f(center.x - radius, center.y - radius, center.z - radius),
+                new Vec3f(center.x + radius, center.y + radius, center.z + radius));
+    }
 }
@@ -0,0 +1,29 @@
+package fr.florian;
+
+import java.util.Arrays;
+
+/**
+ * Spheres stored for the {@link IntersectionKernels}, one array per coordinate.
+ */
+public class SpherePack {
+    float[] cx = new float[16], cy = new float[16], cz = new float[16];
+    float[] radius = new float[16];
+    private int size;
+
+    public void add(Sphere sphere) {
+        if (size == cx.length) {
+            int n = 2 * size;
+            cx = Arrays.copyOf(cx, n); cy = Arrays.copyOf(cy, n); cz = Arrays.copyOf(cz, n);
+            radius = Arrays.copyOf(radius, n);
+        }
+        cx[size] = sphere.center.x;
+        cy[size] = sphere.center.y;
+        cz[size] = sphere.center.z;
+        radius[size] = sphere.radius;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,37 @@
+package fr.florian;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Uncompressed 24 bits TGA (image type 2), the header and the pixels written in one call.
+ */
+public class TgaWriter implements ImageWriter {
+
+    @Override
+    public void write(String filename, byte[] buffer, int width, int height) throws IOException {
+        ImageFiles.write(filename, header(2, width, height), ByteBuffer.wrap(buffer, 0, 3 * width * height));
+    }
+
+    /**
+     * @param type image type : 2 uncompressed, 10 run-length encoded
+     * @return the 18 bytes header of a 24 bits TGA image, ready to be written
+     */
+    static ByteBuffer header(int type, int width, int height) {
+        ByteBuffer header = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 0); // Comment size, no comment
+        header.put((byte) 0); // Colormap type: No colormap
+        header.put((byte) type); // Image type
+        header.putShort((short) 0); // Origin
+        header.putShort((short) 0); // Length
+        header.put((byte) 0); // Depth
+        header.putShort((short) 0); // X origin
+        header.putShort((short) 0); // Y origin
+        header.putShort((short) width); // Width of the image
+        header.putShort((short) height); // Height of the image
+        header.put((byte) 24); // Pixel size in bits (24bpp)
+        header.put((byte) 0); // Descriptor
+        return header.flip();
+    }
+}
@@ -0,0 +1,498 @@
+package fr.florian;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+/**
+ * On-disk cache of the tiles of one image, to render again a scene after a small edit
+ * (an object moved, a material changed) without tracing the tiles that cannot see it.
+ * <p>
+ * While a tile is traced, {@link TileRecorder} notes the objects its rays hit, shadow
+ * occluders included, whether the lights shaded it, and bundles bounding the rays. Objects
+ * and lights are identified across runs by a digest of their content, so the cache file
+ * keeps, for each tile, its pixels and the digests it depends on. On the next render a
+ * tile is traced again if :
+ * <ul>
+ * <li>an object it depends on changed or was removed ;</li>
+ * <li>it is lit and the lights changed ;</li>
+ * <li>the box of a new object (or of an object that moved) is reached by one of its bundles.</li>
+ * </ul>
+ * An object whose shape is unchanged but whose material changed only invalidates the
+ * tiles that saw it. The whole cache is dropped when the image size, the camera or the
+ * termination settings change. Only single-sample renders are cached, and the result is
+ * the image a full render would give.
+ * <p>
+ * <pre>java fr.florian.TileCache</pre>
+ * renders the simple scene, then edits of it, and prints the share of tiles traced again.
+ */
+public class TileCache {
+    static final int MAGIC = 0x52544354; // "RTCT"
+    static final int VERSION = 1;
+
+    private final Path file;
+    private int tileCount, retraced;
+
+    /**
+     * @param file cache file, created on the first render
+     */
+    public TileCache(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Tile saved by a previous render.
+     */
+    private static final class Tile {
+        /** digests of the objects hit */
+        long[] objects;
+        boolean lit;
+        /** {@link TileRecorder} bundles */
+        float[] bundles;
+        byte[] pixels;
+    }
+
+    /**
+     * Previous render : digests of the shapes of its objects and of its lights, and its tiles.
+     */
+    private static final class Previous {
+        final Set<Long> shapes = new HashSet<>();
+        long[] lights;
+        Tile[] tiles;
+    }
+
+    public static void main(String[] args) throws IOException {
+        final int w = 1024, h = 768, blockSize = 32;
+        Path path = Files.createTempFile("tiles", ".cache");
+        Files.delete(path);
+        TileCache cache = new TileCache(path);
+        List<BiConsumer<List<Geometry>, List<Light>>> edits = List.of(
+                JavaTga::drawSimpleScene,
+                (scene, lights) -> {
+                    // la sphere rouge avance
+                    JavaTga.drawSimpleScene(scene, lights);
+                    scene.set(1, new Sphere(new Vec3f(-0.8f, 0.5f, -5.5f), 0.5f, JavaTga.red));
+                },
+                (scene, lights) -> {
+                    // la sphere bleue devient orange
+                    JavaTga.drawSimpleScene(scene, lights);
+                    scene.set(1, new Sphere(new Vec3f(-0.8f, 0.5f, -5.5f), 0.5f, JavaTga.red));
+                    scene.set(2, new Sphere(new Vec3f(0f, 0.5f, -5f), 0.5f, JavaTga.diffuseOrange));
+                });
+        try {
+            for (BiConsumer<List<Geometry>, List<Light>> edit : edits) {
+                List<Geometry> objects = new ArrayList<>();
+                List<Light> lights = new ArrayList<>();
+                edit.accept(objects, lights);
+                Scene scene = new Scene(objects, lights);
+                long start = System.nanoTime();
+                byte[] cached = cache.render(scene, w, h, blockSize);
+                long middle = System.nanoTime();
+                byte[] full = JavaTga.render(scene, w, h, blockSize);
+                long end = System.nanoTime();
+                System.out.printf("%s, %.0f ms against %.0f ms for a full render%s%n", cache,
+                        (middle - start) / 1e6, (end - middle) / 1e6,
+                        Arrays.equals(cached, full) ? "" : ", IMAGES DIFFER");
+            }
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    /**
+     * Renders the scene, tracing only the tiles the cache cannot reuse, then saves the
+     * cache. A missing, unreadable or foreign cache file is ignored and rewritten.
+     *
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public byte[] render(Scene scene, int w, int h, int blockSize) throws IOException {
+        return render(scene, w, h, blockSize, null);
+    }
+
+    /**
+     * Same as {@link #render(Scene, int, int, int)}, adding the rays traced for the tiles
+     * not reused to stats.
+     *
+     * @param stats statistics of the image, may be null
+     */
+    public byte[] render(Scene scene, int w, int h, int blockSize, RenderStats stats) throws IOException {
+        TileCosts costs = new TileCosts(w, h, blockSize);
+        int n = costs.getTileCount();
+        long[] objects = new long[scene.objects.size()];
+        long[] shapes = new long[scene.objects.size()];
+        digest(scene.objects, objects, shapes);
+        long[] lights = new long[scene.lights.size()];
+        for (int i = 0; i < lights.length; i++) {
+            lights[i] = digest(scene.lights.get(i));
+        }
+        long settings = settings(scene, w, h, blockSize);
+
+        Previous previous = load(settings, n);
+        boolean[] valid = new boolean[n];
+        if (previous != null) {
+            validate(scene, objects, shapes, lights, previous, valid);
+        }
+
+        byte[] buffer = new byte[3 * w * h];
+        Tile[] tiles = new Tile[n];
+        int lightCount = lights.length;
+        TileScheduler.shared().render(costs, stats, (x0, y0, x1, y1) -> {
+            // tuiles entieres : les couts ne sont pas connus, rien n'est decoupe
+            int i = (y0 / blockSize) * costs.tilesX + x0 / blockSize;
+            if (valid[i]) {
+                tiles[i] = previous.tiles[i];
+                copy(tiles[i].pixels, 0, buffer, w, x0, y0, x1, y1, true);
+                return;
+            }
+            TraceContext ctx = TraceContext.get();
+            TileRecorder recorder = new TileRecorder();
+            recorder.reset(lightCount);
+            ctx.recorder = recorder;
+            try {
+                JavaTga.renderBlock(scene, buffer, w, h, x0, y0, x1, y1);
+            } finally {
+                ctx.recorder = null;
+            }
+            Tile tile = new Tile();
+            tile.objects = recorder.objects.stream().mapToLong(k -> objects[k]).toArray();
+            tile.lit = recorder.lit;
+            tile.bundles = recorder.usedBundles();
+            tile.pixels = new byte[3 * (x1 - x0) * (y1 - y0)];
+            copy(tile.pixels, 0, buffer, w, x0, y0, x1, y1, false);
+            tiles[i] = tile;
+        });
+
+        tileCount = n;
+        retraced = 0;
+        for (boolean v : valid) {
+            if (!v) retraced++;
+        }
+        save(settings, shapes, lights, tiles);
+        return buffer;
+    }
+
+    /**
+     * Marks as valid the saved tiles that nothing in scene can change.
+     */
+    private static void validate(Scene scene, long[] objects, long[] shapes, long[] lights,
+                                 Previous previous, boolean[] valid) {
+        Set<Long> present = new HashSet<>();
+        for (long k : objects) {
+            present.add(k);
+        }
+        // objets dont la forme n'existait pas : leur boite peut couper des rayons
+        List<AABB> added = new ArrayList<>();
+        boolean unboundedAdded = false;
+        for (int i = 0; i < shapes.length; i++) {
+            if (!previous.shapes.contains(shapes[i])) {
+                AABB box = scene.objects.get(i).getBoundingBox();
+                if (box == null) {
+                    unboundedAdded = true;
+                } else {
+                    // marge pour les erreurs d'arrondi des rayons enregistres
+                    float pad = JavaTga.EPS * (1 + box.max.sub(box.min).length());
+                    added.add(new AABB(new Vec3f(box.min.x - pad, box.min.y - pad, box.min.z - pad),
+                            new Vec3f(box.max.x + pad, box.max.y + pad, box.max.z + pad)));
+                }
+            }
+        }
+        boolean lightsChanged = !Arrays.equals(lights, previous.lights);
+
+        tiles:
+        for (int i = 0; i < valid.length; i++) {
+            Tile tile = previous.tiles[i];
+            if (unboundedAdded || (tile.lit && lightsChanged)) {
+                continue;
+            }
+            for (long k : tile.objects) {
+                if (!present.contains(k)) {
+                    continue tiles;
+                }
+            }
+            for (AABB box : added) {
+                for (int b = 0; b < tile.bundles.length; b += TileRecorder.BUNDLE) {
+                    if (TileRecorder.reaches(tile.bundles, b, box)) {
+                        continue tiles;
+                    }
+                }
+            }
+            valid[i] = true;
+        }
+    }
+
+    /**
+     * Copies the rows of [x0, x1) x [y0, y1) between a tile and the image.
+     */
+    private static void copy(byte[] tile, int offset, byte[] image, int w, int x0, int y0, int x1, int y1,
+                             boolean toImage) {
+        int row = 3 * (x1 - x0);
+        for (int y = y0; y < y1; y++, offset += row) {
+            if (toImage) {
+                System.arraycopy(tile, offset, image, 3 * (y * w + x0), row);
+            } else {
+                System.arraycopy(image, 3 * (y * w + x0), tile, offset, row);
+            }
+        }
+    }
+
+    /**
+     * @return the tiles of the previous render with the same settings, or null
+     */
+    private Previous load(long settings, int n) throws IOException {
+        try (InputStream file = Files.newInputStream(this.file)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != settings || in.readInt() != n) {
+                return null;
+            }
+            Previous p = new Previous();
+            for (int i = in.readInt(); i > 0; i--) {
+                p.shapes.add(in.readLong());
+            }
+            p.lights = new long[in.readInt()];
+            for (int i = 0; i < p.lights.length; i++) {
+                p.lights[i] = in.readLong();
+            }
+            p.tiles = new Tile[n];
+            for (int t = 0; t < n; t++) {
+                Tile tile = new Tile();
+                tile.objects = new long[in.readInt()];
+                for (int i = 0; i < tile.objects.length; i++) {
+                    tile.objects[i] = in.readLong();
+                }
+                tile.lit = in.readBoolean();
+                tile.bundles = new float[in.readInt()];
+                for (int i = 0; i < tile.bundles.length; i++) {
+                    tile.bundles[i] = in.readFloat();
+                }
+                tile.pixels = new byte[in.readInt()];
+                in.readFully(tile.pixels);
+                p.tiles[t] = tile;
+            }
+            return p;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // cache illisible : tout sera retrace puis reecrit
+            System.err.println("ignoring tile cache " + file + " : " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cache next to its final place, then moves it there.
+     */
+    private void save(long settings, long[] shapes, long[] lights, Tile[] tiles) throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        Path tmp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream file = Files.newOutputStream(tmp)) {
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(settings);
+                out.writeInt(tiles.length);
+                out.writeInt(shapes.length);
+                for (long k : shapes) {
+                    out.writeLong(k);
+                }
+                out.writeInt(lights.length);
+                for (long k : lights) {
+                    out.writeLong(k);
+                }
+                for (Tile tile : tiles) {
+                    out.writeInt(tile.objects.length);
+                    for (long k : tile.objects) {
+                        out.writeLong(k);
+                    }
+                    out.writeBoolean(tile.lit);
+                    out.writeInt(tile.bundles.length);
+                    for (float f : tile.bundles) {
+                        out.writeFloat(f);
+                    }
+                    out.writeInt(tile.pixels.length);
+                    out.write(tile.pixels);
+                }
+                out.flush();
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * @return number of tiles of the last render
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @return number of tiles the last render had to trace
+     */
+    public int getRetracedTiles() {
+        return retraced;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d / %d tiles traced (%.1f %%)", retraced, tileCount,
+                tileCount == 0 ? 0 : 100.0 * retraced / tileCount);
+    }
+
+    // empreintes du contenu, stables d'une execution a l'autre
+
+    /**
+     * Digest of everything besides the scene that changes the pixels.
+     */
+    private static long settings(Scene scene, int w, int h, int blockSize) {
+        Camera c = scene.camera;
+        Digest d = new Digest();
+        d.ints(w, h, blockSize, JavaTga.MAX_DEPTH);
+        d.vec(c.position).vec(c.forward).vec(c.right).vec(c.up);
+        d.floats(scene.minWeight, scene.russianRoulette ? 1 : 0, JavaTga.EPS);
+        return d.get();
+    }
+
+    /**
+     * Fills the digest of each object, and the digest of its shape alone.
+     */
+    private static void digest(List<Geometry> objects, long[] keys, long[] shapes) {
+        Map<Geometry, long[]> known = new IdentityHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            long[] k = digest(objects.get(i), known);
+            shapes[i] = k[0];
+            keys[i] = k[1];
+        }
+    }
+
+    /**
+     * @return digests of the shape of obj, and of its shape and materials ; a kind of
+     * geometry unknown here gets fresh digests, as if it changed every time
+     */
+    private static long[] digest(Geometry obj, Map<Geometry, long[]> known) {
+        long[] k = known.get(obj);
+        if (k != null) {
+            return k;
+        }
+        Digest shape = new Digest();
+        Digest materials = new Digest();
+        material(materials, obj.material);
+        if (obj instanceof Sphere s) {
+            shape.ints(1).vec(s.center).floats(s.radius);
+        } else if (obj instanceof Plane p) {
+            shape.ints(2).vec(p.P0).vec(p.N);
+        } else if (obj instanceof Triangle t) {
+            shape.ints(3).vec(t.a).vec(t.b).vec(t.c);
+        } else if (obj instanceof TriangleMesh mesh) {
+            shape.ints(4).floats(mesh.vertices(), 3 * mesh.getVertexCount())
+                    .ints(mesh.indices(), 3 * mesh.getFaceCount());
+            materials.ints(mesh.faceMaterials(), mesh.getFaceCount());
+            for (Material m : mesh.materials()) {
+                material(materials, m);
+            }
+        } else if (obj instanceof Instance instance) {
+            long[] inner = digest(instance.shape, known);
+            shape.ints(5).longs(inner[0]);
+            Matrix4f m = instance.getTransform();
+            for (int i = 0; i < 16; i++) {
+                shape.floats(m.get(i / 4, i % 4));
+            }
+            materials.longs(inner[1]);
+        } else {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            shape.longs(random.nextLong());
+            materials.longs(random.nextLong());
+        }
+        long s = shape.get();
+        k = new long[]{s, materials.longs(s).get()};
+        known.put(obj, k);
+        return k;
+    }
+
+    private static long digest(Light l) {
+        return new Digest().vec(l.position).vec(l.ambient).vec(l.diffuse).vec(l.specular).get();
+    }
+
+    private static void material(Digest d, Material m) {
+        if (m == null) {
+            d.ints(0);
+            return;
+        }
+        d.ints(1).vec(m.ambient).vec(m.diffuse).vec(m.specular).vec(m.absorption)
+                .floats(m.shininess, m.reflectivity, m.transparency, m.ior);
+    }
+
+    /**
+     * SHA-256 of a sequence of numbers, truncated to 64 bits.
+     */
+    private static final class Digest {
+        private final MessageDigest sha;
+
+        Digest() {
+            try {
+                sha = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        Digest ints(int... values) {
+            return ints(values, values.length);
+        }
+
+        Digest ints(int[] values, int n) {
+            ByteBuffer b = ByteBuffer.allocate(4 * n);
+            b.asIntBuffer().put(values, 0, n);
+            sha.update(b);
+            return this;
+        }
+
+        Digest longs(long... values) {
+            ByteBuffer b = ByteBuffer.allocate(8 * values.length);
+            b.asLongBuffer().put(values);
+            sha.update(b);
+            return this;
+        }
+
+        Digest floats(float... values) {
+            return floats(values, values.length);
+        }
+
+        Digest floats(float[] values, int n) {
+            ByteBuffer b = ByteBuffer.allocate(4 * n);
+            b.asFloatBuffer().put(values, 0, n);
+            sha.update(b);
+            return this;
+        }
+
+        Digest vec(Vec3f v) {
+            return floats(v.x, v.y, v.z);
+        }
+
+        long get() {
+            return ByteBuffer.wrap(sha.digest()).getLong();
+        }
+    }
+}
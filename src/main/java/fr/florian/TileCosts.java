@@ -0,0 +1,91 @@
+package fr.florian;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Render cost of each tile of an image, in nanoseconds.
+ * <p>
+ * Filled by a quick low-resolution pre-pass ({@link TileScheduler#estimate}) or by the
+ * previous frame : the scheduler records the measured time of every tile it renders, so
+ * reusing the same instance for the next frame of the same size gives it exact costs.
+ */
+public class TileCosts {
+    public final int width, height, blockSize;
+    public final int tilesX, tilesY;
+    private final AtomicLongArray nanos;
+    private volatile boolean known;
+
+    public TileCosts(int width, int height, int blockSize) {
+        this.width = width;
+        this.height = height;
+        this.blockSize = blockSize;
+        this.tilesX = (width + blockSize - 1) / blockSize;
+        this.tilesY = (height + blockSize - 1) / blockSize;
+        // le scheduler trie les tuiles sur un code de Morton de 32 bits
+        if (tilesX > 1 << 16 || tilesY > 1 << 16) {
+            throw new IllegalArgumentException(tilesX + " x " + tilesY + " tiles, at most 65536 per side");
+        }
+        this.nanos = new AtomicLongArray(tilesX * tilesY);
+    }
+
+    public int getTileCount() {
+        return tilesX * tilesY;
+    }
+
+    /**
+     * @return true once the costs were estimated or measured
+     */
+    public boolean isKnown() {
+        return known;
+    }
+
+    /**
+     * @return cost of tile number i (tileY * tilesX + tileX)
+     */
+    public long get(int i) {
+        return nanos.get(i);
+    }
+
+    /**
+     * @return true if these costs describe images of this size and tiling
+     */
+    public boolean matches(int width, int height, int blockSize) {
+        return this.width == width && this.height == height && this.blockSize == blockSize;
+    }
+
+    void add(int i, long ns) {
+        nanos.addAndGet(i, ns);
+    }
+
+    void clear() {
+        for (int i = 0; i < nanos.length(); i++) {
+            nanos.set(i, 0);
+        }
+    }
+
+    void setKnown() {
+        known = true;
+    }
+
+    /**
+     * @return mean cost of a tile
+     */
+    public double mean() {
+        long sum = 0;
+        for (int i = 0; i < nanos.length(); i++) {
+            sum += nanos.get(i);
+        }
+        return (double) sum / nanos.length();
+    }
+
+    /**
+     * @return cost of the most expensive tile
+     */
+    public long max() {
+        long max = 0;
+        for (int i = 0; i < nanos.length(); i++) {
+            max = Math.max(max, nanos.get(i));
+        }
+        return max;
+    }
+}
@@ -0,0 +1,22 @@
+package fr.florian;
+
+/**
+ * Receives the tiles of a progressive render as soon as they are finished.
+ * <p>
+ * {@link #tileCompleted} is called by the worker thread that rendered the tile, possibly
+ * concurrently for different tiles, so implementations must be thread-safe. The tile
+ * carries its own copy of the pixels : there is nothing to lock.
+ */
+public interface TileListener {
+
+    void tileCompleted(TileUpdate tile);
+
+    /**
+     * Called on the rendering thread once every tile of a pass has been delivered.
+     *
+     * @param pass index of the pass, 0 being the coarsest
+     * @param last true for the final, full resolution pass
+     */
+    default void passCompleted(int pass, boolean last) {
+    }
+}
@@ -0,0 +1,118 @@
+package fr.florian;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * What the rays of one tile depended on, recorded by {@link JavaTga#findColor} for the
+ * {@link TileCache} : the objects they hit (shadow occluders included), whether a light
+ * shaded some point, and for each kind of ray a bundle made of the box of its origins,
+ * the box of its directions and its longest length.
+ * <p>
+ * An object added to the scene can only change the tile if its box is reached by one of
+ * these bundles ({@link #reaches}). There is one bundle per recursion depth for the rays
+ * traced, plus one per light for the shadow rays that were not blocked.
+ */
+final class TileRecorder {
+    /** floats per bundle : lowest origin and direction, highest origin and direction, longest length */
+    static final int BUNDLE = 13;
+
+    /** positions in the scene list of the objects hit */
+    final BitSet objects = new BitSet();
+    /** true if some point of the tile was shaded by the lights */
+    boolean lit;
+    /** bundles of depth d start at d * stride * BUNDLE : rays traced, then shadow rays of each light */
+    float[] bundles = new float[0];
+    int stride;
+
+    /**
+     * Forgets the previous tile.
+     */
+    void reset(int lights) {
+        objects.clear();
+        lit = false;
+        stride = 1 + lights;
+        int n = (JavaTga.MAX_DEPTH + 1) * stride;
+        if (bundles.length < n * BUNDLE) {
+            bundles = new float[n * BUNDLE];
+        }
+        for (int b = 0; b < n * BUNDLE; b += BUNDLE) {
+            Arrays.fill(bundles, b, b + 6, Float.POSITIVE_INFINITY);
+            Arrays.fill(bundles, b + 6, b + 12, Float.NEGATIVE_INFINITY);
+            bundles[b + 12] = 0;
+        }
+    }
+
+    /**
+     * @return bundle of the rays traced at depth, shadow rays of light i being at slot + 1 + i
+     */
+    int slot(int depth) {
+        return depth * stride;
+    }
+
+    /**
+     * Adds the ray P + t v, 0 &lt;= t &lt;= maxT, to a bundle.
+     *
+     * @param maxT distance to the hit, infinite for a ray that escaped
+     */
+    void ray(int slot, Vec3f P, Vec3f v, float maxT) {
+        float[] b = bundles;
+        int i = slot * BUNDLE;
+        b[i] = Math.min(b[i], P.x);
+        b[i + 1] = Math.min(b[i + 1], P.y);
+        b[i + 2] = Math.min(b[i + 2], P.z);
+        b[i + 3] = Math.min(b[i + 3], v.x);
+        b[i + 4] = Math.min(b[i + 4], v.y);
+        b[i + 5] = Math.min(b[i + 5], v.z);
+        b[i + 6] = Math.max(b[i + 6], P.x);
+        b[i + 7] = Math.max(b[i + 7], P.y);
+        b[i + 8] = Math.max(b[i + 8], P.z);
+        b[i + 9] = Math.max(b[i + 9], v.x);
+        b[i + 10] = Math.max(b[i + 10], v.y);
+        b[i + 11] = Math.max(b[i + 11], v.z);
+        b[i + 12] = Math.max(b[i + 12], maxT);
+    }
+
+    /**
+     * @return the bundles that received rays, BUNDLE floats each
+     */
+    float[] usedBundles() {
+        int n = (JavaTga.MAX_DEPTH + 1) * stride, used = 0;
+        float[] out = new float[n * BUNDLE];
+        for (int b = 0; b < n * BUNDLE; b += BUNDLE) {
+            if (bundles[b] != Float.POSITIVE_INFINITY) {
+                System.arraycopy(bundles, b, out, used, BUNDLE);
+                used += BUNDLE;
+            }
+        }
+        return Arrays.copyOf(out, used);
+    }
+
+    /**
+     * Conservative test : false only if no ray o + t d with o, d in the boxes of the bundle
+     * and 0 &lt;= t &lt;= its longest length can enter box. Each axis bounds t on its own.
+     *
+     * @param b bundles, the one tested starting at offset
+     */
+    static boolean reaches(float[] b, int offset, AABB box) {
+        float tLo = 0, tHi = b[offset + 12];
+        for (int a = 0; a < 3; a++) {
+            float oMin = b[offset + a], dMin = b[offset + 3 + a];
+            float oMax = b[offset + 6 + a], dMax = b[offset + 9 + a];
+            float bMin = a == 0 ? box.min.x : a == 1 ? box.min.y : box.min.z;
+            float bMax = a == 0 ? box.max.x : a == 1 ? box.max.y : box.max.z;
+            // il faut t dMin <= hi et t dMax >= lo
+            float lo = bMin - oMax, hi = bMax - oMin;
+            if (dMin > 0) tHi = Math.min(tHi, hi / dMin);
+            else if (dMin < 0) tLo = Math.max(tLo, hi / dMin);
+            else if (hi < 0) return false;
+            if (dMax > 0) tLo = Math.max(tLo, lo / dMax);
+            else if (dMax < 0) tHi = Math.min(tHi, lo / dMax);
+            else if (lo > 0) return false;
+            if (tLo > tHi) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
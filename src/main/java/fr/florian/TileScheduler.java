@@ -0,0 +1,310 @@
+package fr.florian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Work-stealing tile scheduler on a long-lived {@link ForkJoinPool}.
+ * <p>
+ * Tiles are visited along a Morton (Z-order) curve for locality. When their costs are known
+ * (pre-pass or previous frame, see {@link TileCosts}) the expensive ones are started first,
+ * and a tile expected to cost much more than the mean is split in four stealable quarters,
+ * so that no core sits idle at the end of a frame behind a single glass or mirror tile.
+ */
+public class TileScheduler {
+
+    /**
+     * Renders the pixels [x0, x1) x [y0, y1). Called concurrently on disjoint rectangles.
+     */
+    @FunctionalInterface
+    public interface TileRenderer {
+        void renderTile(int x0, int y0, int x1, int y1);
+    }
+
+    /**
+     * Traces one pixel without storing it, used by the cost pre-pass.
+     */
+    @FunctionalInterface
+    public interface PixelProbe {
+        void trace(int x, int y);
+    }
+
+    /** a tile is split in four when it is expected to cost this many times the mean */
+    private static final double SPLIT_FACTOR = 4;
+    /** tiles smaller than this are never split */
+    private static final int MIN_SPLIT_SIZE = 8;
+    /** the pre-pass traces PROBES x PROBES pixels per tile */
+    private static final int PROBES = 3;
+    /** expected costs are ordered up to this many microseconds, about 35 minutes per tile */
+    private static final long MAX_COST = Integer.MAX_VALUE;
+
+    private static TileScheduler shared;
+
+    private final ForkJoinPool pool;
+
+    public TileScheduler(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return a scheduler on a pool of one thread per core, created on first use and kept
+     */
+    public static synchronized TileScheduler shared() {
+        if (shared == null) {
+            shared = new TileScheduler(new ForkJoinPool(Runtime.getRuntime().availableProcessors()));
+        }
+        return shared;
+    }
+
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Low-resolution pre-pass : traces a small grid of pixels in every tile, in parallel,
+     * and stores the extrapolated cost of each tile into costs.
+     */
+    public void estimate(TileCosts costs, PixelProbe probe) {
+        costs.clear();
+        int n = costs.getTileCount();
+        AtomicInteger next = new AtomicInteger();
+        runWorkers(() -> {
+            int i;
+            while ((i = next.getAndIncrement()) < n) {
+                int x0 = (i % costs.tilesX) * costs.blockSize, y0 = (i / costs.tilesX) * costs.blockSize;
+                int x1 = Math.min(x0 + costs.blockSize, costs.width), y1 = Math.min(y0 + costs.blockSize, costs.height);
+                int samples = 0;
+                long start = System.nanoTime();
+                for (int sy = 0; sy < PROBES; sy++) {
+                    for (int sx = 0; sx < PROBES; sx++) {
+                        int x = x0 + (2 * sx + 1) * (x1 - x0) / (2 * PROBES);
+                        int y = y0 + (2 * sy + 1) * (y1 - y0) / (2 * PROBES);
+                        probe.trace(x, y);
+                        samples++;
+                    }
+                }
+                long elapsed = System.nanoTime() - start;
+                costs.add(i, elapsed * (x1 - x0) * (y1 - y0) / samples);
+            }
+        });
+        costs.setKnown();
+    }
+
+    /**
+     * Renders every tile and returns once they are all done. Exceptions thrown by the
+     * renderer are propagated to the caller. The measured cost of each tile replaces the
+     * content of costs.
+     *
+     * @param costs tiling of the image, with the expected costs if they are known
+     * @param renderer called once per tile or tile fragment
+     */
+    public void render(TileCosts costs, TileRenderer renderer) {
+        render(costs, null, renderer);
+    }
+
+    /**
+     * Same as {@link #render(TileCosts, TileRenderer)}, adding the rays traced by the
+     * renderer and the time of every tile to stats.
+     *
+     * @param stats statistics of the image, may be null
+     */
+    public void render(TileCosts costs, RenderStats stats, TileRenderer renderer) {
+        RenderStats.FrameEvent frame = RenderStats.ENABLED ? RenderStats.beginFrame() : null;
+        long start = System.nanoTime();
+        int n = costs.getTileCount();
+        boolean known = costs.isKnown();
+        double mean = known ? costs.mean() : 0;
+
+        // ordre de Morton, puis les tuiles les plus couteuses en premier : une cle par tuile
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = key(i % costs.tilesX, i / costs.tilesX, known ? costs.get(i) : 0);
+        }
+        Arrays.sort(order);
+
+        costs.clear();
+        AtomicInteger next = new AtomicInteger();
+        runWorkers(() -> {
+            int k;
+            while ((k = next.getAndIncrement()) < n) {
+                long key = order[k];
+                int tx = compact(key), ty = compact(key >>> 1);
+                int x0 = tx * costs.blockSize, y0 = ty * costs.blockSize;
+                new TileTask(costs, stats, renderer, ty * costs.tilesX + tx, x0, y0,
+                        Math.min(x0 + costs.blockSize, costs.width), Math.min(y0 + costs.blockSize, costs.height),
+                        cost(key), mean).invoke();
+            }
+        });
+        costs.setKnown();
+        if (RenderStats.ENABLED) {
+            RenderStats.endFrame(frame, stats, costs, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Renders whole tiles, without splitting them, in the given order until deadline
+     * (a {@link System#nanoTime()} value) : no tile is started past it, the tiles already
+     * started are finished. The time of each tile rendered is added to its cost. Exceptions
+     * thrown by the renderer are propagated to the caller.
+     *
+     * @param order tile numbers (tileY * tilesX + tileX), first to render first
+     * @return number of tiles rendered
+     */
+    public int render(TileCosts costs, int[] order, long deadline, TileRenderer renderer) {
+        return render(costs, order, deadline, null, renderer);
+    }
+
+    /**
+     * Same as {@link #render(TileCosts, int[], long, TileRenderer)}, adding the rays traced
+     * by the renderer and the time of the tiles to stats.
+     *
+     * @param stats statistics of the image, may be null
+     */
+    public int render(TileCosts costs, int[] order, long deadline, RenderStats stats, TileRenderer renderer) {
+        RenderStats.FrameEvent frame = RenderStats.ENABLED ? RenderStats.beginFrame() : null;
+        long start = System.nanoTime();
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger done = new AtomicInteger();
+        runWorkers(() -> {
+            int k;
+            while (System.nanoTime() - deadline < 0 && (k = next.getAndIncrement()) < order.length) {
+                int i = order[k];
+                int x0 = (i % costs.tilesX) * costs.blockSize, y0 = (i / costs.tilesX) * costs.blockSize;
+                int x1 = Math.min(x0 + costs.blockSize, costs.width), y1 = Math.min(y0 + costs.blockSize, costs.height);
+                RenderStats.TileEvent event = RenderStats.ENABLED ? RenderStats.beginTile() : null;
+                long tileStart = System.nanoTime();
+                renderer.renderTile(x0, y0, x1, y1);
+                costs.add(i, System.nanoTime() - tileStart);
+                if (RenderStats.ENABLED) {
+                    RenderStats.endTile(event, stats, x0, y0, x1, y1);
+                }
+                done.incrementAndGet();
+            }
+        });
+        if (RenderStats.ENABLED) {
+            RenderStats.endFrame(frame, stats, costs, System.nanoTime() - start);
+        }
+        return done.get();
+    }
+
+    /**
+     * Runs one copy of body per pool thread and waits for all of them.
+     */
+    private void runWorkers(Runnable body) {
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                List<RecursiveAction> workers = new ArrayList<>();
+                for (int i = 0; i < pool.getParallelism(); i++) {
+                    workers.add(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            body.run();
+                        }
+                    });
+                }
+                invokeAll(workers);
+            }
+        });
+    }
+
+    /**
+     * @return Morton code of (x, y) : bits of x and y interleaved
+     */
+    static long morton(int x, int y) {
+        return spread(x) | (spread(y) << 1);
+    }
+
+    /**
+     * Sort key of a tile : its expected cost in microseconds, complemented so that the
+     * expensive tiles come first, over the Morton code of its coordinates, each below 2^16.
+     */
+    static long key(int x, int y, long cost) {
+        long micros = Math.min(cost / 1000, MAX_COST);
+        return (MAX_COST - micros) << 32 | morton(x, y);
+    }
+
+    /**
+     * @return expected cost in nanoseconds of a tile key, to the microsecond
+     */
+    static long cost(long key) {
+        return (MAX_COST - (key >>> 32)) * 1000;
+    }
+
+    /**
+     * @return the even bits of the low 32 bits of m, packed : x of a Morton code, or y of m &gt;&gt;&gt; 1
+     */
+    static int compact(long m) {
+        long x = m & 0x55555555L;
+        x = (x | (x >>> 1)) & 0x33333333L;
+        x = (x | (x >>> 2)) & 0x0f0f0f0fL;
+        x = (x | (x >>> 4)) & 0x00ff00ffL;
+        x = (x | (x >>> 8)) & 0x0000ffffL;
+        return (int) x;
+    }
+
+    private static long spread(int v) {
+        long x = v & 0xffffffffL;
+        x = (x | (x << 16)) & 0x0000ffff0000ffffL;
+        x = (x | (x << 8)) & 0x00ff00ff00ff00ffL;
+        x = (x | (x << 4)) & 0x0f0f0f0f0f0f0f0fL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    /**
+     * One tile, or a fragment of it, split again while it is expected to be expensive.
+     */
+    @SuppressWarnings("serial")
+    private static final class TileTask extends RecursiveAction {
+        private final TileCosts costs;
+        private final RenderStats stats;
+        private final TileRenderer renderer;
+        private final int tile;
+        private final int x0, y0, x1, y1;
+        private final long expected;
+        private final double mean;
+
+        TileTask(TileCosts costs, RenderStats stats, TileRenderer renderer, int tile,
+                 int x0, int y0, int x1, int y1, long expected, double mean) {
+            this.costs = costs;
+            this.stats = stats;
+            this.renderer = renderer;
+            this.tile = tile;
+            this.x0 = x0;
+            this.y0 = y0;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.expected = expected;
+            this.mean = mean;
+        }
+
+        @Override
+        protected void compute() {
+            if (mean > 0 && expected > SPLIT_FACTOR * mean
+                    && x1 - x0 >= 2 * MIN_SPLIT_SIZE && y1 - y0 >= 2 * MIN_SPLIT_SIZE) {
+                // les quarts sont voles par les threads inoccupes
+                int mx = (x0 + x1) / 2, my = (y0 + y1) / 2;
+                long quarter = expected / 4;
+                invokeAll(
+                        new TileTask(costs, stats, renderer, tile, x0, y0, mx, my, quarter, mean),
+                        new TileTask(costs, stats, renderer, tile, mx, y0, x1, my, quarter, mean),
+                        new TileTask(costs, stats, renderer, tile, x0, my, mx, y1, quarter, mean),
+                        new TileTask(costs, stats, renderer, tile, mx, my, x1, y1, quarter, mean));
+                return;
+            }
+            RenderStats.TileEvent event = RenderStats.ENABLED ? RenderStats.beginTile() : null;
+            long start = System.nanoTime();
+            renderer.renderTile(x0, y0, x1, y1);
+            costs.add(tile, System.nanoTime() - start);
+            if (RenderStats.ENABLED) {
+                RenderStats.endTile(event, stats, x0, y0, x1, y1);
+            }
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package fr.florian;
+
+/**
+ * A finished tile of a progressive render, with a private copy of its pixels.
+ */
+public final class TileUpdate {
+    /** index of the pass, 0 being the coarsest */
+    public final int pass;
+    /** true for the final, full resolution pass */
+    public final boolean last;
+    /** size of the blocks filled by one sample during this pass (1 for full resolution) */
+    public final int step;
+    /** pixels [x0, x1) x [y0, y1) of the image */
+    public final int x0, y0, x1, y1;
+    /** the tile, row by row, 3 bytes per pixel ordered Blue, Green, Red */
+    public final byte[] pixels;
+
+    TileUpdate(int pass, boolean last, int step, int x0, int y0, int x1, int y1, byte[] pixels) {
+        this.pass = pass;
+        this.last = last;
+        this.step = step;
+        this.x0 = x0;
+        this.y0 = y0;
+        this.x1 = x1;
+        this.y1 = y1;
+        this.pixels = pixels;
+    }
+
+    public int getWidth() {
+        return x1 - x0;
+    }
+
+    public int getHeight() {
+        return y1 - y0;
+    }
+
+    /**
+     * Copies the tile into an image buffer of the given width.
+     */
+    public void copyTo(byte[] buffer, int width) {
+        int rowBytes = 3 * getWidth();
+        for (int row = y0; row < y1; row++) {
+            System.arraycopy(pixels, (row - y0) * rowBytes, buffer, 3 * (row * width + x0), rowBytes);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package fr.florian;
+
+/**
+ * Per-thread scratch state of the ray tracer : one frame of temporaries per recursion
+ * depth, a BVH traversal stack and the last occluder of each light, so that tracing a
+ * ray does not allocate.
+ * <p>
+ * A context must only be used by the thread that obtained it through {@link #get()}.
+ */
+public class TraceContext {
+
+    /**
+     * Temporaries of one level of {@link JavaTga#findColor}.
+     */
+    static final class Frame {
+        final Hit hit = new Hit();
+        final Vec3f origin = new Vec3f(0, 0, 0);
+        final Vec3f dir = new Vec3f(0, 0, 0);
+        final Vec3f toL = new Vec3f(0, 0, 0);
+        final Vec3f tmp = new Vec3f(0, 0, 0);
+        final Vec3f color = new Vec3f(0, 0, 0);
+        final Vec3f reflColor = new Vec3f(0, 0, 0);
+        final Vec3f refrColor = new Vec3f(0, 0, 0);
+    }
+
+    private static final ThreadLocal<TraceContext> CONTEXT = ThreadLocal.withInitial(TraceContext::new);
+
+    private final Frame[] frames = new Frame[JavaTga.MAX_DEPTH + 1];
+    private int[] stack = new int[64];
+    private final OccluderCache occluders = new OccluderCache();
+    /** object-space rays of the {@link Instance}s being traversed, one per nesting level */
+    private Instance.Local[] locals = new Instance.Local[0];
+    private int instanceDepth;
+    /** xorshift state of {@link #random()} */
+    private int seed = (int) Thread.currentThread().threadId() * 0x9E3779B9 | 1;
+    /** values of {@link #shadows} */
+    static final byte UNKNOWN = 0, LIT = 1, SHADOWED = 2;
+
+    /**
+     * Shadow test of each light at the camera hit being shaded, only while a {@link GBuffer}
+     * relights it : known results are reused, unknown ones are traced and filled in.
+     */
+    byte[] shadows;
+    /** dependencies of the current tile, only while a {@link TileCache} renders it */
+    TileRecorder recorder;
+    /** rays and intersection tests of the current tile, see {@link RenderStats} */
+    final long[] counters = new long[RenderStats.COUNTERS];
+
+    /** scratch vectors for the caller of findColor (camera ray, pixel color) */
+    public final Vec3f rayOrigin = new Vec3f(0, 0, 0);
+    public final Vec3f rayDir = new Vec3f(0, 0, 0);
+    public final Vec3f color = new Vec3f(0, 0, 0);
+
+    private TraceContext() {
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = new Frame();
+        }
+    }
+
+    /**
+     * @return the context of the current thread
+     */
+    public static TraceContext get() {
+        return CONTEXT.get();
+    }
+
+    Frame frame(int depth) {
+        return frames[depth];
+    }
+
+    /**
+     * @return the last occluders found by this thread for the lights of scene
+     */
+    OccluderCache occluders(Scene scene) {
+        return occluders.bind(scene);
+    }
+
+    /**
+     * Enters one more level of {@link Instance}, to be left with {@link #leaveInstance()}.
+     *
+     * @return the scratch state of that level
+     */
+    Instance.Local enterInstance() {
+        if (instanceDepth == locals.length) {
+            locals = java.util.Arrays.copyOf(locals, instanceDepth + 1);
+            locals[instanceDepth] = new Instance.Local();
+        }
+        return locals[instanceDepth++];
+    }
+
+    void leaveInstance() {
+        instanceDepth--;
+    }
+
+    /**
+     * @return a pseudo-random number in [0, 1), for Russian roulette
+     */
+    float random() {
+        seed ^= seed << 13;
+        seed ^= seed >>> 17;
+        seed ^= seed << 5;
+        return (seed >>> 8) * 0x1p-24f;
+    }
+
+    /**
+     * @return a traversal stack of at least size entries
+     */
+    int[] stack(int size) {
+        if (stack.length < size) {
+            stack = new int[size];
+        }
+        return stack;
+    }
+}
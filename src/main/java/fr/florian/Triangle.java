@@ -6,41 +6,48 @@ import static fr.florian.JavaTga.EPS;
  * Triangle primitive.
  */
 public class Triangle extends Geometry {
-    private final Vec3f a, b, c;
+    final Vec3f a, b, c;
+    final Vec3f edge1, edge2;
     private final Vec3f normal;
 
     public Triangle(Vec3f a, Vec3f b, Vec3f c, Material material) {
         this.a = a;
         this.b = b;
         this.c = c;
-        this.normal = Vec3f.normalize(c.sub(a).cross(b.sub(a)));
+        this.edge1 = b.sub(a);
+        this.edge2 = c.sub(a);
+        this.normal = Vec3f.normalize(edge2.cross(edge1));
         this.material = material;
     }
 
     @Override
     public float getIntersection(Vec3f P, Vec3f v) {
-        Vec3f edge1 = b.sub(a);
-        Vec3f edge2 = c.sub(a);
-        Vec3f h = v.cross(edge2);
-        float det = edge1.dot(h);
+        // h = v x edge2
+        float hx = v.y * edge2.z - v.z * edge2.y;
+        float hy = v.z * edge2.x - v.x * edge2.z;
+        float hz = v.x * edge2.y - v.y * edge2.x;
+        float det = edge1.x * hx + edge1.y * hy + edge1.z * hz;
         if (Math.abs(det) < EPS){
             return -1;
         }
 
         float invDet = 1.0f / det;
-        Vec3f s = P.sub(a);
-        float u = s.dot(h) * invDet;
+        float sx = P.x - a.x, sy = P.y - a.y, sz = P.z - a.z;
+        float u = (sx * hx + sy * hy + sz * hz) * invDet;
         if (u < 0f || u > 1f){
             return -1;
         }
 
-        Vec3f q = s.cross(edge1);
-        float vParam = v.dot(q) * invDet;
+        // q = s x edge1
+        float qx = sy * edge1.z - sz * edge1.y;
+        float qy = sz * edge1.x - sx * edge1.z;
+        float qz = sx * edge1.y - sy * edge1.x;
+        float vParam = (v.x * qx + v.y * qy + v.z * qz) * invDet;
         if (vParam < 0f || u + vParam > 1f){
             return -1;
         }
 
-        float t = edge2.dot(q) * invDet;
+        float t = (edge2.x * qx + edge2.y * qy + edge2.z * qz) * invDet;
         return (t > EPS) ? t : -1;
     }
 
@@ -48,4 +55,14 @@ public class Triangle extends Geometry {
     public Vec3f getNormal(Vec3f intersection) {
         return normal;
     }
+
+    @Override
+    protected void computeNormal(Hit hit) {
+        hit.normal.set(normal);
+    }
+
+    @Override
+    public AABB getBoundingBox() {
+        return AABB.empty().grow(a).grow(b).grow(c);
+    }
 }
@@ -0,0 +1,326 @@
+package fr.florian;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static fr.florian.JavaTga.EPS;
+
+/**
+ * Triangle mesh stored as packed arrays (structure of arrays).
+ * <p>
+ * Vertices are shared through an index buffer, the two edges and the unit normal of each
+ * face are precomputed, and each face references its material by index. Every face is a
+ * primitive of its own for the scene BVH.
+ */
+public class TriangleMesh extends Geometry {
+    /** vertices and faces held by the arrays of a new mesh, and at least after each growth */
+    private static final int CAPACITY = 64;
+
+    /** x,y,z per vertex */
+    private float[] vertices = new float[3 * CAPACITY];
+    /** 3 vertex indices per face */
+    private int[] indices = new int[3 * CAPACITY];
+    /** edge1 = b - a then edge2 = c - a, 6 floats per face */
+    private float[] edges = new float[6 * CAPACITY];
+    /** unit normal, 3 floats per face */
+    private float[] normals = new float[3 * CAPACITY];
+    /** material index per face */
+    private int[] faceMaterial = new int[CAPACITY];
+    private final List<Material> materials = new ArrayList<>();
+
+    private int vertexCount;
+    private int faceCount;
+
+    public TriangleMesh() {
+    }
+
+    /**
+     * @param material default material, returned by the legacy {@link Geometry#material} field
+     */
+    public TriangleMesh(Material material) {
+        this.material = material;
+        materials.add(material);
+    }
+
+    /**
+     * Mesh over packed arrays filled by a loader ({@link ObjLoader}), kept as they are.
+     * Edges and normals must then be computed with {@link #computeFaces}.
+     *
+     * @param vertices x,y,z of vertexCount vertices
+     * @param indices 3 vertex indices per face
+     * @param faceMaterial index in materials of the material of each face
+     */
+    TriangleMesh(float[] vertices, int vertexCount, int[] indices, int[] faceMaterial, int faceCount,
+                 List<Material> materials) {
+        this.vertices = vertices;
+        this.vertexCount = vertexCount;
+        this.indices = indices;
+        this.faceMaterial = faceMaterial;
+        this.faceCount = faceCount;
+        this.edges = new float[6 * faceMaterial.length];
+        this.normals = new float[3 * faceMaterial.length];
+        this.materials.addAll(materials);
+        if (!materials.isEmpty()) {
+            this.material = materials.get(0);
+        }
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getFaceCount() {
+        return faceCount;
+    }
+
+    /**
+     * @return index of the new vertex
+     */
+    public int addVertex(float x, float y, float z) {
+        if (3 * vertexCount == vertices.length) {
+            // tableaux du chargeur a la taille exacte, parfois vides : on repart du minimum
+            vertices = Arrays.copyOf(vertices, 3 * Math.max(CAPACITY, 2 * vertexCount));
+        }
+        vertices[3 * vertexCount]     = x;
+        vertices[3 * vertexCount + 1] = y;
+        vertices[3 * vertexCount + 2] = z;
+        return vertexCount++;
+    }
+
+    public int addVertex(Vec3f p) {
+        return addVertex(p.x, p.y, p.z);
+    }
+
+    /**
+     * @return index of the material in this mesh, the material is registered if needed
+     */
+    public int addMaterial(Material mat) {
+        for (int i = 0; i < materials.size(); i++) {
+            if (materials.get(i) == mat) return i;
+        }
+        materials.add(mat);
+        if (material == null) {
+            material = mat;
+        }
+        return materials.size() - 1;
+    }
+
+    /**
+     * Adds the face (a, b, c), oriented like {@link Triangle}.
+     *
+     * @return index of the new face
+     */
+    public int addTriangle(int a, int b, int c, Material mat) {
+        return addFace(a, b, c, addMaterial(mat));
+    }
+
+    /**
+     * Adds a face with its own three vertices.
+     */
+    public int addTriangle(Vec3f a, Vec3f b, Vec3f c, Material mat) {
+        return addTriangle(addVertex(a), addVertex(b), addVertex(c), mat);
+    }
+
+    private int addFace(int a, int b, int c, int materialIndex) {
+        if (faceCount == faceMaterial.length) {
+            int n = Math.max(CAPACITY, 2 * faceCount);
+            indices = Arrays.copyOf(indices, 3 * n);
+            edges = Arrays.copyOf(edges, 6 * n);
+            normals = Arrays.copyOf(normals, 3 * n);
+            faceMaterial = Arrays.copyOf(faceMaterial, n);
+        }
+        int f = faceCount;
+        indices[3 * f]     = a;
+        indices[3 * f + 1] = b;
+        indices[3 * f + 2] = c;
+        faceMaterial[f] = materialIndex;
+
+        computeFace(f);
+        return faceCount++;
+    }
+
+    /**
+     * Computes the edges and normals of faces [from, to). Disjoint ranges may be computed
+     * in parallel.
+     */
+    void computeFaces(int from, int to) {
+        for (int f = from; f < to; f++) {
+            computeFace(f);
+        }
+    }
+
+    private void computeFace(int f) {
+        int a = indices[3 * f], b = indices[3 * f + 1], c = indices[3 * f + 2];
+        float ax = vertices[3 * a], ay = vertices[3 * a + 1], az = vertices[3 * a + 2];
+        float e1x = vertices[3 * b] - ax, e1y = vertices[3 * b + 1] - ay, e1z = vertices[3 * b + 2] - az;
+        float e2x = vertices[3 * c] - ax, e2y = vertices[3 * c + 1] - ay, e2z = vertices[3 * c + 2] - az;
+        edges[6 * f]     = e1x;
+        edges[6 * f + 1] = e1y;
+        edges[6 * f + 2] = e1z;
+        edges[6 * f + 3] = e2x;
+        edges[6 * f + 4] = e2y;
+        edges[6 * f + 5] = e2z;
+
+        // meme calcul que Triangle : normalize(edge2 x edge1)
+        float nx = e2y * e1z - e2z * e1y;
+        float ny = e2z * e1x - e2x * e1z;
+        float nz = e2x * e1y - e2y * e1x;
+        float length = (float) Math.sqrt(nx * nx + ny * ny + nz * nz);
+        if (length != 0) {
+            nx /= length;
+            ny /= length;
+            nz /= length;
+        }
+        normals[3 * f]     = nx;
+        normals[3 * f + 1] = ny;
+        normals[3 * f + 2] = nz;
+    }
+
+    // acces aux tableaux pour la sauvegarde (seuls les premiers sommets et faces sont valides)
+    float[] vertices() {
+        return vertices;
+    }
+
+    int[] indices() {
+        return indices;
+    }
+
+    int[] faceMaterials() {
+        return faceMaterial;
+    }
+
+    List<Material> materials() {
+        return materials;
+    }
+
+    @Override
+    public int getPrimitiveCount() {
+        return faceCount;
+    }
+
+    @Override
+    public AABB getBoundingBox() {
+        if (faceCount == 0) return null;
+        float[] b = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for (int k = 0; k < 3 * faceCount; k++) {
+            int i = 3 * indices[k];
+            for (int a = 0; a < 3; a++) {
+                b[a] = Math.min(b[a], vertices[i + a]);
+                b[a + 3] = Math.max(b[a + 3], vertices[i + a]);
+            }
+        }
+        return new AABB(new Vec3f(b[0], b[1], b[2]), new Vec3f(b[3], b[4], b[5]));
+    }
+
+    @Override
+    public AABB getBoundingBox(int f) {
+        AABB box = AABB.empty();
+        for (int k = 0; k < 3; k++) {
+            int i = 3 * indices[3 * f + k];
+            box.grow(new Vec3f(vertices[i], vertices[i + 1], vertices[i + 2]));
+        }
+        return box;
+    }
+
+    /**
+     * Copies the first vertex and the two edges of face f.
+     */
+    void getFace(int f, Vec3f a, Vec3f edge1, Vec3f edge2) {
+        int i = 3 * indices[3 * f], e = 6 * f;
+        a.set(vertices[i], vertices[i + 1], vertices[i + 2]);
+        edge1.set(edges[e], edges[e + 1], edges[e + 2]);
+        edge2.set(edges[e + 3], edges[e + 4], edges[e + 5]);
+    }
+
+    /**
+     * Möller–Trumbore test against face f, without any allocation.
+     */
+    @Override
+    public float getIntersection(int f, Vec3f P, Vec3f v) {
+        int e = 6 * f;
+        float e1x = edges[e],     e1y = edges[e + 1], e1z = edges[e + 2];
+        float e2x = edges[e + 3], e2y = edges[e + 4], e2z = edges[e + 5];
+
+        // h = v x edge2
+        float hx = v.y * e2z - v.z * e2y;
+        float hy = v.z * e2x - v.x * e2z;
+        float hz = v.x * e2y - v.y * e2x;
+        float det = e1x * hx + e1y * hy + e1z * hz;
+        if (Math.abs(det) < EPS) {
+            return -1;
+        }
+
+        float invDet = 1.0f / det;
+        int a = 3 * indices[3 * f];
+        float sx = P.x - vertices[a], sy = P.y - vertices[a + 1], sz = P.z - vertices[a + 2];
+        float u = (sx * hx + sy * hy + sz * hz) * invDet;
+        if (u < 0f || u > 1f) {
+            return -1;
+        }
+
+        // q = s x edge1
+        float qx = sy * e1z - sz * e1y;
+        float qy = sz * e1x - sx * e1z;
+        float qz = sx * e1y - sy * e1x;
+        float vParam = (v.x * qx + v.y * qy + v.z * qz) * invDet;
+        if (vParam < 0f || u + vParam > 1f) {
+            return -1;
+        }
+
+        float t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+        return (t > EPS) ? t : -1;
+    }
+
+    /**
+     * Whole-mesh test (linear over the faces), the scene BVH uses the per-face version.
+     */
+    @Override
+    public float getIntersection(Vec3f P, Vec3f v) {
+        float tMin = Float.MAX_VALUE;
+        for (int f = 0; f < faceCount; f++) {
+            float t = getIntersection(f, P, v);
+            if (t > 0 && t < tMin) {
+                tMin = t;
+            }
+        }
+        return tMin == Float.MAX_VALUE ? -1 : tMin;
+    }
+
+    @Override
+    public Vec3f getNormal(Vec3f M, int f) {
+        return new Vec3f(normals[3 * f], normals[3 * f + 1], normals[3 * f + 2]);
+    }
+
+    @Override
+    protected void computeNormal(Hit hit) {
+        int f = hit.primitive;
+        hit.normal.set(normals[3 * f], normals[3 * f + 1], normals[3 * f + 2]);
+    }
+
+    /**
+     * Normal of the face whose plane is the closest to M.
+     */
+    @Override
+    public Vec3f getNormal(Vec3f M) {
+        int best = 0;
+        float bestDist = Float.MAX_VALUE;
+        for (int f = 0; f < faceCount; f++) {
+            int a = 3 * indices[3 * f];
+            float d = Math.abs((M.x - vertices[a]) * normals[3 * f]
+                    + (M.y - vertices[a + 1]) * normals[3 * f + 1]
+                    + (M.z - vertices[a + 2]) * normals[3 * f + 2]);
+            if (d < bestDist) {
+                bestDist = d;
+                best = f;
+            }
+        }
+        return getNormal(M, best);
+    }
+
+    @Override
+    public Material getMaterial(int f) {
+        return materials.get(faceMaterial[f]);
+    }
+}
@@ -0,0 +1,56 @@
+package fr.florian;
+
+import java.util.Arrays;
+
+/**
+ * Triangles stored for the {@link IntersectionKernels} : first vertex and both edges, one
+ * array per coordinate (structure of arrays), so that consecutive triangles fill the lanes
+ * of a vector register.
+ */
+public class TrianglePack {
+    float[] ax = new float[16], ay = new float[16], az = new float[16];
+    float[] e1x = new float[16], e1y = new float[16], e1z = new float[16];
+    float[] e2x = new float[16], e2y = new float[16], e2z = new float[16];
+    private int size;
+
+    /**
+     * @return the faces of mesh, in order
+     */
+    public static TrianglePack of(TriangleMesh mesh) {
+        TrianglePack pack = new TrianglePack();
+        Vec3f a = new Vec3f(0, 0, 0), e1 = new Vec3f(0, 0, 0), e2 = new Vec3f(0, 0, 0);
+        for (int f = 0; f < mesh.getFaceCount(); f++) {
+            mesh.getFace(f, a, e1, e2);
+            pack.add(a, e1, e2);
+        }
+        return pack;
+    }
+
+    /**
+     * Appends a triangle.
+     *
+     * @param a first vertex
+     * @param edge1 second vertex minus a
+     * @param edge2 third vertex minus a
+     */
+    public void add(Vec3f a, Vec3f edge1, Vec3f edge2) {
+        if (size == ax.length) {
+            int n = 2 * size;
+            ax = Arrays.copyOf(ax, n); ay = Arrays.copyOf(ay, n); az = Arrays.copyOf(az, n);
+            e1x = Arrays.copyOf(e1x, n); e1y = Arrays.copyOf(e1y, n); e1z = Arrays.copyOf(e1z, n);
+            e2x = Arrays.copyOf(e2x, n); e2y = Arrays.copyOf(e2y, n); e2z = Arrays.copyOf(e2z, n);
+        }
+        ax[size] = a.x; ay[size] = a.y; az[size] = a.z;
+        e1x[size] = edge1.x; e1y[size] = edge1.y; e1z[size] = edge1.z;
+        e2x[size] = edge2.x; e2y[size] = edge2.y; e2z[size] = edge2.z;
+        size++;
+    }
+
+    public void add(Triangle triangle) {
+        add(triangle.a, triangle.edge1, triangle.edge2);
+    }
+
+    public int size() {
+        return size;
+    }
+}
@@ -95,4 +95,81 @@ public class Vec3f {
         return (float)Math.sqrt(dot(this));
     }
 
+    // operations en place : modifient ce vecteur et le retournent, sans allocation
+
+    public Vec3f set(float x, float y, float z) {
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        return this;
+    }
+
+    public Vec3f set(Vec3f v) {
+        return set(v.x, v.y, v.z);
+    }
+
+    public Vec3f addLocal(Vec3f v) {
+        x += v.x;
+        y += v.y;
+        z += v.z;
+        return this;
+    }
+
+    /**
+     * this += v * s
+     */
+    public Vec3f addScaledLocal(Vec3f v, float s) {
+        x += v.x * s;
+        y += v.y * s;
+        z += v.z * s;
+        return this;
+    }
+
+    public Vec3f subLocal(Vec3f v) {
+        x -= v.x;
+        y -= v.y;
+        z -= v.z;
+        return this;
+    }
+
+    public Vec3f scaleLocal(float s) {
+        x *= s;
+        y *= s;
+        z *= s;
+        return this;
+    }
+
+    public Vec3f mulLocal(Vec3f v) {
+        x *= v.x;
+        y *= v.y;
+        z *= v.z;
+        return this;
+    }
+
+    public Vec3f negateLocal() {
+        x = -x;
+        y = -y;
+        z = -z;
+        return this;
+    }
+
+    public Vec3f normalizeLocal() {
+        float length = (float) Math.sqrt(x * x + y * y + z * z);
+        if (length != 0) {
+            return set(x / length, y / length, z / length);
+        }
+        return set(0, 0, 0);
+    }
+
+    /**
+     * this = a x b (a and b may be this)
+     */
+    public Vec3f crossLocal(Vec3f a, Vec3f b) {
+        return set(
+                a.y * b.z - a.z * b.y,
+                a.z * b.x - a.x * b.z,
+                a.x * b.y - a.y * b.x
+        );
+    }
+
 }
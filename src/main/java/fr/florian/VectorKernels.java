@@ -0,0 +1,159 @@
+package fr.florian;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import static fr.florian.JavaTga.EPS;
+
+/**
+ * {@link IntersectionKernels} on the Vector API : one lane per primitive, or per ray of a
+ * packet, in the widest vectors of the CPU (8 floats with AVX2, 16 with AVX-512). The last,
+ * partial vector of a range is masked. Lane operations are the scalar ones in the same order
+ * (no fused multiply-add), so triangle distances are bit-identical to {@link Triangle}.
+ */
+final class VectorKernels extends IntersectionKernels {
+    private static final VectorSpecies<Float> S = FloatVector.SPECIES_PREFERRED;
+    private static final FloatVector ONE = FloatVector.broadcast(S, 1.0f);
+
+    /**
+     * @return true if the vectors of this CPU hold at least 4 floats
+     */
+    static boolean isAvailable() {
+        return S.length() >= 4;
+    }
+
+    @Override
+    public void intersect(TrianglePack p, int from, int to, Vec3f P, Vec3f v, float[] t) {
+        // le calcul est ecrit dans la boucle : une methode aussi grosse ne serait pas inlinee
+        // et chaque vecteur deviendrait un objet
+        FloatVector px = FloatVector.broadcast(S, P.x), py = FloatVector.broadcast(S, P.y), pz = FloatVector.broadcast(S, P.z);
+        FloatVector vx = FloatVector.broadcast(S, v.x), vy = FloatVector.broadcast(S, v.y), vz = FloatVector.broadcast(S, v.z);
+        for (int i = from; i < to; i += S.length()) {
+            VectorMask<Float> m = S.indexInRange(i, to);
+            FloatVector e1x = FloatVector.fromArray(S, p.e1x, i, m), e1y = FloatVector.fromArray(S, p.e1y, i, m), e1z = FloatVector.fromArray(S, p.e1z, i, m);
+            FloatVector e2x = FloatVector.fromArray(S, p.e2x, i, m), e2y = FloatVector.fromArray(S, p.e2y, i, m), e2z = FloatVector.fromArray(S, p.e2z, i, m);
+
+            // h = v x edge2
+            FloatVector hx = vy.mul(e2z).sub(vz.mul(e2y));
+            FloatVector hy = vz.mul(e2x).sub(vx.mul(e2z));
+            FloatVector hz = vx.mul(e2y).sub(vy.mul(e2x));
+            FloatVector det = e1x.mul(hx).add(e1y.mul(hy)).add(e1z.mul(hz));
+            VectorMask<Float> miss = det.abs().lt(EPS);
+
+            FloatVector invDet = ONE.div(det);
+            FloatVector sx = px.sub(FloatVector.fromArray(S, p.ax, i, m));
+            FloatVector sy = py.sub(FloatVector.fromArray(S, p.ay, i, m));
+            FloatVector sz = pz.sub(FloatVector.fromArray(S, p.az, i, m));
+            FloatVector u = sx.mul(hx).add(sy.mul(hy)).add(sz.mul(hz)).mul(invDet);
+
+            // q = s x edge1
+            FloatVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+            FloatVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+            FloatVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+            FloatVector w = vx.mul(qx).add(vy.mul(qy)).add(vz.mul(qz)).mul(invDet);
+
+            FloatVector d = e2x.mul(qx).add(e2y.mul(qy)).add(e2z.mul(qz)).mul(invDet);
+            miss = miss.or(outside(u, w, d));
+            d.blend(-1f, miss).intoArray(t, i - from, m);
+        }
+    }
+
+    @Override
+    public void intersect(SpherePack p, int from, int to, Vec3f P, Vec3f v, float[] t) {
+        FloatVector px = FloatVector.broadcast(S, P.x), py = FloatVector.broadcast(S, P.y), pz = FloatVector.broadcast(S, P.z);
+        FloatVector vx = FloatVector.broadcast(S, v.x), vy = FloatVector.broadcast(S, v.y), vz = FloatVector.broadcast(S, v.z);
+        FloatVector a = vx.mul(vx).add(vy.mul(vy)).add(vz.mul(vz));
+        for (int i = from; i < to; i += S.length()) {
+            VectorMask<Float> m = S.indexInRange(i, to);
+            FloatVector ocx = px.sub(FloatVector.fromArray(S, p.cx, i, m));
+            FloatVector ocy = py.sub(FloatVector.fromArray(S, p.cy, i, m));
+            FloatVector ocz = pz.sub(FloatVector.fromArray(S, p.cz, i, m));
+            FloatVector radius = FloatVector.fromArray(S, p.radius, i, m);
+            FloatVector b = vx.mul(ocx).add(vy.mul(ocy)).add(vz.mul(ocz)).mul(2f);
+            FloatVector c = ocx.mul(ocx).add(ocy.mul(ocy)).add(ocz.mul(ocz)).sub(radius.mul(radius));
+            root(a, b, c).intoArray(t, i - from, m);
+        }
+    }
+
+    @Override
+    public void intersect(RayPacket r, int from, int to, TrianglePack p, int i, float[] t) {
+        FloatVector ax = FloatVector.broadcast(S, p.ax[i]), ay = FloatVector.broadcast(S, p.ay[i]), az = FloatVector.broadcast(S, p.az[i]);
+        FloatVector e1x = FloatVector.broadcast(S, p.e1x[i]), e1y = FloatVector.broadcast(S, p.e1y[i]), e1z = FloatVector.broadcast(S, p.e1z[i]);
+        FloatVector e2x = FloatVector.broadcast(S, p.e2x[i]), e2y = FloatVector.broadcast(S, p.e2y[i]), e2z = FloatVector.broadcast(S, p.e2z[i]);
+        for (int k = from; k < to; k += S.length()) {
+            VectorMask<Float> m = S.indexInRange(k, to);
+            FloatVector vx = FloatVector.fromArray(S, r.dx, k, m), vy = FloatVector.fromArray(S, r.dy, k, m), vz = FloatVector.fromArray(S, r.dz, k, m);
+
+            FloatVector hx = vy.mul(e2z).sub(vz.mul(e2y));
+            FloatVector hy = vz.mul(e2x).sub(vx.mul(e2z));
+            FloatVector hz = vx.mul(e2y).sub(vy.mul(e2x));
+            FloatVector det = e1x.mul(hx).add(e1y.mul(hy)).add(e1z.mul(hz));
+            VectorMask<Float> miss = det.abs().lt(EPS);
+
+            FloatVector invDet = ONE.div(det);
+            FloatVector sx = FloatVector.fromArray(S, r.ox, k, m).sub(ax);
+            FloatVector sy = FloatVector.fromArray(S, r.oy, k, m).sub(ay);
+            FloatVector sz = FloatVector.fromArray(S, r.oz, k, m).sub(az);
+            FloatVector u = sx.mul(hx).add(sy.mul(hy)).add(sz.mul(hz)).mul(invDet);
+
+            FloatVector qx = sy.mul(e1z).sub(sz.mul(e1y));
+            FloatVector qy = sz.mul(e1x).sub(sx.mul(e1z));
+            FloatVector qz = sx.mul(e1y).sub(sy.mul(e1x));
+            FloatVector w = vx.mul(qx).add(vy.mul(qy)).add(vz.mul(qz)).mul(invDet);
+
+            FloatVector d = e2x.mul(qx).add(e2y.mul(qy)).add(e2z.mul(qz)).mul(invDet);
+            miss = miss.or(outside(u, w, d));
+            d.blend(-1f, miss).intoArray(t, k - from, m);
+        }
+    }
+
+    @Override
+    public void intersect(RayPacket r, int from, int to, SpherePack p, int i, float[] t) {
+        FloatVector cx = FloatVector.broadcast(S, p.cx[i]), cy = FloatVector.broadcast(S, p.cy[i]), cz = FloatVector.broadcast(S, p.cz[i]);
+        FloatVector r2 = FloatVector.broadcast(S, p.radius[i] * p.radius[i]);
+        for (int k = from; k < to; k += S.length()) {
+            VectorMask<Float> m = S.indexInRange(k, to);
+            FloatVector vx = FloatVector.fromArray(S, r.dx, k, m), vy = FloatVector.fromArray(S, r.dy, k, m), vz = FloatVector.fromArray(S, r.dz, k, m);
+            FloatVector ocx = FloatVector.fromArray(S, r.ox, k, m).sub(cx);
+            FloatVector ocy = FloatVector.fromArray(S, r.oy, k, m).sub(cy);
+            FloatVector ocz = FloatVector.fromArray(S, r.oz, k, m).sub(cz);
+            FloatVector a = vx.mul(vx).add(vy.mul(vy)).add(vz.mul(vz));
+            FloatVector b = vx.mul(ocx).add(vy.mul(ocy)).add(vz.mul(ocz)).mul(2f);
+            FloatVector c = ocx.mul(ocx).add(ocy.mul(ocy)).add(ocz.mul(ocz)).sub(r2);
+            root(a, b, c).intoArray(t, k - from, m);
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "vector " + S.vectorBitSize() + " bits";
+    }
+
+    /**
+     * @return the lanes whose barycentric coordinates (u, w) fall outside the triangle, or
+     *         whose distance d is not beyond EPS
+     */
+    private static VectorMask<Float> outside(FloatVector u, FloatVector w, FloatVector d) {
+        return u.lt(0f).or(u.compare(VectorOperators.GT, 1f))
+                .or(w.lt(0f)).or(u.add(w).compare(VectorOperators.GT, 1f))
+                .or(d.compare(VectorOperators.LE, EPS));
+    }
+
+    /**
+     * Nearest root of a t^2 + b t + c in front of the ray on every lane, -1 if there is none.
+     */
+    private static FloatVector root(FloatVector a, FloatVector b, FloatVector c) {
+        FloatVector disc = b.mul(b).sub(a.mul(4f).mul(c));
+        VectorMask<Float> miss = disc.lt(0f);
+
+        FloatVector sq = disc.max(0f).sqrt();
+        FloatVector twoA = a.mul(2f);
+        FloatVector near = b.neg().sub(sq).div(twoA);
+        FloatVector far = b.neg().add(sq).div(twoA);
+        FloatVector t = near.blend(far, near.compare(VectorOperators.LE, 0f));
+        miss = miss.or(t.compare(VectorOperators.LE, 0f));
+        return t.blend(-1f, miss);
+    }
+}
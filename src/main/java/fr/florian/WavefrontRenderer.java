@@ -0,0 +1,381 @@
+package fr.florian;
+
+import java.util.Arrays;
+
+import static fr.florian.JavaTga.EPS;
+import static fr.florian.JavaTga.MAX_DEPTH;
+
+/**
+ * Wavefront ray tracer : an alternative to the recursive {@link JavaTga#findColor} that
+ * processes the rays of a whole tile stage by stage instead of one ray at a time.
+ * <p>
+ * The camera rays of the tile form the first wave. Each wave is intersected with the scene,
+ * then its hits cast their shadow rays, light by light, and are shaded, which spawns the
+ * reflected and refracted rays of the next wave. Rays, hits and shadow tests are kept in
+ * primitive arrays reused from one tile to the next. Secondary rays are sorted by direction
+ * octant, then by origin along a Morton curve, before being intersected, so that consecutive
+ * queries walk the same BVH nodes.
+ * <p>
+ * Once the last wave is shaded, colors are gathered from the deepest rays up to the pixels in
+ * the order findColor adds them : both engines produce the same image, bit for bit, unless
+ * Russian roulette is on.
+ */
+public final class WavefrontRenderer {
+    /** 3 bits of octant, 30 bits of Morton code and 30 bits of index in the wave */
+    private static final int INDEX_BITS = 30;
+    private static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+    private static final ThreadLocal<Wave> WAVE = ThreadLocal.withInitial(Wave::new);
+
+    private WavefrontRenderer() {
+    }
+
+    /**
+     * Renders a compiled scene in parallel on the shared tile scheduler, one wavefront per tile.
+     * Larger tiles than for {@link JavaTga#render} make longer waves (64 is a good start).
+     *
+     * @return image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public static byte[] render(Scene scene, int w, int h, int blockSize) {
+        byte[] buffer = new byte[3 * w * h];
+        TileScheduler scheduler = TileScheduler.shared();
+        TileCosts costs = new TileCosts(w, h, blockSize);
+        scheduler.estimate(costs, (x, y) -> JavaTga.tracePixel(TraceContext.get(), scene, w, h, x, y));
+        scheduler.render(costs, (x0, y0, x1, y1) -> renderTile(scene, buffer, w, h, x0, y0, x1, y1));
+        return buffer;
+    }
+
+    /**
+     * Ray traces the pixels [x0, x1) x [y0, y1) of the image into buffer, as one wavefront.
+     *
+     * @param buffer image buffer of w x h pixels, 3 bytes per pixel ordered Blue, Green, Red
+     */
+    public static void renderTile(Scene scene, byte[] buffer, int w, int h, int x0, int y0, int x1, int y1) {
+        TraceContext ctx = TraceContext.get();
+        Wave wave = WAVE.get();
+        int tw = x1 - x0, n = tw * (y1 - y0);
+
+        // rayons camera : un noeud racine par pixel
+        wave.clear();
+        wave.reserve(n);
+        Vec3f eye = scene.camera.position;
+        for (int i = 0; i < n; i++) {
+            Vec3f d = scene.camera.direction(wave.v, w, h, (float) (x0 + i % tw), (float) (y0 + i / tw));
+            wave.add(-1, 1, 1, eye, d);
+            if (RenderStats.ENABLED) ctx.counters[RenderStats.PRIMARY]++;
+        }
+
+        int levels = 0;
+        for (int start = 0, end = n, depth = 0; start < end; start = end, end = wave.count, depth++) {
+            wave.levelStart[levels++] = start;
+            intersect(ctx, scene, wave, start, end, depth);
+            shade(ctx, scene, wave, start, end, depth);
+        }
+
+        // regroupement : chaque rayon ajoute sa couleur ponderee a celle de son parent,
+        // niveau par niveau du plus profond, reflexion puis refraction comme findColor
+        for (int level = levels - 1; level > 0; level--) {
+            int end = level + 1 < levels ? wave.levelStart[level + 1] : wave.count;
+            for (int i = wave.levelStart[level]; i < end; i++) {
+                int p = wave.parent[i];
+                float s = wave.scale[i];
+                wave.r[p] += wave.r[i] * s;
+                wave.g[p] += wave.g[i] * s;
+                wave.b[p] += wave.b[i] * s;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            int index = 3 * ((y0 + i / tw) * w + x0 + i % tw);
+            buffer[index] = (byte) (Math.min(1, wave.b[i]) * 255);
+            buffer[index + 1] = (byte) (Math.min(1, wave.g[i]) * 255);
+            buffer[index + 2] = (byte) (Math.min(1, wave.r[i]) * 255);
+        }
+    }
+
+    /**
+     * Closest-hit stage : intersects the rays [start, end) and stores their hits. Secondary
+     * rays are visited by octant and origin.
+     */
+    private static void intersect(TraceContext ctx, Scene scene, Wave wave, int start, int end, int depth) {
+        int n = end - start;
+        wave.reserveLevel(n, scene.lights.size());
+        long[] keys = wave.keys;
+        if (depth > 0) {
+            sortKeys(wave, start, end);
+        }
+        int[] stack = ctx.stack(scene.getStackSize());
+        long[] counters = ctx.counters;
+        Hit hit = wave.hit;
+        for (int k = 0; k < n; k++) {
+            int j = depth > 0 ? (int) (keys[k] & INDEX_MASK) : k;
+            int i = start + j;
+            wave.P.set(wave.ox[i], wave.oy[i], wave.oz[i]);
+            wave.v.set(wave.dx[i], wave.dy[i], wave.dz[i]);
+            if (RenderStats.ENABLED) counters[RenderStats.DEPTH + depth]++;
+            if (scene.intersect(wave.P, wave.v, hit, stack, counters)) {
+                wave.material[j] = hit.material;
+                wave.px[j] = hit.point.x;
+                wave.py[j] = hit.point.y;
+                wave.pz[j] = hit.point.z;
+                wave.nx[j] = hit.normal.x;
+                wave.ny[j] = hit.normal.y;
+                wave.nz[j] = hit.normal.z;
+            } else {
+                wave.material[j] = null;
+            }
+        }
+    }
+
+    /**
+     * Fills wave.keys with the rays [start, end) sorted by direction octant, then by the
+     * Morton code of their origin inside the bounds of the wave.
+     */
+    private static void sortKeys(Wave wave, int start, int end) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int i = start; i < end; i++) {
+            minX = Math.min(minX, wave.ox[i]); maxX = Math.max(maxX, wave.ox[i]);
+            minY = Math.min(minY, wave.oy[i]); maxY = Math.max(maxY, wave.oy[i]);
+            minZ = Math.min(minZ, wave.oz[i]); maxZ = Math.max(maxZ, wave.oz[i]);
+        }
+        // 10 bits par axe
+        float sx = 1023 / Math.max(maxX - minX, 1e-30f);
+        float sy = 1023 / Math.max(maxY - minY, 1e-30f);
+        float sz = 1023 / Math.max(maxZ - minZ, 1e-30f);
+        long[] keys = wave.keys;
+        for (int i = start; i < end; i++) {
+            long octant = (wave.dx[i] < 0 ? 1 : 0) | (wave.dy[i] < 0 ? 2 : 0) | (wave.dz[i] < 0 ? 4 : 0);
+            long code = spread((int) ((wave.ox[i] - minX) * sx))
+                    | spread((int) ((wave.oy[i] - minY) * sy)) << 1
+                    | spread((int) ((wave.oz[i] - minZ) * sz)) << 2;
+            keys[i - start] = octant << 60 | code << INDEX_BITS | (i - start);
+        }
+        Arrays.sort(keys, 0, end - start);
+    }
+
+    /**
+     * @return the 10 low bits of v, two zero bits inserted between each
+     */
+    private static long spread(int v) {
+        long x = v & 0x3ff;
+        x = (x | (x << 16)) & 0x30000ffL;
+        x = (x | (x << 8)) & 0x300f00fL;
+        x = (x | (x << 4)) & 0x30c30c3L;
+        x = (x | (x << 2)) & 0x9249249L;
+        return x;
+    }
+
+    /**
+     * Shading stage : shadow rays of every hit of [start, end), light by light, then the
+     * Phong color of each hit and the spawn of its reflected and refracted rays.
+     */
+    private static void shade(TraceContext ctx, Scene scene, Wave wave, int start, int end, int depth) {
+        ShadingTable shading = scene.shading;
+        float[] positions = shading.positions;
+        int lightCount = scene.lights.size();
+        int[] stack = ctx.stack(scene.getStackSize());
+        long[] counters = ctx.counters;
+        OccluderCache occluders = ctx.occluders(scene);
+        Vec3f M = wave.M, N = wave.N, v = wave.v, toL = wave.toL;
+
+        // rayons d'ombre, groupes par lumiere, sauf pour les lumieres sans effet sur le materiau
+        for (int l = 0; l < lightCount; l++) {
+            for (int j = 0; j < end - start; j++) {
+                if (wave.material[j] == null || !shading.kernel(wave.material[j]).shaded[l]) continue;
+                M.set(wave.px[j], wave.py[j], wave.pz[j]);
+                N.set(wave.nx[j], wave.ny[j], wave.nz[j]);
+                Vec3f shadowOrigin = wave.origin.set(N).scaleLocal(EPS).addLocal(M);
+                toL.set(positions[3 * l], positions[3 * l + 1], positions[3 * l + 2]).subLocal(M);
+                float distToLight = toL.length();
+                toL.normalizeLocal();
+                int s = j * lightCount + l;
+                wave.lx[s] = toL.x;
+                wave.ly[s] = toL.y;
+                wave.lz[s] = toL.z;
+                if (RenderStats.ENABLED) counters[RenderStats.SHADOW]++;
+                wave.lit[s] = !scene.occluded(shadowOrigin, toL, distToLight, stack, occluders, l, counters);
+            }
+        }
+
+        // au plus deux rayons secondaires par intersection
+        wave.reserve(wave.count + 2 * (end - start));
+        for (int i = start; i < end; i++) {
+            int j = i - start;
+            Material mat = wave.material[j];
+            if (mat == null) {
+                // fond noir
+                wave.r[i] = wave.g[i] = wave.b[i] = 0;
+                continue;
+            }
+            M.set(wave.px[j], wave.py[j], wave.pz[j]);
+            N.set(wave.nx[j], wave.ny[j], wave.nz[j]);
+            v.set(wave.dx[i], wave.dy[i], wave.dz[i]);
+
+            // eclairage local (Phong), dans l'ordre des lumieres, produits precalcules
+            Vec3f color = wave.color.set(0, 0, 0);
+            ShadingTable.Kernel kernel = shading.kernel(mat);
+            float[] c = kernel.coefficients;
+            for (int l = 0, o = 0; l < lightCount; l++, o += ShadingTable.COEFFICIENTS) {
+                color.x += c[o];
+                color.y += c[o + 1];
+                color.z += c[o + 2];
+
+                int s = j * lightCount + l;
+                if (kernel.shaded[l] && wave.lit[s]) {
+                    toL.set(wave.lx[s], wave.ly[s], wave.lz[s]);
+                    if (kernel.diffuse[l]) {
+                        float diff = Math.max(0, N.dot(toL));
+                        color.x += c[o + 3] * diff;
+                        color.y += c[o + 4] * diff;
+                        color.z += c[o + 5] * diff;
+                    }
+
+                    if (kernel.specular[l]) {
+                        float dn = -toL.dot(N);
+                        Vec3f refl = wave.tmp.set(toL).negateLocal().addScaledLocal(N, -2 * dn).normalizeLocal();
+                        float spec = kernel.power(Math.max(0, -v.dot(refl)));
+                        color.x += c[o + 6] * spec;
+                        color.y += c[o + 7] * spec;
+                        color.z += c[o + 8] * spec;
+                    }
+                }
+            }
+
+            // rayons secondaires de la vague suivante, reflexion d'abord
+            float weight = wave.weight[i];
+            float reflWeight = mat.reflectivity > 0 ? mat.reflectivity * JavaTga.survival(ctx, scene, weight * mat.reflectivity) : 0;
+            if (reflWeight > 0 && depth < MAX_DEPTH) {
+                Vec3f R = wave.dir.set(v).addScaledLocal(N, -2 * v.dot(N)).normalizeLocal();
+                Vec3f origin = wave.origin.set(N).scaleLocal(EPS).addLocal(M);
+                if (RenderStats.ENABLED) counters[RenderStats.REFLECTION]++;
+                wave.add(i, reflWeight, weight * reflWeight, origin, R);
+            }
+            float refrWeight = mat.transparency > 0 ? mat.transparency * JavaTga.survival(ctx, scene, weight * mat.transparency) : 0;
+            if (refrWeight > 0 && depth < MAX_DEPTH) {
+                float n1 = 1f;  // air
+                float n2 = mat.ior;
+                float side = 1;  // N2 = side * N
+                float cosI = -v.dot(N);
+                if (cosI < 0) { // on sort du materiau
+                    cosI = -cosI;
+                    side = -1;
+                    float tmp = n1; n1 = n2; n2 = tmp;
+                }
+                float eta = n1 / n2;
+                float k = 1 - eta*eta*(1 - cosI*cosI);
+                if (k >= 0) {
+                    Vec3f T = wave.dir.set(v).scaleLocal(eta)
+                            .addScaledLocal(N, side * (eta * cosI - (float)Math.sqrt(k)))
+                            .normalizeLocal();
+                    Vec3f origin = wave.origin.set(T).scaleLocal(EPS).addLocal(M);
+                    if (RenderStats.ENABLED) counters[RenderStats.REFRACTION]++;
+                    wave.add(i, refrWeight, weight * refrWeight, origin, T);
+                }
+            }
+
+            // part locale, les rayons secondaires s'y ajouteront au regroupement
+            float local = 1 - mat.reflectivity - mat.transparency;
+            wave.r[i] = color.x * local;
+            wave.g[i] = color.y * local;
+            wave.b[i] = color.z * local;
+        }
+    }
+
+    /**
+     * Ray tree of one tile, owned by one thread : every ray ever spawned (node), in creation
+     * order, and the hits and shadow tests of the wave being processed.
+     */
+    private static final class Wave {
+        int count;
+        /** first node of each level */
+        final int[] levelStart = new int[MAX_DEPTH + 1];
+
+        // noeuds : parent, facteur applique a la couleur, poids, rayon, couleur
+        int[] parent = new int[0];
+        float[] scale = new float[0];
+        float[] weight = new float[0];
+        float[] ox = new float[0], oy = new float[0], oz = new float[0];
+        float[] dx = new float[0], dy = new float[0], dz = new float[0];
+        float[] r = new float[0], g = new float[0], b = new float[0];
+
+        // vague courante, par indice dans la vague
+        long[] keys = new long[0];
+        Material[] material = new Material[0];
+        float[] px = new float[0], py = new float[0], pz = new float[0];
+        float[] nx = new float[0], ny = new float[0], nz = new float[0];
+        // rayons d'ombre, par intersection puis lumiere
+        float[] lx = new float[0], ly = new float[0], lz = new float[0];
+        boolean[] lit = new boolean[0];
+
+        final Hit hit = new Hit();
+        final Vec3f P = new Vec3f(0, 0, 0);
+        final Vec3f v = new Vec3f(0, 0, 0);
+        final Vec3f M = new Vec3f(0, 0, 0);
+        final Vec3f N = new Vec3f(0, 0, 0);
+        final Vec3f toL = new Vec3f(0, 0, 0);
+        final Vec3f tmp = new Vec3f(0, 0, 0);
+        final Vec3f dir = new Vec3f(0, 0, 0);
+        final Vec3f origin = new Vec3f(0, 0, 0);
+        final Vec3f color = new Vec3f(0, 0, 0);
+
+        void clear() {
+            count = 0;
+        }
+
+        void add(int parent, float scale, float weight, Vec3f origin, Vec3f dir) {
+            int i = count++;
+            this.parent[i] = parent;
+            this.scale[i] = scale;
+            this.weight[i] = weight;
+            ox[i] = origin.x;
+            oy[i] = origin.y;
+            oz[i] = origin.z;
+            dx[i] = dir.x;
+            dy[i] = dir.y;
+            dz[i] = dir.z;
+        }
+
+        /**
+         * Makes room for n nodes.
+         */
+        void reserve(int n) {
+            if (parent.length >= n) return;
+            int size = Math.max(n, parent.length + parent.length / 2);
+            parent = Arrays.copyOf(parent, size);
+            scale = Arrays.copyOf(scale, size);
+            weight = Arrays.copyOf(weight, size);
+            ox = Arrays.copyOf(ox, size);
+            oy = Arrays.copyOf(oy, size);
+            oz = Arrays.copyOf(oz, size);
+            dx = Arrays.copyOf(dx, size);
+            dy = Arrays.copyOf(dy, size);
+            dz = Arrays.copyOf(dz, size);
+            r = Arrays.copyOf(r, size);
+            g = Arrays.copyOf(g, size);
+            b = Arrays.copyOf(b, size);
+        }
+
+        /**
+         * Makes room for the hits and shadow rays of a wave of n rays.
+         */
+        void reserveLevel(int n, int lights) {
+            if (keys.length < n) {
+                keys = new long[n];
+                material = new Material[n];
+                px = new float[n];
+                py = new float[n];
+                pz = new float[n];
+                nx = new float[n];
+                ny = new float[n];
+                nz = new float[n];
+            }
+            if (lit.length < n * lights) {
+                lx = new float[n * lights];
+                ly = new float[n * lights];
+                lz = new float[n * lights];
+                lit = new boolean[n * lights];
+            }
+        }
+    }
+}
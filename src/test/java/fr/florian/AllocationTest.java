@@ -0,0 +1,51 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tracing rays on the scratch state of {@link TraceContext} must not allocate : bytes
+ * allocated by the calling thread, per camera ray, once the code is warm.
+ */
+class AllocationTest {
+    static final int W = 128, H = 96;
+    /** margin for the few bytes the measure itself may allocate */
+    static final double MAX_BYTES_PER_RAY = 1;
+
+    @Test
+    void tracingDoesNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().threadId();
+        BVHTest.SCENES.forEach((name, builder) -> {
+            List<Geometry> objects = new ArrayList<>();
+            List<Light> lights = new ArrayList<>();
+            builder.accept(objects, lights);
+            Scene scene = new Scene(objects, lights);
+            TraceContext ctx = TraceContext.get();
+
+            // mise en route : chargement des classes et compilation
+            for (int pass = 0; pass < 5; pass++) {
+                trace(ctx, scene);
+            }
+            long before = threads.getThreadAllocatedBytes(thread);
+            trace(ctx, scene);
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+            double perRay = (double) allocated / (W * H);
+            assertTrue(perRay <= MAX_BYTES_PER_RAY, name + " : " + perRay + " bytes per camera ray");
+        });
+    }
+
+    private static void trace(TraceContext ctx, Scene scene) {
+        for (int row = 0; row < H; row++) {
+            for (int col = 0; col < W; col++) {
+                JavaTga.tracePixel(ctx, scene, W, H, col, row);
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * The BVH must give the image of a linear scan of the scene, pixel for pixel.
+ */
+class BVHTest {
+    static final int W = 160, H = 120;
+
+    /** built-in scenes of {@link JavaTga}, by name */
+    static final Map<String, BiConsumer<List<Geometry>, List<Light>>> SCENES = Map.of(
+            "simple", JavaTga::drawSimpleScene,
+            "mirrorPalace", JavaTga::drawMirrorPalaceScene,
+            "refraction", JavaTga::drawRefractionScene,
+            "reflexion", JavaTga::drawReflexionScene,
+            "damierReflection", JavaTga::drawDamierReflectionScene,
+            "damierRefraction", JavaTga::drawDamierRefractionScene,
+            "forest", JavaTga::drawForestScene);
+
+    @Test
+    void imagesMatchLinearScan() {
+        SCENES.forEach((name, builder) -> {
+            List<Geometry> objects = new ArrayList<>();
+            List<Light> lights = new ArrayList<>();
+            builder.accept(objects, lights);
+            byte[] linear = JavaTga.render(new Scene(objects, lights, new Camera(), BVHTest::linearScan), W, H, 16);
+            byte[] bvh = JavaTga.render(new Scene(objects, lights), W, H, 16);
+            assertArrayEquals(linear, bvh, name);
+        });
+    }
+
+    /**
+     * @return a hierarchy of a single leaf holding every primitive in scene order : each
+     *         ray tests them all, one after the other
+     */
+    static BVH linearScan(BVH.Primitives prims) {
+        int n = prims.size();
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        BVH bvh = new BVH(prims, n == 0 ? 0 : 1, 1, new float[6], new int[1], new int[]{n}, order);
+        bvh.refit();
+        return bvh;
+    }
+}
@@ -0,0 +1,75 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The batch starts no more jobs than allowed, and still renders them all, collecting the
+ * statistics of each image.
+ */
+class BatchRendererTest {
+    static final int W = 96, H = 64;
+
+    @Test
+    void jobsWaitForAPlace(@TempDir Path dir) throws Exception {
+        BatchRenderer batch = new BatchRenderer(TileScheduler.shared(), 1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger built = new AtomicInteger();
+
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            results.add(batch.submit(dir.resolve(i + ".tga").toString(), W, H, 16, (objects, lights) -> {
+                built.incrementAndGet();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                JavaTga.drawSimpleScene(objects, lights);
+            }));
+        }
+        // le premier travail construit sa scene, les trois autres attendent sans rien construire
+        while (built.get() == 0) {
+            Thread.sleep(1);
+        }
+        assertEquals(1, built.get());
+        assertEquals(3, batch.getWaitingCount());
+
+        release.countDown();
+        CompletableFuture.allOf(results.toArray(new CompletableFuture[0])).join();
+        assertEquals(4, built.get());
+        assertEquals(0, batch.getWaitingCount());
+
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        JavaTga.drawSimpleScene(objects, lights);
+        Path expected = dir.resolve("expected.tga");
+        new TgaWriter().write(expected.toString(), JavaTga.render(new Scene(objects, lights), W, H, 16), W, H);
+        for (CompletableFuture<String> result : results) {
+            assertArrayEquals(Files.readAllBytes(expected), Files.readAllBytes(Path.of(result.join())));
+        }
+    }
+
+    @Test
+    void jobStatistics(@TempDir Path dir) {
+        RenderStats stats = new RenderStats();
+        new BatchRenderer().submit(dir.resolve("stats.tga").toString(), W, H, 16, 0, stats,
+                JavaTga::drawSimpleScene).join();
+        // un rayon primaire par pixel, le pre-calcul des couts n'est pas compte
+        assertEquals(W * H, stats.getPrimaryRays());
+        assertEquals(24, stats.getTileTimes().getTileCount());
+        assertTrue(stats.getNanos() > 0);
+    }
+}
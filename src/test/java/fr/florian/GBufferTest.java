@@ -0,0 +1,48 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Relighting the captured hits gives the image of a full render, also when the lights and
+ * materials of the scene were edited in place since the capture.
+ */
+class GBufferTest {
+    static final int W = 256, H = 192;
+
+    @Test
+    void relightAfterInPlaceEdits() {
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        JavaTga.drawSimpleScene(objects, lights);
+        Scene scene = new Scene(objects, lights);
+
+        try (GBuffer gbuffer = GBuffer.capture(scene, W, H, 32)) {
+            assertArrayEquals(JavaTga.render(scene, W, H, 32), gbuffer.relight(lights));
+
+            // la meme liste, modifiee sur place
+            Light key = lights.get(0);
+            key.position = new Vec3f(4f, 8f, 2f);
+            key.diffuse = new Vec3f(1f, 0.8f, 0.6f);
+            assertArrayEquals(JavaTga.render(new Scene(objects, lights), W, H, 32), gbuffer.relight(lights), "light");
+
+            // materiau partage par les scenes de JavaTga : remis en etat a la fin
+            Material mat = objects.get(2).material;
+            Vec3f diffuse = mat.diffuse;
+            float shininess = mat.shininess;
+            try {
+                mat.diffuse = new Vec3f(0.2f, 0.9f, 0.3f);
+                mat.shininess = 7;
+                assertArrayEquals(JavaTga.render(new Scene(objects, lights), W, H, 32), gbuffer.relight(lights),
+                        "material");
+            } finally {
+                mat.diffuse = diffuse;
+                mat.shininess = shininess;
+            }
+        }
+    }
+}
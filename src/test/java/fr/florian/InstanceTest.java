@@ -0,0 +1,77 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The surface of an instance hit, taken from the traversal of the scene, is the one a
+ * new traversal of its shape finds, even once other rays were traced.
+ */
+class InstanceTest {
+
+    @Test
+    void surfaceOfTheClosestHit() {
+        // copies d'un meme maillage qui se recouvrent, et des copies de copies
+        TriangleMesh model = new TriangleMesh();
+        JavaTga.addCubeAsTriangles(model, new Vec3f(0, 0, 0), 1, JavaTga.red);
+        JavaTga.addCubeAsTriangles(model, new Vec3f(0, 0.8f, 0), 0.6f, JavaTga.diffuseBlue);
+        Instance tree = new Instance(model, Matrix4f.IDENTITY);
+        List<Geometry> objects = new ArrayList<>();
+        Random random = new Random(5);
+        for (int i = 0; i < 200; i++) {
+            Matrix4f m = Matrix4f.translation(random.nextFloat() * 6 - 3, random.nextFloat() * 4 - 2, -4 - random.nextFloat() * 6)
+                    .mul(Matrix4f.rotation(new Vec3f(0, 1, 0), random.nextFloat() * 6));
+            Instance copy = tree.copy(m, i % 3 == 0 ? JavaTga.glass : null);
+            objects.add(i % 4 == 0 ? new Instance(copy, Matrix4f.translation(0, 0.5f, 0)) : copy);
+        }
+        Scene scene = new Scene(objects, List.of());
+
+        Hit hit = new Hit(), previous = new Hit();
+        Vec3f previousOrigin = new Vec3f(0, 0, 0), previousDir = new Vec3f(0, 0, 0);
+        int hits = 0;
+        for (int r = 0; r < 20000; r++) {
+            Vec3f P = new Vec3f(0, 0, 0);
+            Vec3f v = Vec3f.normalize(new Vec3f(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, -1));
+            if (!scene.intersect(P, v, hit)) {
+                continue;
+            }
+            hits++;
+            // autre thread : rien n'y est retenu, la forme est parcourue a nouveau
+            Hit expected = new Hit();
+            expected.t = hit.t;
+            expected.object = hit.object;
+            CompletableFuture.runAsync(() -> hit.object.computeSurface(P, v, expected)).join();
+            assertEquals(expected.normal.x, hit.normal.x, "ray " + r);
+            assertEquals(expected.normal.y, hit.normal.y, "ray " + r);
+            assertEquals(expected.normal.z, hit.normal.z, "ray " + r);
+            assertSame(expected.material, hit.material, "ray " + r);
+
+            // le rayon precedent, apres celui-ci : ce qui a ete retenu ne vaut plus pour lui
+            if (previous.object != null) {
+                Hit again = new Hit();
+                again.t = previous.t;
+                again.object = previous.object;
+                previous.object.computeSurface(previousOrigin, previousDir, again);
+                assertEquals(previous.normal.x, again.normal.x, "ray " + (r - 1) + " again");
+                assertEquals(previous.normal.y, again.normal.y, "ray " + (r - 1) + " again");
+                assertEquals(previous.normal.z, again.normal.z, "ray " + (r - 1) + " again");
+                assertSame(previous.material, again.material, "ray " + (r - 1) + " again");
+            }
+            previous.t = hit.t;
+            previous.object = hit.object;
+            previous.normal.set(hit.normal);
+            previous.material = hit.material;
+            previousOrigin.set(P);
+            previousDir.set(v);
+        }
+        assertTrue(hits > 1000, hits + " hits");
+    }
+}
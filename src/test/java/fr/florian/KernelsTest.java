@@ -0,0 +1,90 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The batched kernels agree with the per-primitive tests : {@link Triangle#getIntersection}
+ * bit for bit, {@link Sphere#getIntersection} with the same hits and distances within float
+ * rounding. Checks the scalar kernels and the best ones of this JVM.
+ */
+class KernelsTest {
+    static final int N = 1024;
+
+    @Test
+    void kernelsMatchPrimitives() {
+        for (IntersectionKernels k : List.of(IntersectionKernels.scalar(), IntersectionKernels.best())) {
+            check(k);
+        }
+    }
+
+    private static void check(IntersectionKernels k) {
+        // primitives en vrac devant la camera, une sur quatre environ touchee
+        Random random = new Random(1);
+        Triangle[] triangles = new Triangle[N];
+        Sphere[] spheres = new Sphere[N];
+        TrianglePack trianglePack = new TrianglePack();
+        SpherePack spherePack = new SpherePack();
+        for (int i = 0; i < N; i++) {
+            Vec3f c = new Vec3f(random.nextFloat() * 4 - 2, random.nextFloat() * 4 - 2, -3 - random.nextFloat() * 4);
+            triangles[i] = new Triangle(c,
+                    new Vec3f(c.x + random.nextFloat(), c.y + random.nextFloat() * 0.3f, c.z),
+                    new Vec3f(c.x, c.y + random.nextFloat(), c.z + random.nextFloat() * 0.5f), JavaTga.red);
+            spheres[i] = new Sphere(c, random.nextFloat() * 0.5f + 0.05f, JavaTga.red);
+            trianglePack.add(triangles[i]);
+            spherePack.add(spheres[i]);
+        }
+        float[] t = new float[N];
+
+        // un rayon contre toutes les primitives, bornes non alignees sur les vecteurs comprises
+        for (int r = 0; r < 100; r++) {
+            Vec3f P = new Vec3f(random.nextFloat() - 0.5f, random.nextFloat() - 0.5f, 0);
+            Vec3f v = Vec3f.normalize(new Vec3f(random.nextFloat() * 2 - 1, random.nextFloat() * 2 - 1, -1));
+            int from = r % 7, to = N - r % 5;
+            k.intersect(trianglePack, from, to, P, v, t);
+            for (int i = from; i < to; i++) {
+                checkTriangle(k, triangles[i].getIntersection(P, v), t[i - from]);
+            }
+            k.intersect(spherePack, from, to, P, v, t);
+            for (int i = from; i < to; i++) {
+                checkSphere(k, spheres[i].getIntersection(P, v), t[i - from]);
+            }
+        }
+
+        // un paquet de rayons camera contre une primitive
+        RayPacket packet = RayPacket.camera(new Camera(), 32, 32, 0, 0, 32, 32);
+        Vec3f P = new Vec3f(0, 0, 0), v = new Vec3f(0, 0, 0);
+        for (int i = 0; i < 16; i++) {
+            k.intersect(packet, 0, N, trianglePack, i, t);
+            for (int r = 0; r < N; r++) {
+                P.set(packet.ox[r], packet.oy[r], packet.oz[r]);
+                v.set(packet.dx[r], packet.dy[r], packet.dz[r]);
+                checkTriangle(k, triangles[i].getIntersection(P, v), t[r]);
+            }
+            k.intersect(packet, 0, N, spherePack, i, t);
+            for (int r = 0; r < N; r++) {
+                P.set(packet.ox[r], packet.oy[r], packet.oz[r]);
+                v.set(packet.dx[r], packet.dy[r], packet.dz[r]);
+                checkSphere(k, spheres[i].getIntersection(P, v), t[r]);
+            }
+        }
+    }
+
+    private static void checkTriangle(IntersectionKernels k, float expected, float actual) {
+        assertEquals(Float.floatToIntBits(expected > 0 ? expected : -1f), Float.floatToIntBits(actual),
+                () -> k + " triangle kernel returned " + actual + " instead of " + expected);
+    }
+
+    private static void checkSphere(IntersectionKernels k, float expected, float actual) {
+        assertEquals(expected > 0, actual > 0, () -> k + " sphere kernel returned " + actual + " instead of " + expected);
+        if (expected > 0) {
+            assertTrue(Math.abs(expected - actual) <= 1e-5f * expected,
+                    () -> k + " sphere kernel returned " + actual + " instead of " + expected);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * A mesh loaded from an OBJ file, held in arrays of its exact size, still grows when faces
+ * are appended to it.
+ */
+class ObjLoaderTest {
+
+    @Test
+    void appendToEmptyMesh(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("vide.obj");
+        Files.writeString(file, "# aucun sommet, aucune face\n");
+        TriangleMesh mesh = new ObjLoader().load(file);
+        assertEquals(0, mesh.getFaceCount());
+
+        int a = mesh.addVertex(0, 0, 0);
+        int b = mesh.addVertex(1, 0, 0);
+        int c = mesh.addVertex(0, 1, 0);
+        mesh.addTriangle(a, b, c, JavaTga.red);
+        // bien au-dela de la capacite de depart
+        for (int i = 0; i < 200; i++) {
+            mesh.addTriangle(new Vec3f(i, 0, -1), new Vec3f(i + 1, 0, -1), new Vec3f(i, 1, -1), JavaTga.red);
+        }
+        assertEquals(603, mesh.getVertexCount());
+        assertEquals(201, mesh.getFaceCount());
+        assertNotNull(mesh.getBoundingBox());
+    }
+
+    @Test
+    void appendToLoadedMesh(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("triangle.obj");
+        Files.writeString(file, "v 0 0 0\nv 1 0 0\nv 0 1 0\nf 1 2 3\n");
+        TriangleMesh mesh = new ObjLoader().load(file);
+        assertEquals(1, mesh.getFaceCount());
+
+        mesh.addTriangle(0, 1, mesh.addVertex(1, 1, 0), JavaTga.red);
+        assertEquals(4, mesh.getVertexCount());
+        assertEquals(2, mesh.getFaceCount());
+    }
+}
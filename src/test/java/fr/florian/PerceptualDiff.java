@@ -0,0 +1,64 @@
+package fr.florian;
+
+/**
+ * Perceptual difference of two images : CIE76 distance (Delta E) between the CIELAB
+ * colors of each pair of pixels. A Delta E below 2.3 is the just noticeable difference.
+ */
+final class PerceptualDiff {
+    /** just noticeable difference */
+    static final double JND = 2.3;
+
+    final double maxDeltaE;
+    final double meanDeltaE;
+    /** pixels whose difference is noticeable */
+    final int visiblePixels;
+
+    /**
+     * @param a image buffer, 3 bytes per pixel ordered Blue, Green, Red
+     * @param b image of the same size
+     */
+    PerceptualDiff(byte[] a, byte[] b) {
+        double max = 0, sum = 0;
+        int visible = 0;
+        double[] la = new double[3], lb = new double[3];
+        for (int i = 0; i < a.length; i += 3) {
+            lab(a, i, la);
+            lab(b, i, lb);
+            double dl = la[0] - lb[0], da = la[1] - lb[1], db = la[2] - lb[2];
+            double d = Math.sqrt(dl * dl + da * da + db * db);
+            max = Math.max(max, d);
+            sum += d;
+            if (d > JND) visible++;
+        }
+        maxDeltaE = max;
+        meanDeltaE = sum / (a.length / 3);
+        visiblePixels = visible;
+    }
+
+    /**
+     * sRGB (D65) to CIELAB.
+     */
+    private static void lab(byte[] bgr, int i, double[] out) {
+        double r = linear(bgr[i + 2]), g = linear(bgr[i + 1]), b = linear(bgr[i]);
+        double x = f((0.4124 * r + 0.3576 * g + 0.1805 * b) / 0.95047);
+        double y = f(0.2126 * r + 0.7152 * g + 0.0722 * b);
+        double z = f((0.0193 * r + 0.1192 * g + 0.9505 * b) / 1.08883);
+        out[0] = 116 * y - 16;
+        out[1] = 500 * (x - y);
+        out[2] = 200 * (y - z);
+    }
+
+    private static double linear(byte v) {
+        double c = (v & 0xff) / 255.0;
+        return c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+    }
+
+    private static double f(double t) {
+        return t > 216.0 / 24389 ? Math.cbrt(t) : (24389.0 / 27 * t + 16) / 116;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("max Delta E %.2f, mean %.4f, %d pixels above the JND", maxDeltaE, meanDeltaE, visiblePixels);
+    }
+}
@@ -0,0 +1,46 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * Every pass of a progressive render covers the whole image, whatever the tile size.
+ */
+class ProgressiveRendererTest {
+    static final int W = 150, H = 100;
+
+    @Test
+    void coarsePassHasNoHoles() {
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        JavaTga.drawSimpleScene(objects, lights);
+        Scene scene = new Scene(objects, lights);
+
+        // tuiles de 20 pixels : ni multiples de 8, ni alignees sur la grille de la passe grossiere
+        byte[] coarse = new byte[3 * W * H];
+        byte[] image = new ProgressiveRenderer(8, 1).render(scene, W, H, 20, tile -> {
+            if (tile.pass == 0) {
+                tile.copyTo(coarse, W);
+            }
+        });
+
+        byte[] expected = new byte[3 * W * H];
+        TraceContext ctx = TraceContext.get();
+        for (int row = 0; row < H; row++) {
+            for (int col = 0; col < W; col++) {
+                // couleur du coin du bloc 8 x 8 de la grille de l'image
+                Vec3f c = JavaTga.tracePixel(ctx, scene, W, H, col / 8 * 8, row / 8 * 8);
+                int index = 3 * (row * W + col);
+                expected[index] = (byte) (Math.min(1, c.z) * 255);
+                expected[index + 1] = (byte) (Math.min(1, c.y) * 255);
+                expected[index + 2] = (byte) (Math.min(1, c.x) * 255);
+            }
+        }
+        assertArrayEquals(expected, coarse);
+        assertArrayEquals(JavaTga.render(scene, W, H, 20), image);
+    }
+}
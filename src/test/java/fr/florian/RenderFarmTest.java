@@ -0,0 +1,64 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * A scene of instances goes through the compiled format : read back from the cache or
+ * rendered by a worker, it gives the image of the scene it was made from.
+ */
+class RenderFarmTest {
+    static final int W = 160, H = 120;
+
+    @Test
+    void cachedForest(@TempDir Path dir) throws Exception {
+        Scene forest = forest();
+        Path file = dir.resolve("forest.scene.bin");
+        SceneCache.write(forest, file);
+        Scene read = SceneCache.read(file);
+
+        assertEquals(forest.objects.size(), read.objects.size());
+        // les copies d'une meme forme la partagent encore
+        Instance a = (Instance) read.objects.get(read.objects.size() - 2);
+        Instance b = (Instance) read.objects.get(read.objects.size() - 1);
+        assertSame(a.shape, b.shape);
+        assertArrayEquals(JavaTga.render(forest, W, H, 16), JavaTga.render(read, W, H, 16));
+    }
+
+    @Test
+    void forestOnAWorker() throws Exception {
+        Scene forest = forest();
+        try (ServerSocket server = new ServerSocket(0)) {
+            RenderWorker worker = new RenderWorker(2);
+            Thread.ofPlatform().daemon().start(() -> {
+                try (Socket socket = server.accept()) {
+                    worker.serve(socket);
+                } catch (Exception ignored) {
+                    // fin du test
+                }
+            });
+            try (RenderFarm farm = RenderFarm.connect(List.of(new InetSocketAddress("localhost", server.getLocalPort())))) {
+                // tuiles de 24 pixels : celles du bord sont plus petites
+                assertArrayEquals(JavaTga.render(forest, W, H, 24), farm.render(forest, W, H, 24));
+            }
+        }
+    }
+
+    private static Scene forest() {
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        JavaTga.drawForestScene(objects, lights);
+        return new Scene(objects, lights);
+    }
+}
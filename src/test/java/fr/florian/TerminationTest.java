@@ -0,0 +1,56 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Stopping the ray tree by weight gives no visible difference with the full tree, and the
+ * settings of a render do not leak into the others.
+ */
+class TerminationTest {
+    static final int W = 256, H = 192;
+    static final String[] SCENES = {"mirrorPalace", "refraction", "damierRefraction"};
+
+    @Test
+    void noVisibleDifference() {
+        for (String name : SCENES) {
+            Scene scene = build(name);
+            byte[] full = JavaTga.render(scene.withTermination(0, false), W, H, 32);
+            for (boolean roulette : new boolean[]{false, true}) {
+                byte[] image = JavaTga.render(scene.withTermination(JavaTga.DEFAULT_MIN_WEIGHT, roulette), W, H, 32);
+                PerceptualDiff diff = new PerceptualDiff(full, image);
+                assertEquals(0, diff.visiblePixels, name + (roulette ? ", roulette" : "") + " : " + diff);
+            }
+        }
+    }
+
+    @Test
+    void settingsPerRender() {
+        Scene scene = build("mirrorPalace");
+        // seuil grossier : les reflets multiples disparaissent
+        Scene coarse = scene.withTermination(0.5f, false);
+        byte[] full = JavaTga.render(scene, W, H, 32);
+        byte[] pruned = JavaTga.render(coarse, W, H, 32);
+        assertFalse(Arrays.equals(full, pruned), "the settings change nothing in this scene");
+
+        // deux rendus simultanes, chacun avec ses propres reglages
+        CompletableFuture<byte[]> other = CompletableFuture.supplyAsync(() -> JavaTga.render(coarse, W, H, 32));
+        assertArrayEquals(full, JavaTga.render(scene, W, H, 32));
+        assertArrayEquals(pruned, other.join());
+    }
+
+    private static Scene build(String name) {
+        List<Geometry> objects = new ArrayList<>();
+        List<Light> lights = new ArrayList<>();
+        BVHTest.SCENES.get(name).accept(objects, lights);
+        return new Scene(objects, lights);
+    }
+}
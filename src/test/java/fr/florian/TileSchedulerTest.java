@@ -0,0 +1,51 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The scheduler covers every pixel exactly once, with known costs or not.
+ */
+class TileSchedulerTest {
+    static final int W = 333, H = 211, BLOCK = 16;
+
+    @Test
+    void everyPixelOnce() {
+        TileCosts costs = new TileCosts(W, H, BLOCK);
+        for (int frame = 0; frame < 2; frame++) {
+            AtomicIntegerArray hits = new AtomicIntegerArray(W * H);
+            TileScheduler.shared().render(costs, (x0, y0, x1, y1) -> {
+                for (int y = y0; y < y1; y++) {
+                    for (int x = x0; x < x1; x++) {
+                        hits.incrementAndGet(y * W + x);
+                    }
+                }
+            });
+            for (int i = 0; i < W * H; i++) {
+                assertEquals(1, hits.get(i), "pixel " + i % W + ", " + i / W + " of frame " + frame);
+            }
+            assertTrue(costs.isKnown());
+        }
+    }
+
+    @Test
+    void keysDecode() {
+        int[][] tiles = {{0, 0}, {1, 0}, {0, 1}, {12345, 54321}, {65535, 65535}};
+        long[] costs = {0, 999, 1000, 123_456_789, Long.MAX_VALUE};
+        for (int[] t : tiles) {
+            for (long cost : costs) {
+                long key = TileScheduler.key(t[0], t[1], cost);
+                assertEquals(t[0], TileScheduler.compact(key));
+                assertEquals(t[1], TileScheduler.compact(key >>> 1));
+                assertEquals(Math.min(cost / 1000, Integer.MAX_VALUE) * 1000, TileScheduler.cost(key));
+            }
+        }
+        // les plus couteuses d'abord, puis l'ordre de Morton
+        assertTrue(TileScheduler.key(5, 5, 2_000_000) < TileScheduler.key(0, 0, 1_000_000));
+        assertTrue(TileScheduler.key(1, 0, 1_000_000) < TileScheduler.key(0, 1, 1_000_000));
+    }
+}
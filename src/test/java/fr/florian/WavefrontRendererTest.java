@@ -0,0 +1,27 @@
+package fr.florian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+/**
+ * The wavefront engine must give the image of the recursive findColor, pixel for pixel.
+ */
+class WavefrontRendererTest {
+    static final int W = 256, H = 192;
+
+    @Test
+    void imagesMatchFindColor() {
+        BVHTest.SCENES.forEach((name, builder) -> {
+            List<Geometry> objects = new ArrayList<>();
+            List<Light> lights = new ArrayList<>();
+            builder.accept(objects, lights);
+            Scene scene = new Scene(objects, lights);
+            // tuiles de 48 pixels : celles du bord sont plus petites
+            assertArrayEquals(JavaTga.render(scene, W, H, 48), WavefrontRenderer.render(scene, W, H, 48), name);
+        });
+    }
+}